@@ -0,0 +1,232 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import il.ac.technion.cs.sd.lib.ClientConnection;
+import il.ac.technion.cs.sd.lib.CompressingCodec;
+import il.ac.technion.cs.sd.lib.Subscriber;
+import il.ac.technion.cs.sd.lib.Subscription;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client side of the TMail application, with queries that return right away, with a future of their results.
+ * <br>
+ * Unlike {@link ClientMailApplication}, this class can be shared by many threads, each with any number of queries in
+ * flight. The responses are received by a single reader thread of the connection, which completes the futures of
+ * their requests, matched by correlation id.
+ * <br>
+ * A future completes exceptionally with a {@link ServerOverloadedException} if the server was too busy to handle its
+ * request, and with an IllegalStateException if the client was stopped before the response arrived. Once the reader
+ * thread stops, because the client was stopped or receiving failed, the futures of new queries complete exceptionally
+ * right away, with the same cause.
+ */
+public class AsyncClientMailApplication {
+
+	final private ClientConnection<MailRequest> connection;
+
+	// The futures of the requests sent and not answered yet, by correlation id.
+	final private Map<Integer, CompletableFuture<MailResponse>> pending =
+			new ConcurrentHashMap<Integer, CompletableFuture<MailResponse>>();
+	final private AtomicInteger lastCorrelationId = new AtomicInteger();
+	// Why no more responses are received, once the reader thread stopped.
+	private volatile Throwable terminated;
+
+	/**
+	 * Creates a new application, tied to a single user, and starts receiving responses.
+	 * @param serverAddress The address of the server to connect to for sending and requesting mail
+	 * @param username The user that will be sending and accepting the mail using this object
+	 */
+	public AsyncClientMailApplication(String serverAddress, String username) {
+		this(createConnection(serverAddress, username));
+	}
+
+	private static ClientConnection<MailRequest> createConnection(String serverAddress, String username) {
+		if (serverAddress == null || serverAddress.isEmpty() || username == null || username.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		return ClientConnection.<MailRequest>create(serverAddress, username,
+				new CompressingCodec<MailRequest>(MailRequestCodec.withLazyMailLists()));
+	}
+
+	private AsyncClientMailApplication(ClientConnection<MailRequest> connection) {
+		if (connection == null) {
+			throw new IllegalArgumentException();
+		}
+		this.connection = connection;
+		connection.subscribe(new ResponseSubscriber());
+	}
+
+	/**
+	 * Creates an application that uses the given mock connection. Used for testing purposes.
+	 * @param connection the mock connection to use.
+	 * @return the application created.
+	 */
+	static AsyncClientMailApplication createWithMockConnection(ClientConnection<MailRequest> connection) {
+		return new AsyncClientMailApplication(connection);
+	}
+
+	/**
+	 * Sends a mail to another user. The mail is on its way once this returns; there is no response to wait for.
+	 * @param whom The recipient of the mail
+	 * @param what The message to send
+	 */
+	public void sendMail(String whom, String what) {
+		if (whom == null || whom.isEmpty() || what == null || what.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		connection.send(MailRequest.sendMail(new Mail(connection.getAddress(), whom, what)));
+	}
+
+	/**
+	 * Get all mail sent from or to another client
+	 * @param whom The other user that sent or received mail from the current user
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return A future of the list of all mails matching the criteria, ordered by time of arrival, of size n
+	 * <i>at most</i>
+	 */
+	public CompletableFuture<List<Mail>> getCorrespondences(String whom, int howMany) {
+		if (whom == null || whom.isEmpty() || howMany < 0) {
+			throw new IllegalArgumentException();
+		}
+		return request(MailRequest.getCorrespondences(whom, howMany)).thenApply(MailResponse::getMailResults);
+	}
+
+	/**
+	 * Get all mail sent <b>by</b> the current user
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return A future of the list of all mails matching the criteria, ordered by time of arrival, of size n
+	 * <i>at most</i>
+	 */
+	public CompletableFuture<List<Mail>> getSentMails(int howMany) {
+		if (howMany < 0) {
+			throw new IllegalArgumentException();
+		}
+		return request(MailRequest.getMailSent(howMany)).thenApply(MailResponse::getMailResults);
+	}
+
+	/**
+	 * Get all sent <b>to</b> the current user
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return A future of the list of all mails matching the criteria, ordered by time of arrival, of size n
+	 * <i>at most</i>
+	 */
+	public CompletableFuture<List<Mail>> getIncomingMail(int howMany) {
+		if (howMany < 0) {
+			throw new IllegalArgumentException();
+		}
+		return request(MailRequest.getIncoming(howMany)).thenApply(MailResponse::getMailResults);
+	}
+
+	/**
+	 * Get all sent <b>to</b> or <b>by</b> the current user
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return A future of the list of all mails matching the criteria, ordered by time of arrival, of size n
+	 * <i>at most</i>
+	 */
+	public CompletableFuture<List<Mail>> getAllMail(int howMany) {
+		if (howMany < 0) {
+			throw new IllegalArgumentException();
+		}
+		return request(MailRequest.getAllMail(howMany)).thenApply(MailResponse::getMailResults);
+	}
+
+	/**
+	 * Get all sent <b>to</b> the current user that wasn't retrieved by any method yet (including this method)
+	 * @return A future of the list of all mails matching the criteria, ordered by time of arrival
+	 */
+	public CompletableFuture<List<Mail>> getNewMail() {
+		return request(MailRequest.getUnread()).thenApply(MailResponse::getMailResults);
+	}
+
+	/**
+	 * @param howMany ignored; all contacts are retrieved
+	 * @return A future of the list, ordered alphabetically, of all other users that sent or received mail from the
+	 * current user
+	 */
+	public CompletableFuture<List<String>> getContacts(int howMany) {
+		if (howMany < 0) {
+			throw new IllegalArgumentException();
+		}
+		return request(MailRequest.getContacts()).thenApply(MailResponse::getContactsResults);
+	}
+
+	/**
+	 * A stopped client does not use any system resources (e.g., messengers). The futures of queries that were not
+	 * answered yet complete exceptionally.
+	 */
+	public void stop() {
+		connection.kill();
+	}
+
+	/**
+	 * Tag a request with a new correlation id, and send it.
+	 * @return a future of the response.
+	 */
+	private CompletableFuture<MailResponse> request(MailRequest request) {
+		// Never 0, which stands for no id.
+		int id = lastCorrelationId.updateAndGet(last -> last == Integer.MAX_VALUE ? 1 : last + 1);
+		CompletableFuture<MailResponse> $ = new CompletableFuture<MailResponse>();
+		pending.put(id, $);
+		// Checked after the future is pending, so it is failed here or by terminate if the reader stops meanwhile.
+		Throwable cause = terminated;
+		if (cause != null) {
+			pending.remove(id);
+			$.completeExceptionally(cause);
+			return $;
+		}
+		request.correlationId = id;
+		try {
+			connection.send(request);
+		} catch (RuntimeException e) {
+			pending.remove(id);
+			$.completeExceptionally(e);
+		}
+		return $;
+	}
+
+	/**
+	 * Fail the futures of the pending requests, and of every request made from now on.
+	 */
+	private void terminate(Throwable cause) {
+		terminated = cause;
+		for (Integer id : pending.keySet()) {
+			CompletableFuture<MailResponse> future = pending.remove(id);
+			if (future != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+	}
+
+	/**
+	 * Completes the futures of the requests the responses answer, on the reader thread of the connection.
+	 */
+	private class ResponseSubscriber implements Subscriber<MailRequest> {
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			// Responses are only received for requests that were sent, so there is nothing to hold back.
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(MailRequest answered) {
+			// A response to no pending request (e.g. sent before a restart) is dropped.
+			CompletableFuture<MailResponse> future = pending.remove(answered.correlationId);
+			if (future != null) {
+				future.complete(answered.getResponse());
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			terminate(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			terminate(new IllegalStateException("The client was stopped"));
+		}
+	}
+}
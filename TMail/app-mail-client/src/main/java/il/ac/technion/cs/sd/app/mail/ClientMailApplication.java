@@ -1,19 +1,36 @@
 package il.ac.technion.cs.sd.app.mail;
 
 import il.ac.technion.cs.sd.lib.ClientConnection;
+import il.ac.technion.cs.sd.lib.CompressingCodec;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 /**
  * The client side of the TMail application.
  * Allows sending and getting mail to and from other clients using a server.
  * <br>
+ * Each query has a variant that sends the request and returns right away, with a {@link PendingResult} (e.g.
+ * {@link ClientMailApplication#requestContacts(int)}). Requests are tagged with correlation ids, so several of them
+ * can be in flight at once, and each response is matched to its request whatever order they arrive in. For example,
+ * requesting the correspondence with each of the contacts back to back takes about a single round trip.
+ * <br>
+ * A server with a bounded inbound queue may be too busy to handle a request; the methods that get results then
+ * throw a {@link ServerOverloadedException} right away, and can be called again later.
+ * <br>
  * You should implement all the methods in this class 
  */
 public class ClientMailApplication {
 	
 	private ClientConnection<MailRequest> connection;
 	
+	// The results of the requests sent and not answered yet, by correlation id, oldest first.
+	final private Map<Integer, PendingResult<?>> pending = new LinkedHashMap<Integer, PendingResult<?>>();
+	private int lastCorrelationId;
+	
 	/**
 	 * Creates a new application, tied to a single user
 	 * @param serverAddress The address of the server to connect to for sending and requesting mail
@@ -23,7 +40,8 @@ public class ClientMailApplication {
 		if (serverAddress == null || serverAddress.isEmpty() || username == null || username.isEmpty()) {
 			throw new IllegalArgumentException();
 		}
-		this.connection = ClientConnection.<MailRequest>create(serverAddress, username);
+		this.connection = ClientConnection.<MailRequest>create(serverAddress, username,
+				new CompressingCodec<MailRequest>(MailRequestCodec.withLazyMailLists()));
 	}
 	
 	
@@ -72,14 +90,20 @@ public class ClientMailApplication {
 	 * @return A list, ordered of all mails matching the criteria, ordered by time of arrival, of size n <i>at most</i>  
 	 */
 	public List<Mail> getCorrespondences(String whom, int howMany) {
+		return requestCorrespondences(whom, howMany).get();
+	}
+	
+	/**
+	 * Send a request for all mail sent from or to another client, without waiting for the response.
+	 * @param whom The other user that sent or received mail from the current user
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return the pending result.
+	 */
+	public PendingResult<List<Mail>> requestCorrespondences(String whom, int howMany) {
 		if (whom == null || whom.isEmpty() || howMany < 0) {
 			throw new IllegalArgumentException();
 		}
-		MailRequest request = MailRequest.getCorrespondences(whom, howMany);
-		connection.send(request);
-		
-		MailResponse response = connection.receiveBlocking().getResponse();
-		return response.getMailResults();
+		return request(MailRequest.getCorrespondences(whom, howMany), MailResponse::getMailResults);
 	}
 	
 	/**
@@ -88,14 +112,19 @@ public class ClientMailApplication {
 	 * @return A list, ordered of all mails matching the criteria, ordered by time of arrival, of size n <i>at most</i>  
 	 */
 	public List<Mail> getSentMails(int howMany) {
+		return requestSentMails(howMany).get();
+	}
+	
+	/**
+	 * Send a request for all mail sent <b>by</b> the current user, without waiting for the response.
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return the pending result.
+	 */
+	public PendingResult<List<Mail>> requestSentMails(int howMany) {
 		if (howMany < 0) {
 			throw new IllegalArgumentException();
 		}
-		MailRequest request = MailRequest.getMailSent(howMany);
-		connection.send(request);
-		
-		MailResponse response = connection.receiveBlocking().getResponse();
-		return response.getMailResults();
+		return request(MailRequest.getMailSent(howMany), MailResponse::getMailResults);
 	}
 	
 	/**
@@ -104,14 +133,19 @@ public class ClientMailApplication {
 	 * @return A list, ordered of all mails matching the criteria, ordered by time of arrival, of size n <i>at most</i>  
 	 */
 	public List<Mail> getIncomingMail(int howMany) {
+		return requestIncomingMail(howMany).get();
+	}
+	
+	/**
+	 * Send a request for all mail sent <b>to</b> the current user, without waiting for the response.
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return the pending result.
+	 */
+	public PendingResult<List<Mail>> requestIncomingMail(int howMany) {
 		if (howMany < 0) {
 			throw new IllegalArgumentException();
 		}
-		MailRequest request = MailRequest.getIncoming(howMany);
-		connection.send(request);
-		
-		MailResponse response = connection.receiveBlocking().getResponse();
-		return response.getMailResults();
+		return request(MailRequest.getIncoming(howMany), MailResponse::getMailResults);
 	}
 	
 	/**
@@ -120,14 +154,19 @@ public class ClientMailApplication {
 	 * @return A list, ordered of all mails matching the criteria, ordered by time of arrival, of size n <i>at most</i>  
 	 */
 	public List<Mail> getAllMail(int howMany) {
+		return requestAllMail(howMany).get();
+	}
+	
+	/**
+	 * Send a request for all mail sent <b>to</b> or <b>by</b> the current user, without waiting for the response.
+	 * @param howMany how many mails to retrieve; mails are ordered by time of arrival to server
+	 * @return the pending result.
+	 */
+	public PendingResult<List<Mail>> requestAllMail(int howMany) {
 		if (howMany < 0) {
 			throw new IllegalArgumentException();
 		}
-		MailRequest request = MailRequest.getAllMail(howMany);
-		connection.send(request);
-		
-		MailResponse response = connection.receiveBlocking().getResponse();
-		return response.getMailResults();
+		return request(MailRequest.getAllMail(howMany), MailResponse::getMailResults);
 	}
 	
 	/**
@@ -135,25 +174,74 @@ public class ClientMailApplication {
 	 * @return A list, ordered of all mails matching the criteria, ordered by time of arrival  
 	 */
 	public List<Mail> getNewMail() {
-		MailRequest request = MailRequest.getUnread();
-		connection.send(request);
-		
-		MailResponse response = connection.receiveBlocking().getResponse();
-		return response.getMailResults();
+		return requestNewMail().get();
+	}
+	
+	/**
+	 * Send a request for all mail sent <b>to</b> the current user that wasn't retrieved by any method yet, without
+	 * waiting for the response. The mail counts as retrieved once the server handles the request.
+	 * @return the pending result.
+	 */
+	public PendingResult<List<Mail>> requestNewMail() {
+		return request(MailRequest.getUnread(), MailResponse::getMailResults);
 	}
 	
 	/**
 	 * @return A list, ordered alphabetically, of all other users that sent or received mail from the current user  
 	 */
 	public List<String> getContacts(int howMany) {
+		return requestContacts(howMany).get();
+	}
+	
+	/**
+	 * Send a request for all other users that sent or received mail from the current user, without waiting for the
+	 * response.
+	 * @param howMany ignored; all contacts are retrieved
+	 * @return the pending result.
+	 */
+	public PendingResult<List<String>> requestContacts(int howMany) {
 		if (howMany < 0) {
 			throw new IllegalArgumentException();
 		}
-		MailRequest request = MailRequest.getContacts();
+		return request(MailRequest.getContacts(), MailResponse::getContactsResults);
+	}
+	
+	/**
+	 * Tag a request with a new correlation id, and send it.
+	 * @param results gets the result out of the response.
+	 */
+	private <T> PendingResult<T> request(MailRequest request, Function<MailResponse, T> results) {
+		PendingResult<T> $ = new PendingResult<T>(this, results);
+		// Never 0, which stands for no id.
+		lastCorrelationId = lastCorrelationId == Integer.MAX_VALUE ? 1 : lastCorrelationId + 1;
+		request.correlationId = lastCorrelationId;
+		pending.put(request.correlationId, $);
 		connection.send(request);
-		
-		MailResponse response = connection.receiveBlocking().getResponse();
-		return response.getContactsResults();
+		return $;
+	}
+	
+	/**
+	 * Receive responses, completing the results they answer, until the given one is complete.
+	 */
+	void awaitResponse(PendingResult<?> result) {
+		while (!result.isDone()) {
+			MailRequest answered = connection.receiveBlocking();
+			PendingResult<?> $;
+			if (answered.correlationId != 0) {
+				$ = pending.remove(answered.correlationId);
+			} else {
+				// Without an id, responses are assumed to come in the order of the requests.
+				Iterator<PendingResult<?>> oldest = pending.values().iterator();
+				$ = oldest.hasNext() ? oldest.next() : null;
+				if ($ != null) {
+					oldest.remove();
+				}
+			}
+			// A response to no pending request (e.g. sent before a restart) is dropped.
+			if ($ != null) {
+				$.complete(answered.getResponse());
+			}
+		}
 	}
 	
 	/**
@@ -0,0 +1,46 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.function.Function;
+
+/**
+ * The result of a request that a {@link ClientMailApplication} sent without waiting for its response. Several
+ * requests can be sent this way back to back, so they are all in flight together, and their results collected
+ * later, in any order.
+ * 
+ * @param <T> The type of the result.
+ */
+public class PendingResult<T> {
+
+	final private ClientMailApplication client;
+	final private Function<MailResponse, T> results;
+	private MailResponse response;
+
+	PendingResult(ClientMailApplication client, Function<MailResponse, T> results) {
+		this.client = client;
+		this.results = results;
+	}
+
+	/**
+	 * Get the result, waiting for the response if it did not arrive yet. Responses to other requests that arrive in
+	 * the meantime are kept for their own results.
+	 * @return the result.
+	 * @throws ServerOverloadedException if the server was too busy to handle the request.
+	 */
+	public T get() {
+		if (response == null) {
+			client.awaitResponse(this);
+		}
+		return results.apply(response);
+	}
+
+	/**
+	 * @return true if the response arrived, so {@link PendingResult#get()} returns without waiting.
+	 */
+	public boolean isDone() {
+		return response != null;
+	}
+
+	void complete(MailResponse response) {
+		this.response = response;
+	}
+}
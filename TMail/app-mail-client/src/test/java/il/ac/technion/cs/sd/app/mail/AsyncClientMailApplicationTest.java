@@ -0,0 +1,164 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.*;
+import il.ac.technion.cs.sd.lib.ClientConnection;
+import il.ac.technion.cs.sd.lib.Subscriber;
+import il.ac.technion.cs.sd.lib.Subscription;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class AsyncClientMailApplicationTest {
+
+	AsyncClientMailApplication client;
+	ClientConnection<MailRequest> connection;
+	Subscriber<MailRequest> reader;
+	Subscription subscription;
+
+	static private final String clientAddress = "clientAddress";
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() throws Exception {
+		connection = Mockito.mock(ClientConnection.class);
+		Mockito.when(connection.getAddress()).thenReturn(clientAddress);
+
+		client = AsyncClientMailApplication.createWithMockConnection(connection);
+
+		ArgumentCaptor<Subscriber> captor = ArgumentCaptor.forClass(Subscriber.class);
+		Mockito.verify(connection).subscribe(captor.capture());
+		reader = captor.getValue();
+		subscription = Mockito.mock(Subscription.class);
+		reader.onSubscribe(subscription);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.stop();
+	}
+
+	private MailRequest sent(int times) {
+		ArgumentCaptor<MailRequest> captor = ArgumentCaptor.forClass(MailRequest.class);
+		Mockito.verify(connection, Mockito.times(times)).send(captor.capture());
+		return captor.getValue();
+	}
+
+	private void respond(MailRequest request, MailResponse response) {
+		request.attachResponse(response);
+		reader.onNext(request);
+	}
+
+	@Test
+	public void requestsAllResponsesUpFront() {
+		Mockito.verify(subscription).request(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testSendMail() {
+		client.sendMail("a friend", "wazzap?!");
+		Mockito.verify(connection).send(MailRequest.sendMail(new Mail(clientAddress, "a friend", "wazzap?!")));
+	}
+
+	@Test
+	public void completesFutureWithResults() throws Exception {
+		List<Mail> expected = Arrays.asList(new Mail("a", "b", "c"), new Mail("e", "f", "g"));
+		CompletableFuture<List<Mail>> future = client.getCorrespondences("other", 2);
+		assertFalse(future.isDone());
+
+		MailRequest request = sent(1);
+		assertEquals(MailRequest.getCorrespondences("other", 2), request);
+		respond(request, MailResponse.withMailResults(expected));
+		assertEquals(expected, future.get());
+	}
+
+	@Test
+	public void completesFuturesInAnyOrder() throws Exception {
+		CompletableFuture<List<String>> contacts = client.getContacts(0);
+		MailRequest contactsRequest = sent(1);
+		CompletableFuture<List<Mail>> unread = client.getNewMail();
+		MailRequest unreadRequest = sent(2);
+		assertNotEquals(contactsRequest.correlationId, unreadRequest.correlationId);
+
+		List<Mail> mails = Arrays.asList(new Mail("a", clientAddress, "c"));
+		respond(unreadRequest, MailResponse.withMailResults(mails));
+		assertTrue(unread.isDone());
+		assertFalse(contacts.isDone());
+
+		respond(contactsRequest, MailResponse.withContactsResults(Arrays.asList("a")));
+		assertEquals(Arrays.asList("a"), contacts.get());
+		assertEquals(mails, unread.get());
+	}
+
+	@Test
+	public void dropsUnmatchedResponses() throws Exception {
+		CompletableFuture<List<Mail>> future = client.getAllMail(1);
+		MailRequest request = sent(1);
+
+		MailRequest stray = MailRequest.getAllMail(1);
+		stray.correlationId = request.correlationId + 1;
+		respond(stray, MailResponse.withMailResults(Arrays.asList(new Mail("x", "y", "z"))));
+		assertFalse(future.isDone());
+
+		List<Mail> expected = Arrays.asList(new Mail("a", "b", "c"));
+		respond(request, MailResponse.withMailResults(expected));
+		assertEquals(expected, future.get());
+	}
+
+	@Test
+	public void overloadedResponseFailsFuture() throws Exception {
+		CompletableFuture<List<Mail>> future = client.getIncomingMail(3);
+		respond(sent(1), MailResponse.overloaded());
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ServerOverloadedException);
+		}
+	}
+
+	@Test
+	public void failedSendFailsFuture() {
+		Mockito.doThrow(new RuntimeException("down")).when(connection).send(Mockito.any(MailRequest.class));
+		assertTrue(client.getSentMails(1).isCompletedExceptionally());
+	}
+
+	@Test
+	public void completionFailsPendingFutures() throws Exception {
+		CompletableFuture<List<Mail>> future = client.getSentMails(1);
+		reader.onComplete();
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void requestsAfterAnErrorFailRightAway() throws Exception {
+		RuntimeException error = new RuntimeException("receiving failed");
+		reader.onError(error);
+		CompletableFuture<List<Mail>> future = client.getIncomingMail(1);
+		assertTrue(future.isCompletedExceptionally());
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(error, e.getCause());
+		}
+		Mockito.verify(connection, Mockito.never()).send(Mockito.any(MailRequest.class));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeAmountIsIllegal() {
+		client.getAllMail(-1);
+	}
+}
@@ -4,11 +4,14 @@ import static org.junit.Assert.*;
 import il.ac.technion.cs.sd.lib.ClientConnection;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 public class ClientMailApplicationTest {
@@ -170,4 +173,62 @@ public class ClientMailApplicationTest {
 	public void failWithNegativeHowmanyInSentMail() {
 		client.getSentMails(-10);
 	}
+	
+	@Test (expected=ServerOverloadedException.class)
+	public void overloadedServerFailsTheRequest() {
+		MailRequest response = MailRequest.getUnread();
+		response.attachResponse(MailResponse.overloaded());
+		Mockito.when(connection.receiveBlocking()).thenReturn(response);
+		client.getNewMail();
+	}
+	
+	private static MailRequest answer(MailRequest request, int correlationId, MailResponse response) {
+		request.correlationId = correlationId;
+		request.attachResponse(response);
+		return request;
+	}
+	
+	@Test
+	public void pipelinedRequestsAreSentWithoutWaiting() {
+		client.requestContacts(0);
+		client.requestCorrespondences("a", 5);
+		client.requestCorrespondences("b", 5);
+		
+		ArgumentCaptor<MailRequest> sent = ArgumentCaptor.forClass(MailRequest.class);
+		Mockito.verify(connection, Mockito.times(3)).send(sent.capture());
+		Mockito.verify(connection, Mockito.never()).receiveBlocking();
+		Set<Integer> ids = new HashSet<Integer>();
+		for (MailRequest request : sent.getAllValues()) {
+			assertTrue(request.correlationId != 0);
+			ids.add(request.correlationId);
+		}
+		assertEquals(3, ids.size());
+	}
+	
+	@Test
+	public void responsesAreMatchedToTheirRequests() {
+		PendingResult<List<String>> contacts = client.requestContacts(0);
+		PendingResult<List<Mail>> withA = client.requestCorrespondences("a", 5);
+		PendingResult<List<Mail>> withB = client.requestCorrespondences("b", 5);
+		ArgumentCaptor<MailRequest> sent = ArgumentCaptor.forClass(MailRequest.class);
+		Mockito.verify(connection, Mockito.times(3)).send(sent.capture());
+		int contactsId = sent.getAllValues().get(0).correlationId;
+		int withAId = sent.getAllValues().get(1).correlationId;
+		int withBId = sent.getAllValues().get(2).correlationId;
+		
+		List<Mail> mailsWithA = Arrays.asList(new Mail("a", clientAddress, "hi"));
+		List<Mail> mailsWithB = Arrays.asList(new Mail(clientAddress, "b", "yo"));
+		// Answered out of order.
+		Mockito.when(connection.receiveBlocking()).thenReturn(
+				answer(MailRequest.getCorrespondences("b", 5), withBId, MailResponse.withMailResults(mailsWithB)),
+				answer(MailRequest.getContacts(), contactsId, MailResponse.withContactsResults(Arrays.asList("a", "b"))),
+				answer(MailRequest.getCorrespondences("a", 5), withAId, MailResponse.withMailResults(mailsWithA)));
+		
+		assertEquals(mailsWithA, withA.get());
+		assertTrue(contacts.isDone());
+		assertTrue(withB.isDone());
+		assertEquals(Arrays.asList("a", "b"), contacts.get());
+		assertEquals(mailsWithB, withB.get());
+		Mockito.verify(connection, Mockito.times(3)).receiveBlocking();
+	}
 }
@@ -8,17 +8,23 @@ import java.io.Serializable;
  * 
  * The MailRequest may contain a response; When the server gets the request, he attaches his response
  * to the request and sends the request back to the client. 
+ * <br>
+ * A client may tag a request with a correlation id, which comes back with the response, so it can have several
+ * requests in flight and tell which response answers which. The id is not part of the request's equality.
  */
 public class MailRequest implements Serializable {
 
 	private static final long serialVersionUID = 8146517154357247722L;
 	
-	final private RequestType type;
-	final private Mail mail;  // Mail to send with SEND_MAIL request.
-	final private String otherClient;  // Other client to return correspondence, with GET_CORRESPONDANCES request.
-	final private int amount; // The amount of mail requested.
+	// Fields are package-private so MailRequestCodec can read them without going through the checked getters.
+	final RequestType type;
+	final Mail mail;  // Mail to send with SEND_MAIL request.
+	final String otherClient;  // Other client to return correspondence, with GET_CORRESPONDANCES request.
+	final int amount; // The amount of mail requested.
 	// The response that will be attached to the request on its way back to the client:
-	private MailResponse response;
+	MailResponse response;
+	// Set by the client to match the response to the request; 0 if it has none.
+	int correlationId;
 	
 	/**
 	 * Enum class for representing the different types of possible requests.
@@ -95,7 +101,7 @@ public class MailRequest implements Serializable {
 		return new MailRequest(RequestType.GET_CONTACTS);
 	}
 
-	// Private constructors used by the factory methods above.
+	// Private constructors used by the factory methods above (and by MailRequestCodec).
 	private MailRequest(RequestType type, String otherClient) {
 		this(type, -1, null, otherClient);
 	}
@@ -112,7 +118,7 @@ public class MailRequest implements Serializable {
 		this(type, -1, null, null);
 	}
 	
-	private MailRequest(RequestType type, int amount, Mail mail, String otherClient) {
+	MailRequest(RequestType type, int amount, Mail mail, String otherClient) {
 		this.type = type;
 		this.amount = amount;
 		this.mail = mail;
@@ -0,0 +1,342 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import il.ac.technion.cs.sd.lib.Codec;
+import il.ac.technion.cs.sd.lib.WireFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A compact, hand-written binary codec for MailRequest (and the MailResponse attached to it).
+ * This replaces Java serialization on the wire, which writes full class descriptors with every message.
+ * <br>
+ * Encoding:
+ * 1. Request type tag (one byte)
+ * 2. Correlation id, as a varint (0 when the request has none)
+ * 3. Amount, as a zigzag varint (-1 when the request has no amount)
+ * 4. Mail presence flag, followed by the mail's from, to and content strings
+ * 5. Other client string
+ * 6. Response tag (none / mail list / contacts list / overloaded), followed by a varint count and the list items
+ *    (an overloaded response has neither)
+ * <br>
+ * All strings are length-prefixed UTF-8, see {@link WireFormat}. This codec holds no state, and can be shared.
+ * <br>
+ * A codec created with {@link MailRequestCodec#withLazyMailLists()} decodes mail results as a view over the received
+ * buffer: each Mail (and its content string) is only built the first time it is accessed.
+ */
+public class MailRequestCodec implements Codec<MailRequest> {
+
+	private static final MailRequest.RequestType[] TYPES = MailRequest.RequestType.values();
+
+	private static final byte NO_MAIL = 0;
+	private static final byte HAS_MAIL = 1;
+
+	private static final byte NO_RESPONSE = 0;
+	private static final byte MAIL_RESULTS = 1;
+	private static final byte CONTACTS_RESULTS = 2;
+	private static final byte OVERLOADED = 3;
+	
+	private final boolean lazyMailLists;
+	
+	/**
+	 * Create a codec that fully decodes mail results.
+	 */
+	public MailRequestCodec() {
+		this(false);
+	}
+	
+	private MailRequestCodec(boolean lazyMailLists) {
+		this.lazyMailLists = lazyMailLists;
+	}
+	
+	/**
+	 * Create a codec that decodes mail results lazily, as a view over the received buffer. Useful for clients
+	 * that may only look at some of the mails they get.
+	 * @return the codec created.
+	 */
+	public static MailRequestCodec withLazyMailLists() {
+		return new MailRequestCodec(true);
+	}
+
+	/**
+	 * Encodes a MailRequest to an array of bytes.
+	 * @param request the request to encode.
+	 * @return an array of bytes represents the request's data.
+	 */
+	@Override
+	public byte[] encode(MailRequest request) {
+		// The exact size is computed first, so the request is written once into an array of the right size.
+		ByteBuffer buffer = ByteBuffer.allocate(sizeHint(request));
+		encodeTo(request, buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * Decodes a MailRequest from an array of bytes.
+	 * @param b the array of bytes to decode.
+	 * @return the decoded request.
+	 */
+	@Override
+	public MailRequest decode(byte[] b) {
+		return decode(ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Get the exact amount of bytes the request is encoded to.
+	 * @param request the request to measure.
+	 * @return the encoded size in bytes.
+	 */
+	@Override
+	public int sizeHint(MailRequest request) {
+		int $ = sizeOfHead(request);
+		MailResponse response = request.response;
+		if (response != null && response.mailList != null) {
+			for (Mail mail : response.mailList) {
+				$ += sizeOf(mail);
+			}
+		} else if (response != null && response.contactsList != null) {
+			for (String contact : response.contactsList) {
+				$ += WireFormat.sizeOfString(contact);
+			}
+		}
+		return $;
+	}
+
+	/**
+	 * Encodes a request into a buffer.
+	 * @param request the request to encode.
+	 * @param buffer the buffer to write to. Must have at least {@link MailRequestCodec#sizeHint(MailRequest)}
+	 * bytes remaining.
+	 */
+	@Override
+	public void encodeTo(MailRequest request, ByteBuffer buffer) {
+		writeHead(buffer, request);
+		MailResponse response = request.response;
+		if (response != null && response.mailList != null) {
+			for (Mail mail : response.mailList) {
+				write(buffer, mail);
+			}
+		} else if (response != null && response.contactsList != null) {
+			for (String contact : response.contactsList) {
+				WireFormat.writeString(buffer, contact);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a request into a stream, one response item at a time, so a large response is never held
+	 * in memory as a whole.
+	 * @param request the request to encode.
+	 * @param out the stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	@Override
+	public void encodeTo(MailRequest request, OutputStream out) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(sizeOfHead(request));
+		writeHead(head, request);
+		out.write(head.array());
+		MailResponse response = request.response;
+		if (response != null && response.mailList != null) {
+			for (Mail mail : response.mailList) {
+				ByteBuffer buffer = ByteBuffer.allocate(sizeOf(mail));
+				write(buffer, mail);
+				out.write(buffer.array());
+			}
+		} else if (response != null && response.contactsList != null) {
+			for (String contact : response.contactsList) {
+				ByteBuffer buffer = ByteBuffer.allocate(WireFormat.sizeOfString(contact));
+				WireFormat.writeString(buffer, contact);
+				out.write(buffer.array());
+			}
+		}
+	}
+
+	/**
+	 * Get the size of everything in the request, up to the items of its response.
+	 */
+	private static int sizeOfHead(MailRequest request) {
+		int $ = 1 + WireFormat.sizeOfVarInt(request.correlationId)
+				+ WireFormat.sizeOfVarInt(WireFormat.zigZag(request.amount)) + 1;
+		if (request.mail != null) {
+			$ += sizeOf(request.mail);
+		}
+		$ += WireFormat.sizeOfString(request.otherClient);
+		$ += 1;
+		MailResponse response = request.response;
+		if (response != null && response.mailList != null) {
+			$ += WireFormat.sizeOfVarInt(response.mailList.size());
+		} else if (response != null && response.contactsList != null) {
+			$ += WireFormat.sizeOfVarInt(response.contactsList.size());
+		}
+		return $;
+	}
+
+	/**
+	 * Write everything in the request, up to the items of its response.
+	 */
+	private static void writeHead(ByteBuffer buffer, MailRequest request) {
+		buffer.put((byte)request.type.ordinal());
+		WireFormat.writeVarInt(buffer, request.correlationId);
+		WireFormat.writeVarInt(buffer, WireFormat.zigZag(request.amount));
+		if (request.mail != null) {
+			buffer.put(HAS_MAIL);
+			write(buffer, request.mail);
+		} else {
+			buffer.put(NO_MAIL);
+		}
+		WireFormat.writeString(buffer, request.otherClient);
+
+		MailResponse response = request.response;
+		if (response != null && response.mailList != null) {
+			buffer.put(MAIL_RESULTS);
+			WireFormat.writeVarInt(buffer, response.mailList.size());
+		} else if (response != null && response.contactsList != null) {
+			buffer.put(CONTACTS_RESULTS);
+			WireFormat.writeVarInt(buffer, response.contactsList.size());
+		} else if (response != null && response.overloaded) {
+			buffer.put(OVERLOADED);
+		} else {
+			buffer.put(NO_RESPONSE);
+		}
+	}
+
+	/**
+	 * Decodes a request from a buffer, starting at its current position.
+	 * @param buffer the buffer to decode.
+	 * @return the decoded request.
+	 */
+	@Override
+	public MailRequest decode(ByteBuffer buffer) {
+		int tag = buffer.get();
+		if (tag < 0 || tag >= TYPES.length) {
+			throw new IllegalArgumentException("Unknown request type tag: " + tag);
+		}
+		int correlationId = WireFormat.readVarInt(buffer);
+		int amount = WireFormat.unZigZag(WireFormat.readVarInt(buffer));
+		Mail mail = buffer.get() == HAS_MAIL ? readMail(buffer) : null;
+		String otherClient = WireFormat.readString(buffer);
+		MailRequest $ = new MailRequest(TYPES[tag], amount, mail, otherClient);
+		$.correlationId = correlationId;
+
+		byte responseTag = buffer.get();
+		switch (responseTag) {
+		case MAIL_RESULTS: {
+			int count = readCount(buffer);
+			List<Mail> mailList;
+			if (lazyMailLists) {
+				mailList = new LazyMailList(buffer, count);
+			} else {
+				mailList = new ArrayList<Mail>(count);
+				for (int i = 0; i < count; ++i) {
+					mailList.add(readMail(buffer));
+				}
+			}
+			$.attachResponse(MailResponse.withMailResults(mailList));
+			break;
+		}
+		case CONTACTS_RESULTS: {
+			int count = readCount(buffer);
+			List<String> contactsList = new ArrayList<String>(count);
+			for (int i = 0; i < count; ++i) {
+				contactsList.add(WireFormat.readString(buffer));
+			}
+			$.attachResponse(MailResponse.withContactsResults(contactsList));
+			break;
+		}
+		case OVERLOADED:
+			$.attachResponse(MailResponse.overloaded());
+			break;
+		case NO_RESPONSE:
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown response tag: " + responseTag);
+		}
+		return $;
+	}
+
+	private static int sizeOf(Mail mail) {
+		return WireFormat.sizeOfString(mail.from) + WireFormat.sizeOfString(mail.to)
+				+ WireFormat.sizeOfString(mail.content);
+	}
+
+	private static void write(ByteBuffer buffer, Mail mail) {
+		WireFormat.writeString(buffer, mail.from);
+		WireFormat.writeString(buffer, mail.to);
+		WireFormat.writeString(buffer, mail.content);
+	}
+
+	private static Mail readMail(ByteBuffer buffer) {
+		String from = WireFormat.readString(buffer);
+		String to = WireFormat.readString(buffer);
+		String content = WireFormat.readString(buffer);
+		return new Mail(from, to, content);
+	}
+
+	/**
+	 * Read a list size, making sure a corrupt message can't make us pre-allocate a huge list.
+	 */
+	private static int readCount(ByteBuffer buffer) {
+		int $ = WireFormat.readVarInt(buffer);
+		if ($ < 0 || $ > buffer.remaining()) {
+			// Every item takes at least one byte.
+			throw new IllegalArgumentException("Invalid list size: " + $);
+		}
+		return $;
+	}
+
+	/**
+	 * A list of mails that are decoded from the received buffer on first access.
+	 * Only the start of each mail is found up front, by skipping over its strings.
+	 * Serialized as a plain list.
+	 */
+	private static class LazyMailList extends AbstractList<Mail> implements RandomAccess, Serializable {
+		private static final long serialVersionUID = -4177398472834104585L;
+
+		private final transient ByteBuffer buffer;
+		private final transient int[] offsets;
+		private final transient Mail[] mails;
+
+		/**
+		 * Find the given amount of mails, starting at the buffer's position, and advance the buffer past them.
+		 */
+		LazyMailList(ByteBuffer buffer, int count) {
+			this.buffer = buffer.duplicate();
+			this.offsets = new int[count];
+			this.mails = new Mail[count];
+			for (int i = 0; i < count; ++i) {
+				offsets[i] = buffer.position();
+				WireFormat.skipString(buffer);
+				WireFormat.skipString(buffer);
+				WireFormat.skipString(buffer);
+			}
+		}
+
+		@Override
+		public Mail get(int index) {
+			Mail $ = mails[index];
+			if ($ == null) {
+				// Decoding the same mail twice from different threads is harmless.
+				ByteBuffer view = buffer.duplicate();
+				view.position(offsets[index]);
+				$ = readMail(view);
+				mails[index] = $;
+			}
+			return $;
+		}
+
+		@Override
+		public int size() {
+			return offsets.length;
+		}
+
+		private Object writeReplace() {
+			return new ArrayList<Mail>(this);
+		}
+	}
+}
@@ -5,13 +5,18 @@ import java.util.List;
 
 /**
  * A response that can be attached to the MailRequest. 
+ * <br>
+ * A server that is too busy to handle a request answers it with an overloaded response (see
+ * {@link MailResponse#overloaded()}), which has no results.
  */
 public class MailResponse implements Serializable {
 
 	private static final long serialVersionUID = 4588924529947508861L;
 	
-	private final List<Mail> mailList;
-	private final List<String> contactsList;
+	// Package-private so MailRequestCodec can tell which list is attached.
+	final List<Mail> mailList;
+	final List<String> contactsList;
+	final boolean overloaded;
 	
 	/**
 	 * Create a response containing a list of mail.
@@ -31,16 +36,40 @@ public class MailResponse implements Serializable {
 		return new MailResponse(null, contactsList);
 	}
 	
-	private MailResponse(List<Mail> mailList, List<String> contactsList) {
+	/**
+	 * Create a response telling the client that the server was too busy to handle its request.
+	 * @return the overloaded response.
+	 */
+	public static MailResponse overloaded() {
+		return new MailResponse(null, null, true);
+	}
+	
+	MailResponse(List<Mail> mailList, List<String> contactsList) {
+		this(mailList, contactsList, false);
+	}
+	
+	private MailResponse(List<Mail> mailList, List<String> contactsList, boolean overloaded) {
 		this.mailList = mailList;
 		this.contactsList = contactsList;
+		this.overloaded = overloaded;
+	}
+	
+	/**
+	 * @return true if the server was too busy to handle the request, and this response has no results.
+	 */
+	public boolean isOverloaded() {
+		return overloaded;
 	}
 	
 	/**
 	 * Get the mail list in the response. An exception is thrown in case there is no mail attached. 
 	 * @return The list of mails contained in this response.
+	 * @throws ServerOverloadedException if the server was too busy to handle the request.
 	 */
 	public List<Mail> getMailResults() {
+		if (overloaded) {
+			throw new ServerOverloadedException();
+		}
 		if (mailList == null) {
 			throw new RuntimeException("No mail results in this response. Check the containing request type.");
 		}
@@ -50,8 +79,12 @@ public class MailResponse implements Serializable {
 	/**
 	 * Get the contacts list in the response. An exception is thrown in case there are no contacts attached.
 	 * @return The list of contacts contained in this Envelope.
+	 * @throws ServerOverloadedException if the server was too busy to handle the request.
 	 */
 	public List<String> getContactsResults() {
+		if (overloaded) {
+			throw new ServerOverloadedException();
+		}
 		if (contactsList == null) {
 			throw new RuntimeException("No contacts results in this response. Check the containing request type.");
 		}
@@ -67,6 +100,8 @@ public class MailResponse implements Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		MailResponse other = (MailResponse) obj;
+		if (overloaded != other.overloaded)
+			return false;
 		if (mailList == null) {
 			if (other.mailList != null)
 				return false;
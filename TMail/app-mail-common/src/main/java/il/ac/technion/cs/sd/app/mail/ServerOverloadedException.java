@@ -0,0 +1,14 @@
+package il.ac.technion.cs.sd.app.mail;
+
+/**
+ * Thrown when the server was too busy to handle a request, and answered it right away instead of letting it wait.
+ * The request can be tried again later.
+ */
+public class ServerOverloadedException extends RuntimeException {
+
+	private static final long serialVersionUID = -2305541735712834153L;
+
+	public ServerOverloadedException() {
+		super("The server is overloaded, try again later");
+	}
+}
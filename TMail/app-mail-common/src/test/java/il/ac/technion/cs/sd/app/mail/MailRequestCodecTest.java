@@ -0,0 +1,177 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.*;
+import il.ac.technion.cs.sd.lib.SerializeCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MailRequestCodecTest {
+
+	private final MailRequestCodec codec = new MailRequestCodec();
+
+	private MailRequest roundTrip(MailRequest request) {
+		byte[] b = codec.encode(request);
+		assertEquals("size should be computed exactly", b.length, codec.sizeHint(request));
+		return codec.decode(b);
+	}
+
+	@Test
+	public void sendMailRequestEncodedAndDecodedProperly() {
+		MailRequest request = MailRequest.sendMail(new Mail("from", "to", "Hello there!"));
+		assertEquals(request, roundTrip(request));
+	}
+
+	@Test
+	public void requestsWithoutResponseEncodedAndDecodedProperly() {
+		for (MailRequest request : Arrays.asList(MailRequest.getMailSent(3), MailRequest.getIncoming(0),
+				MailRequest.getAllMail(Integer.MAX_VALUE), MailRequest.getCorrespondences("other", 12),
+				MailRequest.getUnread(), MailRequest.getContacts())) {
+			assertEquals(request, roundTrip(request));
+		}
+	}
+
+	@Test
+	public void mailResponseEncodedAndDecodedProperly() {
+		MailRequest request = MailRequest.getAllMail(2);
+		request.attachResponse(MailResponse.withMailResults(Arrays.asList(
+				new Mail("a", "b", "c"), new Mail("b", "a", ""))));
+		MailRequest decoded = roundTrip(request);
+		assertEquals(request, decoded);
+		assertEquals(request.getResponse().getMailResults(), decoded.getResponse().getMailResults());
+	}
+
+	@Test
+	public void contactsResponseEncodedAndDecodedProperly() {
+		MailRequest request = MailRequest.getContacts();
+		request.attachResponse(MailResponse.withContactsResults(Arrays.asList("Haim", "Moshe")));
+		assertEquals(request, roundTrip(request));
+	}
+
+	@Test
+	public void emptyResponseIsNotConfusedWithNoResponse() {
+		MailRequest request = MailRequest.getUnread();
+		request.attachResponse(MailResponse.withMailResults(new ArrayList<Mail>()));
+		MailRequest decoded = roundTrip(request);
+		assertTrue(decoded.getResponse().getMailResults().isEmpty());
+	}
+
+	@Test
+	public void overloadedResponseEncodedAndDecodedProperly() {
+		MailRequest request = MailRequest.getIncoming(5);
+		request.attachResponse(MailResponse.overloaded());
+		MailRequest decoded = roundTrip(request);
+		assertEquals(request, decoded);
+		assertTrue(decoded.getResponse().isOverloaded());
+	}
+
+	@Test (expected=ServerOverloadedException.class)
+	public void overloadedResponseHasNoResults() {
+		MailResponse.overloaded().getMailResults();
+	}
+
+	@Test
+	public void correlationIdSurvivesRoundTrip() {
+		MailRequest request = MailRequest.getContacts();
+		request.correlationId = Integer.MAX_VALUE;
+		request.attachResponse(MailResponse.withContactsResults(Arrays.asList("Haim")));
+		assertEquals(Integer.MAX_VALUE, roundTrip(request).correlationId);
+	}
+
+	@Test
+	public void nonAsciiContentSurvivesRoundTrip() {
+		String content = "\u05e9\u05dc\u05d5\u05dd caf\u00e9 \ud83d\udce7";
+		MailRequest request = MailRequest.sendMail(new Mail("\u00e9", "to", content));
+		assertEquals(content, roundTrip(request).getMail().content);
+	}
+
+	@Test
+	public void nullMailFieldsSurviveRoundTrip() {
+		MailRequest request = MailRequest.sendMail(new Mail("from", null, null));
+		assertEquals(request, roundTrip(request));
+	}
+
+	@Test
+	public void encodingIsMuchSmallerThanSerialization() {
+		List<Mail> mails = new ArrayList<Mail>();
+		for (int i = 0; i < 20; ++i) {
+			mails.add(new Mail("client" + i, "other", "message number " + i));
+		}
+		MailRequest request = MailRequest.getAllMail(20);
+		request.attachResponse(MailResponse.withMailResults(mails));
+
+		int compact = codec.encode(request).length;
+		int serialized = new SerializeCodec<MailRequest>().encode(request).length;
+		assertTrue(compact * 2 < serialized);
+		assertTrue(codec.encode(MailRequest.getUnread()).length < 8);
+	}
+
+	@Test
+	public void streamedEncodingMatchesEncode() throws IOException {
+		Mail received = codec.decode(codec.encode(MailRequest.sendMail(new Mail("x", "y", "z")))).getMail();
+		MailRequest mailResults = MailRequest.getAllMail(2);
+		mailResults.attachResponse(MailResponse.withMailResults(Arrays.asList(new Mail("a", "b", "c"), received)));
+		MailRequest contactsResults = MailRequest.getContacts();
+		contactsResults.attachResponse(MailResponse.withContactsResults(Arrays.asList("Haim", "Moshe")));
+
+		for (MailRequest request : Arrays.asList(mailResults, contactsResults, MailRequest.getUnread(),
+				MailRequest.sendMail(new Mail("from", "to", "Hello there!")))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			codec.encodeTo(request, out);
+			assertArrayEquals(codec.encode(request), out.toByteArray());
+		}
+	}
+
+	@Test
+	public void lazyMailListDecodesEqualMails() {
+		MailRequestCodec lazy = MailRequestCodec.withLazyMailLists();
+		MailRequest request = MailRequest.getAllMail(3);
+		List<Mail> mails = Arrays.asList(new Mail("a", "b", "c"), new Mail("b", null, "\u05e9"), new Mail("c", "a", ""));
+		request.attachResponse(MailResponse.withMailResults(mails));
+
+		MailRequest decoded = lazy.decode(codec.encode(request));
+		assertEquals(request, decoded);
+		assertEquals(mails, decoded.getResponse().getMailResults());
+	}
+
+	@Test
+	public void lazyMailIsOnlyDecodedOnce() {
+		MailRequestCodec lazy = MailRequestCodec.withLazyMailLists();
+		MailRequest request = MailRequest.getIncoming(2);
+		request.attachResponse(MailResponse.withMailResults(Arrays.asList(
+				new Mail("a", "b", "c"), new Mail("b", "a", "d"))));
+
+		List<Mail> mails = lazy.decode(codec.encode(request)).getResponse().getMailResults();
+		assertEquals(2, mails.size());
+		assertSame(mails.get(1), mails.get(1));
+		assertEquals("d", mails.get(1).content);
+	}
+
+	@Test
+	public void lazyMailListIsSerializedAsAPlainList() {
+		MailRequest request = MailRequest.getAllMail(1);
+		request.attachResponse(MailResponse.withMailResults(Arrays.asList(new Mail("a", "b", "c"))));
+		MailRequest lazyDecoded = MailRequestCodec.withLazyMailLists().decode(codec.encode(request));
+
+		SerializeCodec<MailRequest> serializer = new SerializeCodec<MailRequest>();
+		assertEquals(request, serializer.decode(serializer.encode(lazyDecoded)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedLazyMailListIsRejected() {
+		MailRequest request = MailRequest.getAllMail(1);
+		request.attachResponse(MailResponse.withMailResults(Arrays.asList(new Mail("a", "b", "some content"))));
+		byte[] b = codec.encode(request);
+		MailRequestCodec.withLazyMailLists().decode(Arrays.copyOf(b, b.length - 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownTypeTagIsRejected() {
+		codec.decode(new byte[] { 100, 0, 0, 0, 0 });
+	}
+}
@@ -0,0 +1,88 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A list that only grows at its end, which any thread can read while another appends to it.
+ * <br>
+ * The elements are kept in fixed-size chunks that are never moved, so appending never copies them (only the small
+ * array of chunks is copied, when it fills up), and a prefix of the list never changes once it is there. Taking a view
+ * of the first n elements (see {@link AppendOnlyList#prefix(int)}) is thus cheap, and the view stays the same however
+ * much is appended later.
+ * <br>
+ * Only one thread at a time may append; readers need no synchronization.
+ * @param <T> The type of the elements.
+ */
+class AppendOnlyList<T> extends AbstractList<T> implements RandomAccess {
+
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// Written before size, so a reader that sees a size sees the chunks that hold its elements.
+	private volatile Object[][] chunks = new Object[1][];
+	private volatile int size;
+
+	/**
+	 * Append an element. Must not be called by two threads at once.
+	 * @param element the element.
+	 * @return true.
+	 */
+	@Override
+	public boolean add(T element) {
+		int index = size;
+		int chunk = index >>> CHUNK_BITS;
+		Object[][] current = chunks;
+		if (chunk == current.length) {
+			Object[][] grown = new Object[current.length * 2][];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			chunks = current = grown;
+		}
+		if (null == current[chunk]) {
+			current[chunk] = new Object[CHUNK_SIZE];
+		}
+		current[chunk][index & CHUNK_MASK] = element;
+		size = index + 1;
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return (T) chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param n the amount of elements, at most the size of this list.
+	 * @return a view of the first n elements, which does not change as more are appended.
+	 */
+	List<T> prefix(int n) {
+		if (n < 0 || n > size) {
+			throw new IllegalArgumentException();
+		}
+		return new AbstractList<T>() {
+			@Override
+			public T get(int index) {
+				if (index >= n) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + n);
+				}
+				return AppendOnlyList.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return n;
+			}
+		};
+	}
+}
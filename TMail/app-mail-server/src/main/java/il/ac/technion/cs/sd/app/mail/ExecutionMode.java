@@ -0,0 +1,34 @@
+package il.ac.technion.cs.sd.app.mail;
+
+/**
+ * How a {@link ServerMailApplication} handles the requests it receives.
+ */
+public enum ExecutionMode {
+	/**
+	 * A single thread receives each request, handles it and sends the response, before receiving the next one.
+	 */
+	SERIAL,
+	/**
+	 * Like {@link ExecutionMode#SERIAL}, but requests are received in bursts: a single thread handles all the requests
+	 * that arrived together, in order, while the responses are sent by another thread. Responses to the same client
+	 * that pile up are sent together, as a single batch.
+	 */
+	BATCHED,
+	/**
+	 * A single thread receives the requests, and hands them to a pool of worker threads. Requests of the same client
+	 * are handled one at a time, in the order they were received.
+	 */
+	WORKER_POOL,
+	/**
+	 * The mailboxes are partitioned into shards by client address, each owned by a single thread. A single thread
+	 * receives the requests, and hands each to the shard of its client; a new mail is handed to the shards of both its
+	 * sender and its recipient. Requests of the same client are handled in the order they were received.
+	 */
+	SHARDED,
+	/**
+	 * A single thread receives the requests, and each request is handled on a virtual thread of its own, which parks
+	 * while it blocks (e.g. on sending the response). Requests of the same client are handled one at a time, in the
+	 * order they were received. Requires Java 21 or later.
+	 */
+	VIRTUAL_THREADS
+}
@@ -0,0 +1,176 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Commits records on a thread of its own, a group at a time, so a costly commit (e.g. syncing a file to the disk) is
+ * shared by all the records that piled up while the previous one was made.
+ * <br>
+ * Whenever the committing thread is free, it takes the records that were submitted, waiting up to a max delay for more
+ * to join them, and commits them together, in the order they were submitted. The threads that submit records never
+ * wait; each gets a future completed once its record is committed.
+ * @param <Record> The type of the records committed.
+ */
+class GroupCommit<Record> {
+
+	final private BlockingQueue<Pending<Record>> queue = new LinkedBlockingQueue<Pending<Record>>();
+	final private int maxBatch;
+	final private long maxDelayNanos;
+	final private Consumer<List<Record>> commit;
+	final private Thread thread;
+
+	// Queued last, once closed.
+	final private Pending<Record> end = new Pending<Record>(null);
+
+	// Guards closed, so nothing is queued after the end.
+	final private Object lock = new Object();
+	private boolean closed;
+
+	/**
+	 * Create a group commit, and start its thread.
+	 * @param name a name for the committing thread.
+	 * @param maxBatch the most records committed together.
+	 * @param maxDelayNanos how long the first record of a group may wait for more to join it; with 0, a group is only
+	 * made of the records that piled up while the previous group was committed.
+	 * @param commit commits records, as a single group.
+	 */
+	GroupCommit(String name, int maxBatch, long maxDelayNanos, Consumer<List<Record>> commit) {
+		if (maxBatch <= 0 || maxDelayNanos < 0 || null == commit) {
+			throw new IllegalArgumentException();
+		}
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = maxDelayNanos;
+		this.commit = commit;
+		this.thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Submit a record to be committed, after all the records previously submitted.
+	 * @param record the record.
+	 * @return a future completed once the record was committed, or completed exceptionally if committing it failed or
+	 * this was closed.
+	 */
+	CompletableFuture<Void> submit(Record record) {
+		Pending<Record> pending = new Pending<Record>(record);
+		synchronized (lock) {
+			if (closed) {
+				pending.committed.completeExceptionally(new IllegalStateException("group commit is closed"));
+			} else {
+				queue.add(pending);
+			}
+		}
+		return pending.committed;
+	}
+
+	/**
+	 * Commit all the records already submitted, and stop the committing thread. Records submitted later are not
+	 * committed.
+	 */
+	void close() {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			queue.add(end);
+		}
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<Pending<Record>> group = new ArrayList<Pending<Record>>();
+		while (true) {
+			try {
+				group.add(queue.take());
+				gather(group);
+			} catch (InterruptedException e) {
+				// Only close() stops this thread; commit what was gathered so far.
+				if (group.isEmpty()) {
+					continue;
+				}
+			}
+			// Nothing is queued after the end.
+			boolean last = group.get(group.size() - 1) == end;
+			if (last) {
+				group.remove(group.size() - 1);
+			}
+			commit(group);
+			group.clear();
+			if (last) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Add records to a group, until it is full, the end is reached, or the first record waited the max delay.
+	 */
+	private void gather(List<Pending<Record>> group) throws InterruptedException {
+		long deadline = System.nanoTime() + maxDelayNanos;
+		while (group.size() < maxBatch && group.get(group.size() - 1) != end) {
+			if (queue.drainTo(group, maxBatch - group.size()) > 0) {
+				continue;
+			}
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return;
+			}
+			Pending<Record> next = queue.poll(left, TimeUnit.NANOSECONDS);
+			if (null == next) {
+				return;
+			}
+			group.add(next);
+		}
+	}
+
+	private void commit(List<Pending<Record>> group) {
+		if (group.isEmpty()) {
+			return;
+		}
+		List<Record> records = new ArrayList<Record>(group.size());
+		for (Pending<Record> pending : group) {
+			records.add(pending.record);
+		}
+		try {
+			commit.accept(records);
+		} catch (RuntimeException e) {
+			for (Pending<Record> pending : group) {
+				pending.committed.completeExceptionally(e);
+			}
+			return;
+		}
+		for (Pending<Record> pending : group) {
+			pending.committed.complete(null);
+		}
+	}
+
+	/**
+	 * A record waiting to be committed.
+	 */
+	private static class Pending<Record> {
+		final Record record;
+		final CompletableFuture<Void> committed = new CompletableFuture<Void>();
+
+		Pending(Record record) {
+			this.record = record;
+		}
+	}
+}
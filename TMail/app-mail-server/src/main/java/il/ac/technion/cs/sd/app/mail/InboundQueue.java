@@ -0,0 +1,181 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A bounded queue of the requests received by the server, waiting to be handled. A request holds its place from the
+ * moment it is admitted until it is done being handled (see {@link InboundQueue#done(int)}), so the capacity bounds
+ * all the requests the server has on hand, including those already handed to workers.
+ * <br>
+ * What happens to requests that don't fit is decided by an {@link OverloadPolicy}.
+ */
+class InboundQueue {
+
+	/**
+	 * A request admitted to the queue.
+	 */
+	static class Inbound {
+		final String client;
+		final MailRequest request;
+		final long admittedAt = System.nanoTime();
+
+		Inbound(String client, MailRequest request) {
+			this.client = client;
+			this.request = request;
+		}
+
+		boolean isWrite() {
+			return request.getType() == MailRequest.RequestType.SEND_MAIL;
+		}
+	}
+
+	final private int capacity;
+	final private OverloadPolicy policy;
+	final private long maxWaitNanos;
+
+	// Guarded by this.
+	final private Deque<Inbound> waiting = new ArrayDeque<Inbound>();
+	private int taken;
+	private boolean closed;
+
+	/**
+	 * Create an empty queue.
+	 * @param capacity the most requests admitted and not done at any time.
+	 * @param policy what to do with requests that don't fit.
+	 * @param maxWaitNanos how long a request may wait before it is expired, if the policy drops expired requests.
+	 */
+	InboundQueue(int capacity, OverloadPolicy policy, long maxWaitNanos) {
+		if (capacity <= 0 || null == policy || maxWaitNanos < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	/**
+	 * Admit a received request. A request other than a new mail is rejected if the queue is full. A new mail takes the
+	 * place of the newest waiting request if the policy prioritizes writes; otherwise, or if only mails are waiting,
+	 * this waits for room.
+	 * @param client the client that sent the request.
+	 * @param request the request.
+	 * @return the request rejected to keep the bound, either the given one or one that was waiting; or an empty optional
+	 * if none was. Once the queue is closed, every request but a new mail is rejected, and new mails are dropped.
+	 */
+	synchronized Optional<Inbound> admit(String client, MailRequest request) {
+		Inbound in = new Inbound(client, request);
+		if (!in.isWrite()) {
+			if (closed || isFull()) {
+				return Optional.of(in);
+			}
+			add(in);
+			return Optional.empty();
+		}
+		Optional<Inbound> $ = Optional.empty();
+		if (isFull() && policy == OverloadPolicy.PRIORITIZE_WRITES) {
+			$ = evictNewestRead();
+		}
+		boolean interrupted = false;
+		while (isFull() && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (!closed) {
+			add(in);
+		}
+		return $;
+	}
+
+	/**
+	 * Take the oldest waiting request, waiting for one if there are none. Once it is handled,
+	 * {@link InboundQueue#done(int)} must be called.
+	 * @return the request, or null if the queue was closed and nothing is waiting.
+	 */
+	synchronized Inbound take() {
+		List<Inbound> $ = takeAll(1);
+		return $.isEmpty() ? null : $.get(0);
+	}
+
+	/**
+	 * Take the waiting requests, oldest first, waiting for one if there are none. Once they are handled,
+	 * {@link InboundQueue#done(int)} must be called.
+	 * @param max the most requests to take.
+	 * @return the requests, which are only none if the queue was closed and nothing is waiting.
+	 */
+	synchronized List<Inbound> takeAll(int max) {
+		boolean interrupted = false;
+		while (waiting.isEmpty() && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		List<Inbound> $ = new ArrayList<Inbound>(Math.min(max, waiting.size()));
+		while ($.size() < max && !waiting.isEmpty()) {
+			$.add(waiting.poll());
+		}
+		taken += $.size();
+		return $;
+	}
+
+	/**
+	 * Free the places of requests that were taken, and are done being handled (or were rejected as expired).
+	 * @param count the amount of requests.
+	 */
+	synchronized void done(int count) {
+		taken -= count;
+		notifyAll();
+	}
+
+	/**
+	 * @param in a request taken from this queue.
+	 * @return true if the request should be rejected rather than handled, since it waited too long.
+	 */
+	boolean isExpired(Inbound in) {
+		return policy == OverloadPolicy.DROP_EXPIRED && !in.isWrite()
+				&& System.nanoTime() - in.admittedAt > maxWaitNanos;
+	}
+
+	/**
+	 * Stop admitting requests. The requests already waiting can still be taken.
+	 */
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	private boolean isFull() {
+		return waiting.size() + taken >= capacity;
+	}
+
+	private void add(Inbound in) {
+		waiting.add(in);
+		notifyAll();
+	}
+
+	private Optional<Inbound> evictNewestRead() {
+		for (Iterator<Inbound> it = waiting.descendingIterator(); it.hasNext();) {
+			Inbound in = it.next();
+			if (!in.isWrite()) {
+				it.remove();
+				return Optional.of(in);
+			}
+		}
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,526 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the mail history of a server as a journal: an append-only file, with a record for each mail as it is sent
+ * (see {@link JournalDataSaver#appendMail(MailEntry)}), and for each mail as it is read (see
+ * {@link JournalDataSaver#appendRead(MailEntry)}). Each record is written to the file right away, so nothing is lost
+ * if the server does not stop cleanly, and there is nothing left to save when it does.
+ * <br>
+ * A record is laid out as:
+ * <ol>
+ * <li>The length of its body (int).</li>
+ * <li>The CRC32 of its body (int).</li>
+ * <li>The body: its kind (byte), followed by the sender, recipient and content of a mail (each an int length and the
+ * UTF-8 bytes), by the index of a mail that was read (int), or by the index of the first mail of the journal (int).
+ * Mails are indexed from 0, in the order they were sent.</li>
+ * </ol>
+ * A record that was cut short or is corrupt (e.g. by a crash while it was written) ends the journal; it is dropped,
+ * with anything after it, when the journal is loaded.
+ * <br>
+ * To keep the journal from growing without bound, a snapshot of all the mails can be taken (see
+ * {@link JournalDataSaver#snapshot()}), after which the journal starts over, from the index of its first mail.
+ * Loading then reads the snapshot, and replays only the journal that follows it. If the server crashes after a
+ * snapshot is written, but before the journal starts over, the mails of the journal that are already in the snapshot
+ * are skipped.
+ * <br>
+ * A snapshot is written while mails go on being appended and read: it is taken of the mails appended up to a cut, which
+ * the journal keeps, and the records appended after the cut are carried over when the journal starts over. Reading a
+ * mail only ever marks it as read, and marking it again changes nothing, so a mail read around the cut ends up read
+ * whether the snapshot caught it read or not.
+ * <br>
+ * Records are handed to the operating system as they are appended, which keeps them if the server crashes, but not
+ * necessarily if the machine does. To keep them through that as well, records can be synced to the disk in groups
+ * (see {@link JournalDataSaver#groupCommit(int, long, TimeUnit)}): a single sync is shared by all the records appended
+ * while the previous one was made, so appending at a high rate doesn't wait for the disk on each record.
+ * <br>
+ * This class is thread-safe.
+ */
+public class JournalDataSaver implements DataSaver<List<MailEntry>> {
+
+	private static final byte MAIL = 1;
+	private static final byte READ = 2;
+	private static final byte BASE = 3;
+
+	// Length and CRC32 of the body.
+	private static final int HEADER_SIZE = 8;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	final private Path path;
+	final private Path snapshotPath;
+
+	// Opened on the first write, and closed by close. Groups are written by a thread of their own, hence the lock.
+	private FileChannel channel;
+	final private Object channelLock = new Object();
+
+	// Syncs the records in groups, once started by an append, if group commit is on (maxBatch > 0).
+	private GroupCommit<ByteBuffer> commits;
+	private int maxBatch;
+	private long maxDelayNanos;
+	// Completed once the last record appended is synced; the records before it are synced first.
+	private CompletableFuture<Void> lastAppend = CompletableFuture.completedFuture(null);
+	// The mails in the snapshot and the journal, by index; the next snapshot is taken of a prefix of these.
+	private AppendOnlyList<MailEntry> mails = new AppendOnlyList<MailEntry>();
+	// Held while a snapshot is taken, and while the journal is replaced (by save, load or clean), so they don't mix.
+	final private Object snapshotLock = new Object();
+
+	/**
+	 * Creates a new journal.
+	 * @param fileName the filename to use to save and load the journal; its snapshot is saved next to it.
+	 */
+	JournalDataSaver(String fileName) {
+		this.path = new File(fileName).toPath();
+		this.snapshotPath = new File(fileName + ".snapshot").toPath();
+	}
+
+	/**
+	 * Sync the records to the disk in groups, from the next append on. A group is synced once it has maxBatch
+	 * records, or once its first record waited maxDelay, whichever comes first; with no delay, a group is made of the
+	 * records appended while the previous group was synced.
+	 * @param maxBatch the most records synced together.
+	 * @param maxDelay how long a record may wait for others to join its group.
+	 * @param unit the unit of maxDelay.
+	 */
+	public synchronized void groupCommit(int maxBatch, long maxDelay, TimeUnit unit) {
+		if (maxBatch <= 0 || maxDelay < 0 || null == unit) {
+			throw new IllegalArgumentException();
+		}
+		closeCommits();
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+	}
+
+	/**
+	 * Append a record of a new mail, and assign the mail its index in the journal.
+	 * @param entry the entry of the mail.
+	 * @return a future completed once the record is synced to the disk, if group commit is on; otherwise, a completed
+	 * future.
+	 */
+	public synchronized CompletableFuture<Void> appendMail(MailEntry entry) {
+		entry.setIndex(mails.size());
+		mails.add(entry);
+		return append(mailRecord(entry.getMail()));
+	}
+
+	/**
+	 * Append a record of a mail that was read.
+	 * @param entry the entry of the mail, which was previously appended or loaded.
+	 * @return a future completed once the record is synced to the disk, if group commit is on; otherwise, a completed
+	 * future.
+	 */
+	public synchronized CompletableFuture<Void> appendRead(MailEntry entry) {
+		if (entry.getIndex() < 0) {
+			throw new IllegalArgumentException("the mail is not in the journal");
+		}
+		return append(readRecord(entry.getIndex()));
+	}
+
+	private CompletableFuture<Void> append(ByteBuffer record) {
+		if (maxBatch <= 0) {
+			write(record);
+			return CompletableFuture.completedFuture(null);
+		}
+		if (null == commits) {
+			commits = new GroupCommit<ByteBuffer>("journal-" + path.getFileName(), maxBatch, maxDelayNanos,
+					this::writeAndSync);
+		}
+		lastAppend = commits.submit(record);
+		return lastAppend;
+	}
+
+	/**
+	 * @return a future completed once every record appended so far is synced to the disk, or completed exceptionally
+	 * if syncing the last of them failed; a completed future if group commit was never on.
+	 */
+	public synchronized CompletableFuture<Void> synced() {
+		return lastAppend;
+	}
+
+	/**
+	 * Take a snapshot of all the mails appended or loaded, with whether each was read, and start the journal over from
+	 * the first mail that is not in the snapshot. Appends only wait for the records of the pending group (if group
+	 * commit is on) to be synced, and for the records appended while the snapshot was written to be carried over to
+	 * the new journal.
+	 */
+	public void snapshot() {
+		synchronized (snapshotLock) {
+			AppendOnlyList<MailEntry> taken;
+			int count;
+			long cut;
+			synchronized (this) {
+				// The records still waiting for their group are written first, so the cut is past every mail counted.
+				closeCommits();
+				taken = mails;
+				count = taken.size();
+				cut = journalEnd();
+			}
+			MailSnapshot.write(snapshotPath, taken.prefix(count));
+			synchronized (this) {
+				// The journal up to the cut is in the snapshot.
+				startJournal(count, cut);
+			}
+		}
+	}
+
+	/**
+	 * Replace the saved mails with a snapshot of the given ones, in order, along with whether each was read, and start
+	 * the journal over. The mails are assigned their indices in the snapshot.
+	 * @param data the mails to save.
+	 */
+	@Override
+	public void save(List<MailEntry> data) {
+		synchronized (snapshotLock) {
+			synchronized (this) {
+				close();
+				int index = 0;
+				for (MailEntry entry : data) {
+					entry.setIndex(index++);
+				}
+				MailSnapshot.write(snapshotPath, data);
+				// Once the snapshot is written, the journal is only needed for what follows it.
+				startJournal(data.size(), Long.MAX_VALUE);
+				mails = new AppendOnlyList<MailEntry>();
+				mails.addAll(data);
+			}
+		}
+	}
+
+	/**
+	 * Read the snapshot, and replay the journal that follows it, up to its first record that was cut short or is
+	 * corrupt, which is dropped along with anything after it.
+	 * @return the mails saved, in order, each assigned its index and marked as read if it was; or an empty optional in
+	 * case there is no snapshot nor journal.
+	 */
+	@Override
+	public Optional<List<MailEntry>> load() {
+		return load(entry -> {});
+	}
+
+	/**
+	 * Read the snapshot, and replay the journal that follows it, handing over each mail as soon as it is read (e.g. to
+	 * move it off the heap), before the rest are read.
+	 * @param onLoaded called with each mail as it is read, in order, assigned its index. It may still be marked as
+	 * read by a later record.
+	 * @return the mails saved, in order, each assigned its index and marked as read if it was; or an empty optional in
+	 * case there is no snapshot nor journal.
+	 */
+	public Optional<List<MailEntry>> load(Consumer<MailEntry> onLoaded) {
+		synchronized (snapshotLock) {
+			synchronized (this) {
+				close();
+				AppendOnlyList<MailEntry> loaded = new AppendOnlyList<MailEntry>();
+				mails = loaded;
+				boolean snapshot = MailSnapshot.read(snapshotPath, entry -> {
+					loaded.add(entry);
+					onLoaded.accept(entry);
+				});
+				if (!snapshot && !Files.exists(path)) {
+					return Optional.empty();
+				}
+				if (!Files.exists(path) || replayJournal(onLoaded) == 0) {
+					// Nothing survived of the journal, not even where it starts; it follows the snapshot.
+					startJournal(loaded.size(), Long.MAX_VALUE);
+				}
+				return Optional.of(loaded.prefix(loaded.size()));
+			}
+		}
+	}
+
+	/**
+	 * Replay the journal into the mails, and drop its records that were cut short or are corrupt. The journal is read
+	 * a record at a time, so only one record is held in memory besides the mails, however large the journal is.
+	 * @return the size of what is left of the journal.
+	 */
+	private long replayJournal(Consumer<MailEntry> onLoaded) {
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			// Not closed on its own, since that would close the channel before it is truncated.
+			DataInputStream journal = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in),
+					BUFFER_SIZE));
+			long $ = replay(journal, size, mails, onLoaded);
+			if ($ < size) {
+				in.truncate($);
+			}
+			return $;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the size of the journal, including the records written but not yet synced.
+	 */
+	private long journalEnd() {
+		synchronized (channelLock) {
+			try {
+				if (null != channel) {
+					return channel.size();
+				}
+				return Files.exists(path) ? Files.size(path) : 0;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Replace the journal with one that starts at the given mail, followed by the records of the journal from the given
+	 * position on, if there are any. The new journal replaces the old one only once it is synced to the disk, and the
+	 * replacement is synced too before anything is appended to it.
+	 */
+	private void startJournal(int base, long from) {
+		synchronized (channelLock) {
+			closeChannel();
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try {
+				try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					writeFully(out, baseRecord(base));
+					if (Files.exists(path)) {
+						try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+							for (long position = from; position < in.size();) {
+								position += in.transferTo(position, in.size() - position, out);
+							}
+						}
+					}
+					out.force(false);
+				}
+				MailSnapshot.replace(temp, path);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Replay records into a list of mails, up to the first one that was cut short or is corrupt. Mails that are already
+	 * in the list are skipped.
+	 * @param journal the records, read from the start of the journal.
+	 * @param size the size of the journal.
+	 * @param mails the mails to replay the records into.
+	 * @param onLoaded called with each mail added to the list, as it is added.
+	 * @return the position past the last record replayed.
+	 * @throws IllegalStateException if the journal starts after the last mail of the list, so mails are missing.
+	 */
+	private static long replay(DataInputStream journal, long size, List<MailEntry> mails,
+			Consumer<MailEntry> onLoaded) throws IOException {
+		CRC32 crc = new CRC32();
+		// The index of the next mail in the journal; a journal without a base record starts from the first mail.
+		int next = 0;
+		long position = 0;
+		while (size - position >= HEADER_SIZE) {
+			long start = position;
+			int length = journal.readInt();
+			int checksum = journal.readInt();
+			// Checked against what is left of the file before it is allocated, so a torn length can't ask for more.
+			if (length <= 0 || length > size - start - HEADER_SIZE) {
+				return start;
+			}
+			byte[] record = new byte[length];
+			journal.readFully(record);
+			position = start + HEADER_SIZE + length;
+			crc.reset();
+			crc.update(record, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				return start;
+			}
+			ByteBuffer body = ByteBuffer.wrap(record);
+			try {
+				switch (body.get()) {
+				case MAIL:
+					Mail mail = new Mail(readString(body), readString(body), readString(body));
+					if (next++ < mails.size()) {
+						// Already in the snapshot.
+						break;
+					}
+					MailEntry entry = new MailEntry(mail);
+					entry.setIndex(mails.size());
+					mails.add(entry);
+					onLoaded.accept(entry);
+					break;
+				case READ:
+					int index = body.getInt();
+					if (index < 0 || index >= mails.size()) {
+						return start;
+					}
+					mails.get(index).markAsRead();
+					break;
+				case BASE:
+					if (start != 0) {
+						return start;
+					}
+					next = body.getInt();
+					if (next > mails.size()) {
+						throw new IllegalStateException("The journal starts at mail " + next + ", but only "
+								+ mails.size() + " mails precede it");
+					}
+					break;
+				default:
+					return start;
+				}
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				return start;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Close the journal file, once the records waiting to be synced are. It is opened again by the next append.
+	 */
+	public synchronized void close() {
+		closeCommits();
+		synchronized (channelLock) {
+			closeChannel();
+		}
+	}
+
+	private void closeChannel() {
+		if (null == channel) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			channel = null;
+		}
+	}
+
+	private void closeCommits() {
+		if (null != commits) {
+			commits.close();
+			commits = null;
+		}
+	}
+
+	/**
+	 * Clears all saved data, deletes the journal and snapshot files.
+	 */
+	@Override
+	public void clean() {
+		synchronized (snapshotLock) {
+			synchronized (this) {
+				close();
+				mails = new AppendOnlyList<MailEntry>();
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				MailSnapshot.delete(snapshotPath);
+			}
+		}
+	}
+
+	private void write(ByteBuffer record) {
+		synchronized (channelLock) {
+			try {
+				writeFully(openChannel(), record);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Write a group of records, and sync them to the disk with a single force.
+	 */
+	private void writeAndSync(List<ByteBuffer> records) {
+		synchronized (channelLock) {
+			try {
+				FileChannel out = openChannel();
+				ByteBuffer[] group = records.toArray(new ByteBuffer[records.size()]);
+				ByteBuffer last = group[group.length - 1];
+				while (last.hasRemaining()) {
+					out.write(group);
+				}
+				// The records are the only change to the file that matters; its metadata is not worth a second sync.
+				out.force(false);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private FileChannel openChannel() throws IOException {
+		if (null == channel) {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		}
+		return channel;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer record) throws IOException {
+		while (record.hasRemaining()) {
+			out.write(record);
+		}
+	}
+
+	private static ByteBuffer mailRecord(Mail mail) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(body)) {
+			out.writeByte(MAIL);
+			writeString(out, mail.from);
+			writeString(out, mail.to);
+			writeString(out, mail.content);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return record(body.toByteArray());
+	}
+
+	private static ByteBuffer readRecord(int index) {
+		return record(ByteBuffer.allocate(5).put(READ).putInt(index).array());
+	}
+
+	private static ByteBuffer baseRecord(int index) {
+		return record(ByteBuffer.allocate(5).put(BASE).putInt(index).array());
+	}
+
+	private static ByteBuffer record(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer $ = ByteBuffer.allocate(HEADER_SIZE + body.length);
+		$.putInt(body.length).putInt((int) crc.getValue()).put(body);
+		$.flip();
+		return $;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer body) {
+		int length = body.getInt();
+		if (length < 0 || length > body.remaining()) {
+			throw new IllegalArgumentException();
+		}
+		String $ = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+		body.position(body.position() + length);
+		return $;
+	}
+}
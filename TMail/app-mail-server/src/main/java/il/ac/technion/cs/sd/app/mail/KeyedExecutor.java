@@ -0,0 +1,95 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared pool of threads, such that tasks of the same key run one at a time, in the order they
+ * were submitted. Tasks of different keys run in parallel.
+ * <br>
+ * A key with queued tasks only holds a single pool thread at a time, and every task is submitted to the pool
+ * separately, so a key with many (or slow) tasks doesn't keep the other keys waiting behind it.
+ */
+class KeyedExecutor {
+
+	final private ExecutorService pool;
+
+	// Keys with a task running (or submitted to the pool), mapped to their tasks waiting behind it.
+	final private Map<String, Queue<Runnable>> waiting = new ConcurrentHashMap<String, Queue<Runnable>>();
+
+	// Guards pending and closed.
+	final private Object lock = new Object();
+	private int pending;
+	private boolean closed;
+
+	/**
+	 * @param pool the threads to run the tasks on. It is shut down when this executor is closed.
+	 */
+	KeyedExecutor(ExecutorService pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Run a task after all the tasks previously submitted with the same key.
+	 * @param key the key of the task.
+	 * @param task the task to run.
+	 * @throws RejectedExecutionException if this executor is closed.
+	 */
+	void execute(String key, Runnable task) {
+		synchronized (lock) {
+			if (closed) {
+				throw new RejectedExecutionException("executor is closed");
+			}
+			++pending;
+		}
+		waiting.compute(key, (k, queue) -> {
+			if (queue == null) {
+				pool.execute(() -> run(k, task));
+				return new ArrayDeque<Runnable>();
+			}
+			queue.add(task);
+			return queue;
+		});
+	}
+
+	private void run(String key, Runnable task) {
+		try {
+			task.run();
+		} finally {
+			waiting.compute(key, (k, queue) -> {
+				Runnable next = queue.poll();
+				if (next == null) {
+					return null;
+				}
+				pool.execute(() -> run(k, next));
+				return queue;
+			});
+			synchronized (lock) {
+				if (--pending == 0) {
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting tasks, wait for all the submitted tasks to complete, and shut the pool down.
+	 */
+	void close() {
+		synchronized (lock) {
+			closed = true;
+			try {
+				while (pending > 0) {
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		pool.shutdown();
+	}
+}
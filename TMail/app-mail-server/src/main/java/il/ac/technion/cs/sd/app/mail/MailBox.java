@@ -7,10 +7,13 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
  * A Container for all of a single client's mail and information.
+ * This class is not thread-safe: the server hands each mailbox to one thread at a time (see
+ * {@link ServerMailApplication}), so a request never waits on the mailboxes of other clients.
  */
 public class MailBox {
 	
@@ -20,6 +23,24 @@ public class MailBox {
 	List<MailEntry> inbox = new ArrayList<MailEntry>(); // ordered from oldest (start) to newest (end). new mails are appended at the end
 	Map<String, List<MailEntry>> correspondece = new HashMap<String, List<MailEntry>>();
 	
+	final private Consumer<MailEntry> onRead;
+	
+	/**
+	 * Create an empty mailbox.
+	 */
+	public MailBox() {
+		this(entry -> {});
+	}
+	
+	/**
+	 * Create an empty mailbox, that reports the mails it marks as read.
+	 * 
+	 * @param onRead Called with each mail this mailbox marks as read, that was unread until then.
+	 */
+	public MailBox(Consumer<MailEntry> onRead) {
+		this.onRead = onRead;
+	}
+	
 	/**
 	 * Add a new mail this client sent a new mail. Updates this client's contact list if needed.
 	 * 
@@ -28,7 +49,7 @@ public class MailBox {
 	public void addSentMail(MailEntry entry) {
 		this.sent.add(entry);
 		this.all_mail.add(entry);
-		addToCorrespondenceWith(entry, entry.getMail().to);
+		addToCorrespondenceWith(entry, entry.getTo());
 	}
 	
 	/**
@@ -56,7 +77,7 @@ public class MailBox {
 		if (!entry.getIsRead()) {
 			this.unread.add(entry);
 		}
-		addToCorrespondenceWith(entry, entry.getMail().from);
+		addToCorrespondenceWith(entry, entry.getFrom());
 	}
 	
 	/**
@@ -65,10 +86,22 @@ public class MailBox {
 	 * @param entry Mail to be marked.
 	 */
 	private void markAsRead(MailEntry entry) {
-		entry.markAsRead();
+		setRead(entry);
 		this.unread.remove(entry);
 	}
 	
+	/**
+	 * Mark a mail as read, reporting it if it was unread.
+	 * 
+	 * @param entry Mail to be marked.
+	 */
+	private void setRead(MailEntry entry) {
+		if (!entry.getIsRead()) {
+			entry.markAsRead();
+			onRead.accept(entry);
+		}
+	}
+	
 	/**
 	 * Return a list of all the unread mail. Marks each mail item as "read".
 	 * 
@@ -80,7 +113,7 @@ public class MailBox {
 		Collections.reverse($);
 		
 		// Mark all mails as read
-		unread.stream().forEach(entry -> entry.markAsRead());
+		unread.stream().forEach(this::setRead);
 		unread.clear();
 		
 		return $;
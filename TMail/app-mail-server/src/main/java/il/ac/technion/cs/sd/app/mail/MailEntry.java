@@ -4,15 +4,19 @@ import java.io.Serializable;
 
 /**
  * Wrapper for Mail objects to be stored in a MailBox object, used in the Mail Server application.
- * An Entry contains a single Mail, and a flag telling whether the mail has already been read.
+ * An Entry contains a single Mail, and a flag telling whether the mail has already been read. The mail may be moved off
+ * the heap, to a {@link MappedMailStore}, after which it is read from the store whenever it is asked for.
  * Important: Two mail entries equality identity equality, i.e. two different entries containing the same mail are NOT equal.
  */
 public class MailEntry implements Serializable {
 	
 	private static final long serialVersionUID = 2562855619274459212L;
 	
-	private final Mail mail;
-	private boolean isRead;
+	private volatile Mail mail; // null once moved to a store
+	private transient MappedMailStore store;
+	private transient long offset; // in the store
+	private volatile boolean isRead; // an entry is shared by the mailboxes of its sender and recipient
+	private int index = -1; // the position of the mail in the server's journal, once it is in one
 	
 	/**
 	 * Create a new MailEntry.
@@ -40,7 +44,38 @@ public class MailEntry implements Serializable {
 	 * @return the mail held in this entry. 
 	 */
 	public Mail getMail() {
-		return mail;
+		Mail $ = mail;
+		return null != $ ? $ : store.get(offset);
+	}
+	
+	/**
+	 * Get the sender of the mail held in this entry, without reading the rest of it from a store.
+	 * @return the sender of the mail.
+	 */
+	String getFrom() {
+		Mail $ = mail;
+		return null != $ ? $.from : store.from(offset);
+	}
+	
+	/**
+	 * Get the recipient of the mail held in this entry, without reading the rest of it from a store.
+	 * @return the recipient of the mail.
+	 */
+	String getTo() {
+		Mail $ = mail;
+		return null != $ ? $.to : store.to(offset);
+	}
+	
+	/**
+	 * Move the mail held in this entry to a store, off the heap. Must be called by the thread that adds to the store,
+	 * before the entry is handed to other threads.
+	 * @param store the store.
+	 */
+	void moveTo(MappedMailStore store) {
+		offset = store.add(mail);
+		this.store = store;
+		// Cleared last, so a thread that sees the mail gone sees where it went.
+		mail = null;
 	}
 	
 	/**
@@ -58,6 +93,34 @@ public class MailEntry implements Serializable {
 		isRead = true;
 	}
 	
+	/**
+	 * Get the position of the mail in the journal of the server.
+	 * @return the index of the mail, counting from 0 in the order mails were sent; or -1 if it is not in a journal.
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Set the position of the mail in the journal of the server.
+	 * @param index the index of the mail.
+	 */
+	void setIndex(int index) {
+		this.index = index;
+	}
+	
+	/**
+	 * Serialize an entry whose mail was moved to a store as one that holds its mail.
+	 */
+	private Object writeReplace() {
+		if (null != mail) {
+			return this;
+		}
+		MailEntry $ = new MailEntry(getMail(), isRead);
+		$.index = index;
+		return $;
+	}
+	
 	/**
 	 * Return whether two mail entries are identically the same.
 	 */
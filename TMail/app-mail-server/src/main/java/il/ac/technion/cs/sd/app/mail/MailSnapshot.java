@@ -0,0 +1,159 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes snapshots of the mail of a server: all the mails, in the order they were sent, each with whether it
+ * was read. The mailboxes (with their unread mail and correspondences) are rebuilt from these, the same way they are
+ * built as mails are sent.
+ * <br>
+ * A snapshot is laid out as:
+ * <ol>
+ * <li>A magic number (int).</li>
+ * <li>The amount of mails (int).</li>
+ * <li>Each mail: its sender, recipient and content (each an int length and the UTF-8 bytes), and whether it was read
+ * (byte).</li>
+ * <li>The CRC32 of all of the above (int).</li>
+ * </ol>
+ * A snapshot replaces the previous one only once it is completely written and synced, so it is never cut short.
+ */
+class MailSnapshot {
+
+	private static final int MAGIC = 0x544D534E; // "TMSN"
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+	private MailSnapshot() {
+	}
+
+	/**
+	 * Write a snapshot, replacing the previous one once it is synced to the disk.
+	 * @param path the file of the snapshot.
+	 * @param mails the mails, in the order they were sent, each at its index.
+	 */
+	static void write(Path path, List<MailEntry> mails) {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+			BufferedOutputStream buffered = new BufferedOutputStream(file, BUFFER_SIZE);
+			CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(mails.size());
+			for (MailEntry entry : mails) {
+				writeString(out, entry.getMail().from);
+				writeString(out, entry.getMail().to);
+				writeString(out, entry.getMail().content);
+				out.writeBoolean(entry.getIsRead());
+			}
+			out.flush();
+			new DataOutputStream(buffered).writeInt((int) checked.getChecksum().getValue());
+			buffered.flush();
+			file.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		replace(temp, path);
+	}
+
+	/**
+	 * Replace a file with another that is already synced to the disk, and sync their directory, so the replacement
+	 * survives a crash of the machine as well; until the directory is synced, it may come back as the old file.
+	 * @param temp the new file, in the same directory as the file it replaces.
+	 * @param path the file to replace.
+	 */
+	static void replace(Path temp, Path path) {
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException e) {
+			// Some systems (e.g. Windows) can't open a directory, and make the move durable by themselves.
+			if (!WINDOWS) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Read a snapshot, handing over each mail as it is read, so the mails are never all held at once.
+	 * @param path the file of the snapshot.
+	 * @param onMail called with the mails in the snapshot, in order, each assigned its index and marked as read if it
+	 * was.
+	 * @return false in case there is no snapshot.
+	 * @throws RuntimeException if the snapshot is corrupt, which is only found out once all its mails were handed
+	 * over.
+	 */
+	static boolean read(Path path, Consumer<MailEntry> onMail) {
+		if (!Files.exists(path)) {
+			return false;
+		}
+		try (FileInputStream file = new FileInputStream(path.toFile())) {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, BUFFER_SIZE), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			if (in.readInt() != MAGIC) {
+				throw new RuntimeException("Not a mail snapshot: " + path);
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; ++i) {
+				MailEntry entry = new MailEntry(new Mail(readString(in), readString(in), readString(in)), in.readBoolean());
+				entry.setIndex(i);
+				onMail.accept(entry);
+			}
+			int checksum = (int) checked.getChecksum().getValue();
+			if (in.readInt() != checksum) {
+				throw new RuntimeException("Corrupt mail snapshot: " + path);
+			}
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Delete the snapshot, if there is one.
+	 * @param path the file of the snapshot.
+	 */
+	static void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Negative string length");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,169 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps mails off the heap, in memory-mapped segment files, so a server can hold more mail than fits in its heap, and
+ * the garbage collector has none of it to go over. A mail is referred to by its offset in the store (see
+ * {@link MappedMailStore#add(Mail)}), and a {@link Mail} is only made of it when it is asked for.
+ * <br>
+ * A mail is laid out as:
+ * <ol>
+ * <li>The id of its sender (int).</li>
+ * <li>The id of its recipient (int).</li>
+ * <li>The length of its content (int), followed by the UTF-8 bytes.</li>
+ * </ol>
+ * Each address is kept once, on the heap, and mails refer to it by id. A mail is never split between segments; one
+ * that doesn't fit in a segment gets a segment of its own.
+ * <br>
+ * The segment files only hold the mails while the store is open, and are deleted when it is closed; mails are kept
+ * across restarts by the journal of the server (see {@link JournalDataSaver}).
+ * <br>
+ * Only one thread at a time may add mails; any thread may get the mails already added.
+ */
+class MappedMailStore {
+
+	private static final int HEADER_SIZE = 12;
+
+	final private String fileName;
+	final private int segmentSize;
+
+	// Written before the mails that refer to them are published, so a reader finds every segment and address it needs.
+	private AppendOnlyList<ByteBuffer> segments = new AppendOnlyList<ByteBuffer>();
+	private AppendOnlyList<String> addresses = new AppendOnlyList<String>();
+	// Only used by the adding thread.
+	final private Map<String, Integer> ids = new HashMap<String, Integer>();
+	private int position; // in the last segment
+
+	/**
+	 * Create an empty store, deleting the segment files left by a previous one under the same name.
+	 * @param fileName the name of the segment files, which is followed by the index of each.
+	 * @param segmentSize the size in bytes of a segment file.
+	 */
+	MappedMailStore(String fileName, int segmentSize) {
+		if (null == fileName || segmentSize < HEADER_SIZE) {
+			throw new IllegalArgumentException();
+		}
+		this.fileName = fileName;
+		this.segmentSize = segmentSize;
+		deleteSegments();
+	}
+
+	/**
+	 * Add a mail.
+	 * @param mail the mail.
+	 * @return the offset of the mail in the store.
+	 */
+	long add(Mail mail) {
+		int from = idOf(mail.from);
+		int to = idOf(mail.to);
+		byte[] content = mail.content.getBytes(StandardCharsets.UTF_8);
+		int size = HEADER_SIZE + content.length;
+		if (segments.isEmpty() || position + size > segments.get(segments.size() - 1).capacity()) {
+			segments.add(map(segments.size(), Math.max(segmentSize, size)));
+			position = 0;
+		}
+		int segment = segments.size() - 1;
+		ByteBuffer out = segments.get(segment).duplicate();
+		out.position(position);
+		out.putInt(from).putInt(to).putInt(content.length).put(content);
+		long $ = (long) segment << 32 | position;
+		position += size;
+		return $;
+	}
+
+	/**
+	 * @param offset the offset of a mail in the store.
+	 * @return the mail.
+	 */
+	Mail get(long offset) {
+		ByteBuffer in = at(offset);
+		String from = addresses.get(in.getInt());
+		String to = addresses.get(in.getInt());
+		byte[] content = new byte[in.getInt()];
+		in.get(content);
+		return new Mail(from, to, new String(content, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param offset the offset of a mail in the store.
+	 * @return the sender of the mail.
+	 */
+	String from(long offset) {
+		return addresses.get(at(offset).getInt());
+	}
+
+	/**
+	 * @param offset the offset of a mail in the store.
+	 * @return the recipient of the mail.
+	 */
+	String to(long offset) {
+		ByteBuffer in = at(offset);
+		return addresses.get(in.getInt(in.position() + 4));
+	}
+
+	/**
+	 * Drop all the mails, and delete the segment files. The mails can't be gotten afterwards.
+	 */
+	void close() {
+		segments = new AppendOnlyList<ByteBuffer>();
+		addresses = new AppendOnlyList<String>();
+		ids.clear();
+		position = 0;
+		deleteSegments();
+	}
+
+	private int idOf(String address) {
+		Integer $ = ids.get(address);
+		if (null == $) {
+			$ = addresses.size();
+			addresses.add(address);
+			ids.put(address, $);
+		}
+		return $;
+	}
+
+	/**
+	 * @return a buffer of the segment of a mail, positioned at the mail.
+	 */
+	private ByteBuffer at(long offset) {
+		int segment = (int) (offset >>> 32);
+		if (segment >= segments.size()) {
+			throw new IllegalStateException("No mail at offset " + offset);
+		}
+		ByteBuffer $ = segments.get(segment).duplicate();
+		$.position((int) offset);
+		return $;
+	}
+
+	private MappedByteBuffer map(int index, int size) {
+		try (FileChannel channel = FileChannel.open(segmentFile(index).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// The mapping stays valid once the channel is closed.
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void deleteSegments() {
+		for (int i = 0; segmentFile(i).exists(); ++i) {
+			// A file that is still mapped can't be deleted on some systems; it goes once the mapping is collected.
+			if (!segmentFile(i).delete()) {
+				segmentFile(i).deleteOnExit();
+			}
+		}
+	}
+
+	private File segmentFile(int index) {
+		return new File(fileName + "." + index);
+	}
+}
@@ -0,0 +1,25 @@
+package il.ac.technion.cs.sd.app.mail;
+
+/**
+ * What a {@link ServerMailApplication} with a bounded inbound queue does with the requests it can't handle in time.
+ * Rejected requests are answered right away with an overloaded response (see {@link MailResponse#overloaded()}).
+ * <br>
+ * New mails are never rejected, since their senders don't wait for a response: while the queue is full, the server
+ * stops receiving until there is room for them.
+ */
+public enum OverloadPolicy {
+	/**
+	 * A request that arrives while the queue is full is rejected.
+	 */
+	REJECT_NEWEST,
+	/**
+	 * Like {@link OverloadPolicy#REJECT_NEWEST}, and a request that waited in the queue longer than the maximal wait
+	 * is rejected instead of being handled, since its client would rather know right away.
+	 */
+	DROP_EXPIRED,
+	/**
+	 * Like {@link OverloadPolicy#REJECT_NEWEST}, but a new mail that arrives while the queue is full takes the place
+	 * of the newest request in the queue, which is rejected, so the server keeps receiving mail.
+	 */
+	PRIORITIZE_WRITES
+}
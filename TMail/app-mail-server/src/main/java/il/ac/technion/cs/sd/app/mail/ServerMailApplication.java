@@ -1,5 +1,6 @@
 package il.ac.technion.cs.sd.app.mail;
 
+import il.ac.technion.cs.sd.lib.CompressingCodec;
 import il.ac.technion.cs.sd.lib.MessageWithSender;
 import il.ac.technion.cs.sd.lib.ServerConnection;
 
@@ -9,6 +10,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -17,31 +25,87 @@ import java.util.stream.Collectors;
  */
 public class ServerMailApplication {
 	
+	// The most requests handled in a single pass, in BATCHED mode.
+	private static final int MAX_BATCH = 256;
+	
 	// instance variables
 	private final String address;
 	private ServerConnection<MailRequest> connection;
 	
-	private List<MailEntry> history;
-	private DataSaver<List<MailEntry>> dataSaver;  
+	private final ExecutionMode mode;
+	private final int workers;
+	private KeyedExecutor dispatcher; // hands requests to the workers, in WORKER_POOL and VIRTUAL_THREADS modes
+	private ShardedExecutor<Map<String, MailBox>> shards; // owns the mailboxes, in SHARDED mode
+	
+	// Bounds the requests on hand, if limited (see limitInboundQueue).
+	private int inboundCapacity;
+	private OverloadPolicy overloadPolicy;
+	private long maxWaitNanos;
+	private InboundQueue inbound;
+	private Thread handler; // takes the requests from the inbound queue, while the starting thread receives them
+	
+	// Every mail and read mark is appended as it happens. New mails are only added by the thread that takes the
+	// requests (or by loadData, before it starts), so the journal and each mailbox get them in the same order.
+	private final JournalDataSaver dataSaver;
+	// Responses are sent once the records they may show are synced, in the order they were made (see sendWhenSynced).
+	private CompletableFuture<Void> responses = CompletableFuture.completedFuture(null);
+	private final Object responsesLock = new Object();
+	// Where servers kept their mails before the journal, saved as a whole on stop; migrated to the journal on start.
+	private final DataSaver<List<MailEntry>> legacyDataSaver;
+	private long snapshotPeriodNanos; // snapshots are taken periodically, if positive (see snapshotEvery)
+	private ScheduledExecutorService snapshots;
+	private int mappedSegmentSize; // mails are kept off the heap, if positive (see mapMail)
+	private MappedMailStore mailStore;
 
 	// loaded / stored to independent db
 	private Map<String, MailBox> mailboxes; // <client address : client mailbox>
 	
 	/**
-	 * Starts a new mail server. Servers with the same name retain all their information until
-	 * {@link ServerMailApplication#clean()} is called.
+	 * Starts a new mail server, which handles its requests serially. Servers with the same name retain all their
+	 * information until {@link ServerMailApplication#clean()} is called.
 	 * 
 	 * @param name The name of the server by which it is known.
 	 */
 	public ServerMailApplication(String name) {
+		this(name, ExecutionMode.SERIAL);
+	}
+	
+	/**
+	 * Starts a new mail server, with a worker thread (or shard) for each available processor if the mode uses workers.
+	 * 
+	 * @param name The name of the server by which it is known.
+	 * @param mode How the server handles the requests it receives.
+	 */
+	public ServerMailApplication(String name, ExecutionMode mode) {
+		this(name, mode, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Starts a new mail server.
+	 * 
+	 * @param name The name of the server by which it is known.
+	 * @param mode How the server handles the requests it receives.
+	 * @param workers The amount of worker threads (or shards), if the mode uses workers.
+	 * @throws UnsupportedOperationException if the mode is {@link ExecutionMode#VIRTUAL_THREADS}, and the running Java
+	 * version has no virtual threads.
+	 */
+	public ServerMailApplication(String name, ExecutionMode mode, int workers) {
 		if (null == name || name.equals("")) {
 			throw new InvalidParameterException("Server name cannot be null or empty");
 		}
+		if (null == mode || workers <= 0) {
+			throw new IllegalArgumentException();
+		}
+		if (mode == ExecutionMode.VIRTUAL_THREADS && !VirtualThreads.isSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		}
 		
 		address = name;
+		this.mode = mode;
+		this.workers = workers;
 		
-		history = new ArrayList<MailEntry>();
-		dataSaver = new FileDataSaver<List<MailEntry>>("app-mail-data-" + address);
+		dataSaver = new JournalDataSaver("app-mail-journal-" + address);
+		legacyDataSaver = new FileDataSaver<List<MailEntry>>("app-mail-data-" + address);
 	}
 	
 	/**
@@ -51,6 +115,77 @@ public class ServerMailApplication {
 		return address;
 	}
 	
+	/**
+	 * Bound the amount of requests the server has on hand, received and not yet handled. Requests that don't fit are
+	 * answered right away with an overloaded response (see {@link MailResponse#overloaded()}), which the client
+	 * surfaces as a {@link ServerOverloadedException}. When this is not called, received requests wait for the server
+	 * for as long as it takes.
+	 * <br>
+	 * Must be called before {@link ServerMailApplication#start()}.
+	 * 
+	 * @param capacity The most requests on hand at any time.
+	 * @param policy Which requests are rejected when the server has too many on hand.
+	 * @param maxWait How long a request may wait to be handled, if the policy drops expired requests.
+	 * @param unit The unit of maxWait.
+	 */
+	public void limitInboundQueue(int capacity, OverloadPolicy policy, long maxWait, TimeUnit unit) {
+		if (capacity <= 0 || null == policy || maxWait < 0 || null == unit) {
+			throw new IllegalArgumentException();
+		}
+		inboundCapacity = capacity;
+		overloadPolicy = policy;
+		maxWaitNanos = unit.toNanos(maxWait);
+	}
+	
+	/**
+	 * Sync the journal of the server's data to the disk, so mails and read marks are kept even if the machine crashes.
+	 * The records are synced in groups, so a burst of mails shares a single sync (see
+	 * {@link JournalDataSaver#groupCommit(int, long, TimeUnit)}). A response is only sent once the mails it shows, and
+	 * the read marks it made, are synced. When this is not called, the records are handed to the operating system as
+	 * they happen, and kept if the server crashes.
+	 * 
+	 * @param maxBatch The most records synced together.
+	 * @param maxDelay How long a record may wait for others to join its group.
+	 * @param unit The unit of maxDelay.
+	 */
+	public void syncJournal(int maxBatch, long maxDelay, TimeUnit unit) {
+		dataSaver.groupCommit(maxBatch, maxDelay, unit);
+	}
+	
+	/**
+	 * Take a snapshot of the server's data periodically, and start the journal over after each, so restarting the
+	 * server replays no more than the journal since the last snapshot (see {@link JournalDataSaver#snapshot()}). When
+	 * this is not called, the journal grows for as long as the server's data is kept.
+	 * <br>
+	 * Must be called before {@link ServerMailApplication#start()}.
+	 * 
+	 * @param period The time between the end of a snapshot and the start of the next one.
+	 * @param unit The unit of period.
+	 */
+	public void snapshotEvery(long period, TimeUnit unit) {
+		if (period <= 0 || null == unit) {
+			throw new IllegalArgumentException();
+		}
+		snapshotPeriodNanos = unit.toNanos(period);
+	}
+	
+	/**
+	 * Keep the mails off the heap, in memory-mapped segment files (see {@link MappedMailStore}), so the server can hold
+	 * more mail than fits in its heap. The mailboxes then refer to each mail by its offset in the files, and the mail is
+	 * read from them when a response is built. The mails loaded on start are moved to the files as they are read. When
+	 * this is not called, the mails are kept on the heap.
+	 * <br>
+	 * Must be called before {@link ServerMailApplication#start()}.
+	 * 
+	 * @param segmentSize The size in bytes of a segment file.
+	 */
+	public void mapMail(int segmentSize) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		mappedSegmentSize = segmentSize;
+	}
+	
 	/**
 	 * Starts the server; any previously sent mails, data and indices under this server name are loaded. It is possible
 	 * to start a new server instance in same, or another process. You may assume that two server instances with the
@@ -59,10 +194,63 @@ public class ServerMailApplication {
 	 */
 	public void start() {
 		if (connection == null) {
-			connection = ServerConnection.<MailRequest>create(address);
+			connection = ServerConnection.<MailRequest>create(address,
+					new CompressingCodec<MailRequest>(new MailRequestCodec()));
+		}
+		// Created first, so the loaded mails are added to the mailboxes the same way new ones are.
+		switch (mode) {
+		case WORKER_POOL:
+			dispatcher = new KeyedExecutor(Executors.newFixedThreadPool(workers, task -> {
+				Thread worker = new Thread(task, address + "-worker");
+				worker.setDaemon(true);
+				return worker;
+			}));
+			break;
+		case SHARDED:
+			shards = new ShardedExecutor<Map<String, MailBox>>(workers, address, HashMap::new);
+			break;
+		case VIRTUAL_THREADS:
+			dispatcher = new KeyedExecutor(VirtualThreads.newPerTaskExecutor());
+			break;
+		default:
+			break;
+		}
+		if (mappedSegmentSize > 0) {
+			mailStore = new MappedMailStore("app-mail-store-" + address, mappedSegmentSize);
 		}
 		loadData();
-		startRequestHandlingLoop();
+		if (snapshotPeriodNanos > 0) {
+			snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread snapshotter = new Thread(task, address + "-snapshots");
+				snapshotter.setDaemon(true);
+				return snapshotter;
+			});
+			snapshots.scheduleWithFixedDelay(this::snapshotData, snapshotPeriodNanos, snapshotPeriodNanos,
+					TimeUnit.NANOSECONDS);
+		}
+		if (inboundCapacity > 0) {
+			inbound = new InboundQueue(inboundCapacity, overloadPolicy, maxWaitNanos);
+			handler = new Thread(this::handleRequests, address + "-handler");
+			handler.setDaemon(true);
+			handler.start();
+			startReceivingLoop(inbound);
+		} else {
+			handleRequests();
+		}
+	}
+	
+	private void handleRequests() {
+		switch (mode) {
+		case SERIAL:
+			startRequestHandlingLoop();
+			break;
+		case BATCHED:
+			startBatchHandlingLoop();
+			break;
+		default:
+			startDispatchLoop();
+			break;
+		}
 	}
 	
 	/**
@@ -73,23 +261,82 @@ public class ServerMailApplication {
 		this.connection = connection;
 	}
 	
+	/**
+	 * Waits for requests, and admits each to the inbound queue, answering the requests the queue rejects.
+	 */
+	private void startReceivingLoop(InboundQueue queue) {
+		while (true) {
+			try {
+				MessageWithSender<MailRequest> signed_request = connection.receiveBlocking();
+				queue.admit(signed_request.sender, signed_request.content).ifPresent(this::respondOverloaded);
+			} catch (IllegalMonitorStateException e) {
+				// Application stopped from outside, let the handler finish and return.
+				queue.close();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Get the next request, from the inbound queue if there is one.
+	 * @return the request, or null if the inbound queue was closed.
+	 */
+	private InboundQueue.Inbound nextRequest() {
+		if (null == inbound) {
+			MessageWithSender<MailRequest> signed_request = connection.receiveBlocking();
+			return new InboundQueue.Inbound(signed_request.sender, signed_request.content);
+		}
+		return inbound.take();
+	}
+	
+	/**
+	 * Get the requests that arrived together, from the inbound queue if there is one.
+	 * @return the requests, which are only none if the inbound queue was closed (or no request arrived for a while).
+	 */
+	private List<InboundQueue.Inbound> nextRequests() {
+		if (null == inbound) {
+			List<InboundQueue.Inbound> $ = new ArrayList<InboundQueue.Inbound>();
+			for (MessageWithSender<MailRequest> signed_request : connection.receiveBatch(MAX_BATCH, 1, TimeUnit.SECONDS)) {
+				$.add(new InboundQueue.Inbound(signed_request.sender, signed_request.content));
+			}
+			return $;
+		}
+		return inbound.takeAll(MAX_BATCH);
+	}
+	
+	/**
+	 * @return true if a request waited too long, and should be answered with an overloaded response instead of being
+	 * handled.
+	 */
+	private boolean isExpired(InboundQueue.Inbound in) {
+		return null != inbound && inbound.isExpired(in);
+	}
+	
+	/**
+	 * Free the places of requests that are done being handled, if there is an inbound queue.
+	 */
+	private void finished(int count) {
+		if (null != inbound) {
+			inbound.done(count);
+		}
+	}
+	
 	/**
 	 * Waits for requests, handles them, sends response (if needed) and waits for the next request.
 	 */
 	private void startRequestHandlingLoop() {
 		while (true) {
 			try {
-				MessageWithSender<MailRequest> signed_request;
-				signed_request = connection.receiveBlocking();
-				String client = signed_request.sender;
-				MailRequest request = signed_request.content;
-				Optional<MailResponse> response = handleRequest(client, request);
-				if (response.isPresent()) {
-					request.attachResponse(response.get());
-					// Send the request with the attached response back to the
-					// client.
-					connection.send(client, request);
+				InboundQueue.Inbound in = nextRequest();
+				if (null == in) {
+					return;
+				}
+				if (isExpired(in)) {
+					respondOverloaded(in);
+				} else {
+					handleAndRespond(in.client, in.request);
 				}
+				finished(1);
 			} catch (IllegalMonitorStateException e) {
 				// Application stopped from outside, return.
 				return;
@@ -97,12 +344,160 @@ public class ServerMailApplication {
 		}
 	}
 	
+	/**
+	 * Waits for requests, handles all the requests that arrived together, hands their responses to be sent by the
+	 * connection, and waits for the next requests without waiting for the responses to be sent. The responses of each
+	 * client are sent as a single batch when they pile up.
+	 */
+	private void startBatchHandlingLoop() {
+		while (true) {
+			try {
+				List<InboundQueue.Inbound> requests = nextRequests();
+				if (requests.isEmpty() && null != inbound) {
+					return;
+				}
+				for (InboundQueue.Inbound in : requests) {
+					MailRequest request = in.request;
+					Optional<MailResponse> response = isExpired(in) ? Optional.of(MailResponse.overloaded())
+							: handleRequest(in.client, request);
+					if (response.isPresent()) {
+						request.attachResponse(response.get());
+						sendWhenSynced(() -> connection.sendAsync(in.client, request));
+					}
+				}
+				finished(requests.size());
+			} catch (IllegalMonitorStateException e) {
+				// Application stopped from outside, return.
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Waits for requests, and hands each to the worker (or shard) of its client's mailbox, which handles it and sends
+	 * the response (if needed). A new mail is handed to the mailboxes of both its sender and its recipient. Since every
+	 * mailbox handles what it is handed in order, each client sees the requests of all clients in the order they were
+	 * received, as it would with a single thread.
+	 */
+	private void startDispatchLoop() {
+		while (true) {
+			try {
+				InboundQueue.Inbound in = nextRequest();
+				if (null == in) {
+					return;
+				}
+				if (in.isWrite()) {
+					addNewMail(in.request.getMail());
+					finished(1);
+				} else {
+					withMailBoxOf(in.client, mailbox -> {
+						if (isExpired(in)) {
+							respondOverloaded(in);
+						} else {
+							respond(in.client, in.request, query(mailbox, in.request));
+						}
+						finished(1);
+					});
+				}
+			} catch (IllegalMonitorStateException | RejectedExecutionException e) {
+				// Application stopped from outside, return.
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Handle a request, and send the request with the attached response back to the client (if there is a response).
+	 */
+	private void handleAndRespond(String client, MailRequest request) {
+		respond(client, request, handleRequest(client, request));
+	}
+	
+	private void respond(String client, MailRequest request, Optional<MailResponse> response) {
+		if (response.isPresent()) {
+			request.attachResponse(response.get());
+			// Send the request with the attached response back to the
+			// client.
+			sendWhenSynced(() -> connection.send(client, request));
+		}
+	}
+	
+	/**
+	 * Send a response once the journal records it may show (the mails in it, and the read marks it made) are synced to
+	 * the disk, so a client is never shown what a crash could take back. Responses are sent in the order they were
+	 * made; while none is waiting and nothing is left to sync (always, unless the journal is synced), right away.
+	 * A response whose records failed to sync is not sent.
+	 * 
+	 * @param send sends the response.
+	 */
+	private void sendWhenSynced(Runnable send) {
+		CompletableFuture<Void> synced = dataSaver.synced();
+		synchronized (responsesLock) {
+			if (!responses.isDone() || !synced.isDone()) {
+				// Sent by the thread that syncs the journal.
+				responses = responses.thenCompose(previous -> synced).handle((nothing, failure) -> {
+					if (null == failure) {
+						try {
+							send.run();
+						} catch (RuntimeException e) {
+							// The server was stopped meanwhile.
+						}
+					}
+					return null;
+				});
+				return;
+			}
+		}
+		if (!synced.isCompletedExceptionally()) {
+			send.run();
+		}
+	}
+	
+	private void respondOverloaded(InboundQueue.Inbound in) {
+		respond(in.client, in.request, Optional.of(MailResponse.overloaded()));
+	}
+	
 	/**
 	 * Stops the server. A stopped server can't accept mail, but doesn't delete any data. A stopped server does not use
 	 * any system resources (e.g., messengers).
 	 */
 	public void stop() {
-		saveData();
+		if (null != inbound) {
+			// Let the handler take the requests already admitted, and hand them on.
+			inbound.close();
+			try {
+				handler.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			inbound = null;
+			handler = null;
+		}
+		// Let the workers (or shards) finish the requests and mails they were handed before saving.
+		if (null != dispatcher) {
+			dispatcher.close();
+			dispatcher = null;
+		}
+		if (null != shards) {
+			shards.close();
+			shards = null;
+		}
+		if (null != snapshots) {
+			// Let a snapshot that was started finish.
+			snapshots.shutdown();
+			try {
+				snapshots.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			snapshots = null;
+		}
+		closeData();
+		if (null != mailStore) {
+			// Only once the journal is closed, since a snapshot reads the mails from the store.
+			mailStore.close();
+			mailStore = null;
+		}
 		if (null != connection) {
 			connection.kill();
 		}
@@ -114,34 +509,49 @@ public class ServerMailApplication {
 	 * run on a new, clean server. you may assume the server is stopped before this method is called.
 	 */
 	public void clean() {
-		mailboxes = new HashMap<String, MailBox>();
-		history = new ArrayList<MailEntry>();
+		mailboxes = new ConcurrentHashMap<String, MailBox>();
+		if (null != shards) {
+			shards.executeOnEach(boxes -> boxes.clear());
+		}
 		dataSaver.clean();
+		legacyDataSaver.clean();
 	}
 	
 	private Optional<MailResponse> handleRequest(String client, MailRequest request) {
+		if (request.getType() == MailRequest.RequestType.SEND_MAIL) {
+			addNewMail(request.getMail());
+			return Optional.empty();
+		}
+		return query(getMailBoxOfClient(client), request);
+	}
+	
+	/**
+	 * Handle a request that only involves the mailbox of the requesting client.
+	 * 
+	 * @param mailbox the mailbox of the requesting client.
+	 * @param request the request to handle.
+	 * @return the response to the request, if it has one.
+	 */
+	private Optional<MailResponse> query(MailBox mailbox, MailRequest request) {
 		MailResponse response = null;
 		switch (request.getType()) {
 		case GET_ALL_MAIL:
-			response = MailResponse.withMailResults(getAllMailOfClient(client, request.getAmount()));
+			response = MailResponse.withMailResults(getAllMailOfClient(mailbox, request.getAmount()));
 			break;
 		case GET_CONTACTS:
-			response = MailResponse.withContactsResults(getContacts(client));
+			response = MailResponse.withContactsResults(getContacts(mailbox));
 			break;
 		case GET_CORRESPONDANCES:
-			response = MailResponse.withMailResults(getCorrespondencesBetween(client,request.getOtherClient(), request.getAmount()));
+			response = MailResponse.withMailResults(getCorrespondencesBetween(mailbox,request.getOtherClient(), request.getAmount()));
 			break;
 		case GET_INCOMING:
-			response = MailResponse.withMailResults(getIncomingMailOfClient(client, request.getAmount()));
+			response = MailResponse.withMailResults(getIncomingMailOfClient(mailbox, request.getAmount()));
 			break;
 		case GET_MAIL_SENT:
-			response = MailResponse.withMailResults(getSentMailOfClient(client, request.getAmount()));
+			response = MailResponse.withMailResults(getSentMailOfClient(mailbox, request.getAmount()));
 			break;
 		case GET_UNREAD:
-			response = MailResponse.withMailResults(getUnreadMailOfClient(client));
-			break;
-		case SEND_MAIL:
-			addNewMail(request.getMail());
+			response = MailResponse.withMailResults(getUnreadMailOfClient(mailbox));
 			break;
 		default:
 			break;
@@ -157,32 +567,46 @@ public class ServerMailApplication {
 	 * @param mail Mail item that was sent.
 	 */
 	private void addNewMail(Mail mail) {
-		addNewMailEntry(new MailEntry(mail));
-
+		MailEntry entry = new MailEntry(mail);
+		// Journaled before the mailboxes are handed the mail, so it can't be marked as read before it is journaled.
+		dataSaver.appendMail(entry);
+		moveOffHeap(entry);
+		addNewMailEntry(entry);
 	}
 	
 	/**
-	 * Add a new mail entry, sent from a client or loaded from history.
+	 * Move a mail off the heap, if the mails are mapped.
+	 * 
+	 * @param entry the entry of the mail, which was not moved yet.
+	 */
+	private void moveOffHeap(MailEntry entry) {
+		if (null != mailStore) {
+			entry.moveTo(mailStore);
+		}
+	}
+	
+	/**
+	 * Add a new mail entry, sent from a client or loaded from the journal.
 	 * Updates both clients' mailboxes.
 	 * 
-	 * @param entry the mail entry to add.
+	 * @param entry the mail entry to add, already moved off the heap if the mails are mapped.
 	 */
 	private void addNewMailEntry(MailEntry entry) {
-		getMailBoxOfClient(entry.getMail().from).addSentMail(entry);
-		getMailBoxOfClient(entry.getMail().to).addReceivedMail(entry);
-		history.add(entry);
+		// Each mailbox gets the mail after whatever it was handed before, by its own worker (or shard), so a new mail
+		// only waits for the two mailboxes it goes to.
+		withMailBoxOf(entry.getFrom(), mailbox -> mailbox.addSentMail(entry));
+		withMailBoxOf(entry.getTo(), mailbox -> mailbox.addReceivedMail(entry));
 	}
 	
 	/**
 	 * Retrieve at most howMany most recent mails from the complete correspondence between two clients.
 	 * 
-	 * @param requester - Address of the client requesting the correspondence.
+	 * @param mailbox - Mailbox of the client requesting the correspondence.
 	 * @param otherClient - Address of client with whom correspondence was asked for by the requester.
 	 * @param howMany - Maximal amount of mail items to be returned.
 	 * @return List of at most howMany, most recent mail items, in the correspondence between the two clients, ordered from newest to oldest.
 	 */
-	private List<Mail> getCorrespondencesBetween(String requester, String otherClient, int howMany) {
-		MailBox mailbox = getMailBoxOfClient(requester);
+	private List<Mail> getCorrespondencesBetween(MailBox mailbox, String otherClient, int howMany) {
 		return mailbox.getCorrespondeceWith(otherClient, howMany).stream()
 				.map(entry -> entry.getMail()).collect(Collectors.toList());
 	}
@@ -190,12 +614,11 @@ public class ServerMailApplication {
 	/**
 	 * Retrieve at most howMany of the most recent mail items a given client has sent.
 	 * 
-	 * @param client - Address of sending client
+	 * @param mailbox - Mailbox of the sending client
 	 * @param howMany - Maximal amount of mail items to return.
 	 * @return List of at most howMany, most recent mail items, the client has sent, ordered from newest to oldest.
 	 */
-	private List<Mail> getSentMailOfClient(String client, int howMany) {
-		MailBox mailbox = getMailBoxOfClient(client);
+	private List<Mail> getSentMailOfClient(MailBox mailbox, int howMany) {
 		return mailbox.getLastNSent(howMany).stream()
 				.map(entry -> entry.getMail()).collect(Collectors.toList());
 	}
@@ -203,30 +626,27 @@ public class ServerMailApplication {
 	/**
 	 * Retrieve at most howMany of the most recent mail items a given client has received.
 	 * 
-	 * @param client - Address of the receiving client.
+	 * @param mailbox - Mailbox of the receiving client.
 	 * @param howMany - Maximal amount of mail items to return.
 	 * @return List of at most howMany, most recent mail items, the client has received, ordered from newest to oldest.
 	 */
-	private List<Mail> getIncomingMailOfClient(String client, int howMany) {
-		MailBox mailbox = getMailBoxOfClient(client);
+	private List<Mail> getIncomingMailOfClient(MailBox mailbox, int howMany) {
 		return mailbox.getLastNReceived(howMany).stream()
 				.map(entry -> entry.getMail()).collect(Collectors.toList());
 	}
 	
-	private List<String> getContacts(String client) {
-		MailBox mailbox = getMailBoxOfClient(client);
+	private List<String> getContacts(MailBox mailbox) {
 		return mailbox.getContacts();
 	}
 	
 	/**
 	 * Retrieve at most howMany of the most recent mail items a given client has either sent or received.
 	 * 
-	 * @param client - Address of client whose mails are queried.
+	 * @param mailbox - Mailbox of the client whose mails are queried.
 	 * @param howMany - Maximal amount of mail items to return.
 	 * @return List of at most howMany, most recent mail items, the client has either sent or received, ordered from newest to oldest.
 	 */
-	private List<Mail> getAllMailOfClient(String client, int howMany) {
-		MailBox mailbox = getMailBoxOfClient(client);
+	private List<Mail> getAllMailOfClient(MailBox mailbox, int howMany) {
 		return mailbox.getLastNMails(howMany).stream()
 				.map(entry -> entry.getMail()).collect(Collectors.toList());
 	}
@@ -234,30 +654,46 @@ public class ServerMailApplication {
 	/**
 	 * Retrieve all unread mail items of a given client.
 	 * 
-	 * @param client - Address of client of which to get the unread mail.
+	 * @param mailbox - Mailbox of the client of which to get the unread mail.
 	 * @return List of all the unread mail items of the given client.
 	 */
-	private List<Mail> getUnreadMailOfClient(String client) {
-		MailBox mailbox = getMailBoxOfClient(client); 
+	private List<Mail> getUnreadMailOfClient(MailBox mailbox) {
 		return mailbox.getUnread().stream()
 				.map(entry -> entry.getMail()).collect(Collectors.toList());
 	}
 	
 	/**
-	 * Store all of this server's current data (mailboxes and their contents) into a file. 
+	 * Close the journal of this server's data. There is nothing left to store, since every mail and read mark was
+	 * appended to the journal as it happened.
 	 */
-	private void saveData() {
-		dataSaver.save(history);
+	private void closeData() {
+		dataSaver.close();
+	}
+	
+	/**
+	 * Take a snapshot of this server's data, and start its journal over.
+	 */
+	private void snapshotData() {
+		try {
+			dataSaver.snapshot();
+		} catch (RuntimeException e) {
+			// The journal still holds everything the snapshot would have; the next one tries again.
+		}
 	}
 	
 	/**
-	 * Load a previously stored database of mailboxes and their contents into the active server.
+	 * Load a previously stored database of mailboxes and their contents into the active server, by replaying its
+	 * journal.
 	 */
 	private void loadData() {
-		history = new ArrayList<MailEntry>();
-		mailboxes = new HashMap<String, MailBox>();
+		mailboxes = new ConcurrentHashMap<String, MailBox>();
 		
-		Optional<List<MailEntry>> loaded_history = dataSaver.load();
+		// Each mail is moved off the heap as soon as it is read, so the history is never all on the heap at once. The
+		// mailboxes are only handed the mails once all are read, since a later read mark may still apply to any of them.
+		Optional<List<MailEntry>> loaded_history = dataSaver.load(this::moveOffHeap);
+		if (!loaded_history.isPresent()) {
+			loaded_history = migrateLegacyData();
+		}
 		if (!loaded_history.isPresent()) {
 			return;
 		}
@@ -267,6 +703,25 @@ public class ServerMailApplication {
 		}
 	}
 	
+	/**
+	 * Move the mails saved by a server from before the journal, if there are any, to a snapshot that the journal
+	 * follows.
+	 * 
+	 * @return the mails that were migrated, or an empty optional in case there were none.
+	 */
+	private Optional<List<MailEntry>> migrateLegacyData() {
+		Optional<List<MailEntry>> $ = legacyDataSaver.load();
+		if ($.isPresent()) {
+			dataSaver.save($.get());
+			// Only once the snapshot is written, so a crash in between migrates the mails again.
+			legacyDataSaver.clean();
+			for (MailEntry entry : $.get()) {
+				moveOffHeap(entry);
+			}
+		}
+		return $;
+	}
+	
 	/**
 	 * Safely get a mailbox of a given client. If non exists, a new mailbox will be created for the client.
 	 * 
@@ -274,11 +729,34 @@ public class ServerMailApplication {
 	 * @return MailBox of the given client.
 	 */
 	private MailBox getMailBoxOfClient(String client) {
-		if (!mailboxes.containsKey(client)) {
-			mailboxes.put(client, new MailBox());
+		return mailBoxIn(mailboxes, client);
+	}
+	
+	/**
+	 * Run an operation on the mailbox of a given client: right away in SERIAL mode, or after everything previously
+	 * handed to that mailbox, by its worker (shard, or virtual thread), in the other modes.
+	 * 
+	 * @param client Address of client whose mailbox is operated on.
+	 * @param operation The operation to run.
+	 */
+	private void withMailBoxOf(String client, Consumer<MailBox> operation) {
+		if (null != shards) {
+			shards.execute(client, boxes -> operation.accept(mailBoxIn(boxes, client)));
+		} else if (null != dispatcher) {
+			dispatcher.execute(client, () -> operation.accept(getMailBoxOfClient(client)));
+		} else {
+			operation.accept(getMailBoxOfClient(client));
 		}
-		MailBox mb = mailboxes.get(client);
-		
-		return mb;
+	}
+	
+	/**
+	 * Get a mailbox of a given client from a map of mailboxes, creating it if non exists.
+	 * 
+	 * @param mailboxes Mailboxes by the addresses of their clients.
+	 * @param client Address of client for whom the mailbox is requested.
+	 * @return MailBox of the given client.
+	 */
+	private MailBox mailBoxIn(Map<String, MailBox> mailboxes, String client) {
+		return mailboxes.computeIfAbsent(client, c -> new MailBox(dataSaver::appendRead));
 	}
 }
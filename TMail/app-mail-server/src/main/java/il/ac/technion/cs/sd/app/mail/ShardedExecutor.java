@@ -0,0 +1,155 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Partitions some state into shards by key, each owned by a single thread that runs the tasks of its keys in the
+ * order they were submitted. Tasks get the state of their shard, and since nothing else ever touches it, they need
+ * no synchronization to use it.
+ * <br>
+ * Each shard is fed by a lock-free queue; its thread only parks when the queue is empty.
+ * @param <S> The type of the state of a shard.
+ */
+class ShardedExecutor<S> {
+
+	final private Shard[] shards;
+
+	// Guards closed. Only taken by the submitting threads, never by the shards.
+	final private Object lock = new Object();
+	private volatile boolean closed;
+
+	/**
+	 * Create the shards, and start their threads.
+	 * @param count the amount of shards.
+	 * @param name a name for the threads of the shards.
+	 * @param state creates the initial state of each shard.
+	 */
+	ShardedExecutor(int count, String name, Supplier<S> state) {
+		if (count <= 0) {
+			throw new IllegalArgumentException();
+		}
+		shards = new ShardedExecutor.Shard[count];
+		for (int i = 0; i < count; ++i) {
+			shards[i] = new Shard(name + "-shard-" + i, state.get());
+			shards[i].start();
+		}
+	}
+
+	/**
+	 * @return the amount of shards.
+	 */
+	int size() {
+		return shards.length;
+	}
+
+	/**
+	 * Get the shard that owns a key.
+	 * @param key the key.
+	 * @return the index of the shard, from 0 to {@link ShardedExecutor#size()} (exclusive).
+	 */
+	int shardOf(String key) {
+		int h = key.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), shards.length);
+	}
+
+	/**
+	 * Run a task on the shard that owns a key, after all the tasks previously submitted to that shard.
+	 * @param key the key the task is about.
+	 * @param task the task to run, given the state of the shard.
+	 * @throws RejectedExecutionException if this executor is closed.
+	 */
+	void execute(String key, Consumer<S> task) {
+		synchronized (lock) {
+			if (closed) {
+				throw new RejectedExecutionException("executor is closed");
+			}
+			shards[shardOf(key)].submit(task);
+		}
+	}
+
+	/**
+	 * Run a task on every shard, after all the tasks previously submitted to it.
+	 * @param task the task to run, given the state of each shard.
+	 * @throws RejectedExecutionException if this executor is closed.
+	 */
+	void executeOnEach(Consumer<S> task) {
+		synchronized (lock) {
+			if (closed) {
+				throw new RejectedExecutionException("executor is closed");
+			}
+			for (Shard shard : shards) {
+				shard.submit(task);
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting tasks, and wait for the shards to run all the submitted ones.
+	 */
+	void close() {
+		synchronized (lock) {
+			closed = true;
+		}
+		for (Shard shard : shards) {
+			LockSupport.unpark(shard);
+		}
+		try {
+			for (Shard shard : shards) {
+				shard.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A shard's thread, with its state and queue of tasks.
+	 */
+	private class Shard extends Thread {
+		final private S state;
+		final private Queue<Consumer<S>> tasks = new ConcurrentLinkedQueue<Consumer<S>>();
+		// Set while the thread is about to park, so submitters only wake it up when needed.
+		private volatile boolean idle;
+
+		Shard(String name, S state) {
+			super(name);
+			this.state = state;
+			setDaemon(true);
+		}
+
+		void submit(Consumer<S> task) {
+			tasks.add(task);
+			if (idle) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Consumer<S> task = tasks.poll();
+				if (task != null) {
+					try {
+						task.accept(state);
+					} catch (RuntimeException e) {
+						getUncaughtExceptionHandler().uncaughtException(this, e);
+					}
+					continue;
+				}
+				if (closed) {
+					return; // No more tasks can be submitted, and the queue is empty.
+				}
+				idle = true;
+				if (tasks.isEmpty() && !closed) {
+					LockSupport.park(this);
+				}
+				idle = false;
+			}
+		}
+	}
+}
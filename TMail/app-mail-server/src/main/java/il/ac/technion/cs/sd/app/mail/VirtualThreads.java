@@ -0,0 +1,53 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21 and later), for a server built to run on older Java versions as well.
+ */
+final class VirtualThreads {
+
+	// Executors.newVirtualThreadPerTaskExecutor(), or null when running on a Java version without virtual threads.
+	private static final MethodHandle newPerTaskExecutor = lookupPerTaskExecutor();
+
+	private VirtualThreads() {
+	}
+
+	private static MethodHandle lookupPerTaskExecutor() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+					MethodType.methodType(ExecutorService.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether the running Java version has virtual threads.
+	 */
+	static boolean isSupported() {
+		return newPerTaskExecutor != null;
+	}
+
+	/**
+	 * Create an executor that runs each task on a new virtual thread.
+	 * @return the executor created.
+	 * @throws UnsupportedOperationException if the running Java version has no virtual threads.
+	 */
+	static ExecutorService newPerTaskExecutor() {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		}
+		try {
+			return (ExecutorService) newPerTaskExecutor.invoke();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
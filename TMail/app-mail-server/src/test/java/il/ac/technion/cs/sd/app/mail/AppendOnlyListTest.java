@@ -0,0 +1,82 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AppendOnlyListTest {
+
+	final AppendOnlyList<Integer> list = new AppendOnlyList<Integer>();
+
+	@Test
+	public void verifyEmptyAtFirst() {
+		assertTrue(list.isEmpty());
+	}
+
+	@Test
+	public void keepsElementsAcrossChunks() {
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 100000; ++i) {
+			list.add(i);
+			expected.add(i);
+		}
+		assertEquals(expected, list);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void getPastTheEndThrows() {
+		list.add(1);
+		list.get(1);
+	}
+
+	@Test
+	public void prefixDoesNotChangeAsMoreIsAppended() {
+		for (int i = 0; i < 10; ++i) {
+			list.add(i);
+		}
+		List<Integer> prefix = list.prefix(10);
+		for (int i = 10; i < 10000; ++i) {
+			list.add(i);
+		}
+		assertEquals(10, prefix.size());
+		assertEquals(list.subList(0, 10), prefix);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void prefixLongerThanTheListIsRejected() {
+		list.add(1);
+		list.prefix(2);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void cantRemove() {
+		list.add(1);
+		list.remove(0);
+	}
+
+	@Test(timeout = 10000)
+	public void readerSeesEveryElementAppended() throws Exception {
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicBoolean consistent = new AtomicBoolean(true);
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				int size = list.size();
+				if (size > 0 && list.get(size - 1) != size - 1) {
+					consistent.set(false);
+				}
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 1000000; ++i) {
+			list.add(i);
+		}
+		done.set(true);
+		reader.join();
+		assertTrue(consistent.get());
+	}
+}
@@ -0,0 +1,143 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class GroupCommitTest {
+
+	final List<List<Integer>> groups = Collections.synchronizedList(new ArrayList<List<Integer>>());
+	GroupCommit<Integer> commits;
+
+	@After
+	public void tearDown() {
+		if (null != commits) {
+			commits.close();
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void commitsRecordsInOrder() throws Exception {
+		commits = new GroupCommit<Integer>("test", 100, 0, groups::add);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 10; ++i) {
+			futures.add(commits.submit(i));
+		}
+		for (CompletableFuture<Void> future : futures) {
+			future.get();
+		}
+		List<Integer> committed = new ArrayList<Integer>();
+		groups.forEach(committed::addAll);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), committed);
+	}
+
+	@Test(timeout = 5000)
+	public void recordsSubmittedDuringCommitShareTheNext() throws Exception {
+		CountDownLatch committing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		commits = new GroupCommit<Integer>("test", 100, 0, records -> {
+			groups.add(records);
+			committing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		CompletableFuture<Void> first = commits.submit(0);
+		committing.await();
+		List<CompletableFuture<Void>> piled = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 1; i <= 5; ++i) {
+			piled.add(commits.submit(i));
+		}
+		release.countDown();
+		for (CompletableFuture<Void> future : piled) {
+			future.get();
+		}
+		assertTrue(first.isDone());
+		assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1, 2, 3, 4, 5)), groups);
+	}
+
+	@Test(timeout = 5000)
+	public void groupsAreBoundedByMaxBatch() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		commits = new GroupCommit<Integer>("test", 2, 0, records -> {
+			groups.add(records);
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 7; ++i) {
+			futures.add(commits.submit(i));
+		}
+		release.countDown();
+		for (CompletableFuture<Void> future : futures) {
+			future.get();
+		}
+		for (List<Integer> group : groups) {
+			assertTrue(group.size() <= 2);
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void maxDelayGathersLaterRecords() throws Exception {
+		commits = new GroupCommit<Integer>("test", 100, TimeUnit.MILLISECONDS.toNanos(300), groups::add);
+		CompletableFuture<Void> first = commits.submit(0);
+		Thread.sleep(50);
+		CompletableFuture<Void> second = commits.submit(1);
+		first.get();
+		second.get();
+		assertEquals(Arrays.asList(Arrays.asList(0, 1)), groups);
+	}
+
+	@Test(timeout = 5000)
+	public void maxBatchCutsMaxDelayShort() throws Exception {
+		commits = new GroupCommit<Integer>("test", 2, TimeUnit.HOURS.toNanos(1), groups::add);
+		CompletableFuture<Void> first = commits.submit(0);
+		commits.submit(1).get();
+		assertTrue(first.isDone());
+	}
+
+	@Test(timeout = 5000)
+	public void failedCommitFailsItsRecords() throws Exception {
+		commits = new GroupCommit<Integer>("test", 100, 0, records -> {
+			throw new RuntimeException("disk full");
+		});
+		try {
+			commits.submit(0).get();
+		} catch (ExecutionException e) {
+			assertEquals("disk full", e.getCause().getMessage());
+			return;
+		}
+		throw new AssertionError("the commit should have failed");
+	}
+
+	@Test(timeout = 5000)
+	public void closeCommitsPendingRecordsAndRejectsLater() throws Exception {
+		commits = new GroupCommit<Integer>("test", 100, TimeUnit.HOURS.toNanos(1), groups::add);
+		CompletableFuture<Void> pending = commits.submit(0);
+		commits.close();
+		assertTrue(pending.isDone() && !pending.isCompletedExceptionally());
+		assertEquals(Arrays.asList(Arrays.asList(0)), groups);
+		assertTrue(commits.submit(1).isCompletedExceptionally());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxBatchMustBePositive() {
+		new GroupCommit<Integer>("test", 0, 0, groups::add);
+	}
+}
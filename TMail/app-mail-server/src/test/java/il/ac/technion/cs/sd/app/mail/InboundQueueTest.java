@@ -0,0 +1,98 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class InboundQueueTest {
+
+	private static final MailRequest write = MailRequest.sendMail(new Mail("a", "b", "hi"));
+
+	private static List<MailRequest> requestsOf(List<InboundQueue.Inbound> taken) {
+		return taken.stream().map(in -> in.request).collect(Collectors.toList());
+	}
+
+	@Test
+	public void readIsRejectedWhenFull() {
+		InboundQueue queue = new InboundQueue(2, OverloadPolicy.REJECT_NEWEST, 0);
+		MailRequest newest = MailRequest.getIncoming(3);
+		assertFalse(queue.admit("a", MailRequest.getUnread()).isPresent());
+		assertFalse(queue.admit("b", MailRequest.getContacts()).isPresent());
+		assertSame(newest, queue.admit("c", newest).get().request);
+		assertEquals(2, queue.takeAll(10).size());
+	}
+
+	@Test
+	public void takenRequestHoldsItsPlaceUntilDone() {
+		InboundQueue queue = new InboundQueue(1, OverloadPolicy.REJECT_NEWEST, 0);
+		queue.admit("a", MailRequest.getUnread());
+		assertNotNull(queue.take());
+		assertTrue(queue.admit("a", MailRequest.getUnread()).isPresent());
+		queue.done(1);
+		assertFalse(queue.admit("a", MailRequest.getUnread()).isPresent());
+	}
+
+	@Test
+	public void writeTakesThePlaceOfTheNewestRead() {
+		InboundQueue queue = new InboundQueue(3, OverloadPolicy.PRIORITIZE_WRITES, 0);
+		MailRequest oldest = MailRequest.getUnread();
+		MailRequest newest = MailRequest.getContacts();
+		queue.admit("a", oldest);
+		queue.admit("b", newest);
+		queue.admit("a", write);
+		Optional<InboundQueue.Inbound> rejected = queue.admit("a", write);
+		assertSame(newest, rejected.get().request);
+		assertEquals(Arrays.asList(oldest, write, write), requestsOf(queue.takeAll(10)));
+	}
+
+	@Test(timeout = 5000)
+	public void writeWaitsForRoom() throws InterruptedException {
+		InboundQueue queue = new InboundQueue(1, OverloadPolicy.REJECT_NEWEST, 0);
+		queue.admit("a", MailRequest.getUnread());
+		queue.take();
+		Thread writer = new Thread(() -> queue.admit("a", write));
+		writer.start();
+		writer.join(100);
+		assertTrue("a write should wait while the queue is full", writer.isAlive());
+		queue.done(1);
+		writer.join();
+		assertSame(write, queue.take().request);
+	}
+
+	@Test
+	public void onlyReadsExpire() throws InterruptedException {
+		InboundQueue queue = new InboundQueue(10, OverloadPolicy.DROP_EXPIRED, TimeUnit.MILLISECONDS.toNanos(1));
+		queue.admit("a", MailRequest.getUnread());
+		queue.admit("a", write);
+		Thread.sleep(10);
+		List<InboundQueue.Inbound> taken = queue.takeAll(10);
+		assertTrue(queue.isExpired(taken.get(0)));
+		assertFalse(queue.isExpired(taken.get(1)));
+	}
+
+	@Test
+	public void nothingExpiresUnlessThePolicyDropsExpiredRequests() throws InterruptedException {
+		InboundQueue queue = new InboundQueue(10, OverloadPolicy.REJECT_NEWEST, 0);
+		queue.admit("a", MailRequest.getUnread());
+		Thread.sleep(10);
+		assertFalse(queue.isExpired(queue.take()));
+	}
+
+	@Test(timeout = 5000)
+	public void closedQueueIsDrainedAndThenEmpty() {
+		InboundQueue queue = new InboundQueue(10, OverloadPolicy.REJECT_NEWEST, 0);
+		MailRequest waiting = MailRequest.getUnread();
+		queue.admit("a", waiting);
+		queue.close();
+		assertTrue(queue.admit("a", MailRequest.getUnread()).isPresent());
+		assertSame(waiting, queue.take().request);
+		assertNull(queue.take());
+		assertTrue(queue.takeAll(10).isEmpty());
+	}
+}
@@ -0,0 +1,332 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalDataSaverTest {
+
+	static private final String fileName = "JournalDataSaverTestFile";
+
+	JournalDataSaver journal;
+
+	@Before
+	public void setUp() throws Exception {
+		journal = new JournalDataSaver(fileName);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.clean();
+	}
+
+	private MailEntry append(String from, String to, String content) {
+		MailEntry $ = new MailEntry(new Mail(from, to, content));
+		journal.appendMail($);
+		return $;
+	}
+
+	private static List<Mail> mailsOf(List<MailEntry> entries) {
+		return entries.stream().map(MailEntry::getMail).collect(Collectors.toList());
+	}
+
+	private static List<Boolean> readFlagsOf(List<MailEntry> entries) {
+		return entries.stream().map(MailEntry::getIsRead).collect(Collectors.toList());
+	}
+
+	@Test
+	public void verifyEmptyAtFirst() {
+		assertFalse(journal.load().isPresent());
+	}
+
+	@Test
+	public void replaysMailsInOrder() {
+		append("a", "b", "first");
+		append("b", "a", "second");
+		append("a", "c", "\u00fcnicode \u2713");
+		journal.close();
+
+		List<MailEntry> loaded = new JournalDataSaver(fileName).load().get();
+		assertEquals(Arrays.asList(new Mail("a", "b", "first"), new Mail("b", "a", "second"),
+				new Mail("a", "c", "\u00fcnicode \u2713")), mailsOf(loaded));
+		assertEquals(Arrays.asList(0, 1, 2), loaded.stream().map(MailEntry::getIndex).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void replaysReadMarks() {
+		append("a", "b", "first");
+		MailEntry second = append("b", "a", "second");
+		append("a", "c", "third");
+		journal.appendRead(second);
+
+		assertEquals(Arrays.asList(false, true, false), readFlagsOf(journal.load().get()));
+	}
+
+	@Test
+	public void loadHandsOverEachMailOfTheSnapshotAndJournal() {
+		MailEntry first = append("a", "b", "first");
+		append("b", "a", "second");
+		journal.snapshot();
+		append("a", "c", "third");
+		journal.appendRead(first);
+		journal.close();
+
+		List<MailEntry> handed = new ArrayList<MailEntry>();
+		List<MailEntry> loaded = new JournalDataSaver(fileName).load(handed::add).get();
+		assertEquals(loaded, handed);
+		assertEquals(Arrays.asList(new Mail("a", "b", "first"), new Mail("b", "a", "second"),
+				new Mail("a", "c", "third")), mailsOf(handed));
+		assertEquals(Arrays.asList(true, false, false), readFlagsOf(loaded));
+	}
+
+	@Test
+	public void appendsAfterLoadContinueTheJournal() {
+		append("a", "b", "first");
+		MailEntry first = journal.load().get().get(0);
+		MailEntry second = append("a", "b", "second");
+		assertEquals(1, second.getIndex());
+		journal.appendRead(first);
+
+		List<MailEntry> loaded = journal.load().get();
+		assertEquals(Arrays.asList(new Mail("a", "b", "first"), new Mail("a", "b", "second")), mailsOf(loaded));
+		assertEquals(Arrays.asList(true, false), readFlagsOf(loaded));
+	}
+
+	@Test
+	public void dropsTornTail() throws Exception {
+		append("a", "b", "kept");
+		append("a", "b", "torn");
+		journal.close();
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		assertEquals(Arrays.asList(new Mail("a", "b", "kept")), mailsOf(journal.load().get()));
+		// The torn record is gone, so new records follow the last good one.
+		append("a", "b", "after");
+		assertEquals(Arrays.asList(new Mail("a", "b", "kept"), new Mail("a", "b", "after")),
+				mailsOf(journal.load().get()));
+	}
+
+	@Test
+	public void stopsAtCorruptRecord() throws Exception {
+		append("a", "b", "kept");
+		append("a", "b", "corrupt");
+		append("a", "b", "after corrupt");
+		journal.close();
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+			// The last byte of the content of the second mail.
+			long position = 2 * 8 + 2 * (1 + 4 + 1 + 4 + 1 + 4) + "kept".length() + "corrupt".length() - 1;
+			file.seek(position);
+			file.write('X');
+		}
+
+		assertEquals(Arrays.asList(new Mail("a", "b", "kept")), mailsOf(journal.load().get()));
+	}
+
+	@Test
+	public void saveReplacesJournal() {
+		append("a", "b", "old");
+		MailEntry read = new MailEntry(new Mail("c", "d", "read"), true);
+		MailEntry unread = new MailEntry(new Mail("d", "c", "unread"));
+		journal.save(Arrays.asList(read, unread));
+
+		List<MailEntry> loaded = journal.load().get();
+		assertEquals(Arrays.asList(read.getMail(), unread.getMail()), mailsOf(loaded));
+		assertEquals(Arrays.asList(true, false), readFlagsOf(loaded));
+	}
+
+	@Test(timeout = 5000)
+	public void groupCommitSyncsAppends() throws Exception {
+		journal.groupCommit(16, 1, TimeUnit.MILLISECONDS);
+		MailEntry first = new MailEntry(new Mail("a", "b", "first"));
+		CompletableFuture<Void> mail = journal.appendMail(first);
+		CompletableFuture<Void> read = journal.appendRead(first);
+		CompletableFuture<Void> second = journal.appendMail(new MailEntry(new Mail("b", "a", "second")));
+		CompletableFuture.allOf(mail, read, second).get();
+
+		List<MailEntry> loaded = new JournalDataSaver(fileName).load().get();
+		assertEquals(Arrays.asList(new Mail("a", "b", "first"), new Mail("b", "a", "second")), mailsOf(loaded));
+		assertEquals(Arrays.asList(true, false), readFlagsOf(loaded));
+	}
+
+	@Test
+	public void syncedWaitsForEveryRecordAppended() {
+		assertTrue(journal.synced().isDone());
+		journal.groupCommit(16, 1, TimeUnit.HOURS);
+		MailEntry entry = new MailEntry(new Mail("a", "b", "pending"));
+		journal.appendMail(entry);
+		journal.appendRead(entry);
+		CompletableFuture<Void> synced = journal.synced();
+		assertFalse(synced.isDone());
+		journal.close();
+		assertTrue(synced.isDone());
+	}
+
+	@Test
+	public void closeSyncsPendingGroup() {
+		journal.groupCommit(16, 1, TimeUnit.HOURS);
+		CompletableFuture<Void> pending = journal.appendMail(new MailEntry(new Mail("a", "b", "pending")));
+		journal.close();
+		assertTrue(pending.isDone());
+		assertEquals(Arrays.asList(new Mail("a", "b", "pending")), mailsOf(journal.load().get()));
+	}
+
+	@Test
+	public void snapshotStartsJournalOver() {
+		append("a", "b", "first");
+		MailEntry second = append("b", "a", "second");
+		second.markAsRead();
+		journal.appendRead(second);
+		long journalSize = new File(fileName).length();
+		journal.snapshot();
+		assertTrue(new File(fileName).length() < journalSize);
+
+		MailEntry third = append("a", "b", "third");
+		assertEquals(2, third.getIndex());
+		third.markAsRead();
+		journal.appendRead(third);
+
+		List<MailEntry> loaded = new JournalDataSaver(fileName).load().get();
+		assertEquals(Arrays.asList(new Mail("a", "b", "first"), new Mail("b", "a", "second"),
+				new Mail("a", "b", "third")), mailsOf(loaded));
+		assertEquals(Arrays.asList(false, true, true), readFlagsOf(loaded));
+	}
+
+	@Test
+	public void snapshotWithGroupCommitKeepsEachMailOnce() {
+		journal.groupCommit(1000, 200, TimeUnit.MILLISECONDS);
+		journal.appendMail(new MailEntry(new Mail("a", "b", "pending")));
+		journal.snapshot();
+		journal.appendMail(new MailEntry(new Mail("b", "a", "after")));
+		journal.close();
+		assertEquals(Arrays.asList(new Mail("a", "b", "pending"), new Mail("b", "a", "after")),
+				mailsOf(new JournalDataSaver(fileName).load().get()));
+	}
+
+	@Test
+	public void readMarksOfSnapshotMailsAreReplayed() {
+		MailEntry first = append("a", "b", "first");
+		journal.snapshot();
+		journal.appendRead(first);
+		assertEquals(Arrays.asList(true), readFlagsOf(journal.load().get()));
+	}
+
+	@Test
+	public void journalNotYetStartedOverSkipsSnapshotMails() throws Exception {
+		append("a", "b", "first");
+		append("a", "b", "second");
+		journal.close();
+		File before = new File(fileName + ".before");
+		Files.copy(Paths.get(fileName), before.toPath());
+		try {
+			journal.snapshot();
+			// As if the server crashed after writing the snapshot, before the journal started over.
+			Files.move(before.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+
+			assertEquals(Arrays.asList(new Mail("a", "b", "first"), new Mail("a", "b", "second")),
+					mailsOf(journal.load().get()));
+			assertEquals(2, append("a", "b", "third").getIndex());
+			assertEquals(3, journal.load().get().size());
+		} finally {
+			before.delete();
+		}
+	}
+
+	@Test
+	public void snapshotWithoutJournalIsLoaded() {
+		append("a", "b", "first");
+		journal.snapshot();
+		new File(fileName).delete();
+
+		assertEquals(Arrays.asList(new Mail("a", "b", "first")), mailsOf(journal.load().get()));
+		append("a", "b", "second");
+		assertEquals(2, journal.load().get().size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void journalThatSkipsMailsIsRejected() {
+		append("a", "b", "first");
+		journal.snapshot();
+		append("a", "b", "second");
+		journal.close();
+		new File(fileName + ".snapshot").delete();
+		journal.load();
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void corruptSnapshotIsRejected() throws Exception {
+		append("a", "b", "first");
+		journal.snapshot();
+		try (RandomAccessFile file = new RandomAccessFile(fileName + ".snapshot", "rw")) {
+			file.seek(file.length() - 5);
+			file.write('X');
+		}
+		journal.load();
+	}
+
+	@Test(timeout = 20000)
+	public void snapshotsTakenWhileAppendingLoseNothing() throws Exception {
+		AtomicBoolean done = new AtomicBoolean();
+		Thread snapshots = new Thread(() -> {
+			while (!done.get()) {
+				journal.snapshot();
+			}
+		});
+		snapshots.start();
+		List<MailEntry> appended = new ArrayList<MailEntry>();
+		List<Boolean> expected = new ArrayList<Boolean>();
+		try {
+			for (int i = 0; i < 2000; ++i) {
+				appended.add(append("a", "b", "mail " + i));
+				expected.add(false);
+				if (i % 3 == 0) {
+					// Read a mail that may already be in a snapshot.
+					MailEntry read = appended.get(i / 2);
+					read.markAsRead();
+					journal.appendRead(read);
+					expected.set(i / 2, true);
+				}
+			}
+		} finally {
+			done.set(true);
+			snapshots.join();
+		}
+		journal.close();
+
+		List<MailEntry> loaded = journal.load().get();
+		assertEquals(2000, loaded.size());
+		for (int i = 0; i < loaded.size(); ++i) {
+			assertEquals(new Mail("a", "b", "mail " + i), loaded.get(i).getMail());
+			assertEquals(i, loaded.get(i).getIndex());
+		}
+		assertEquals(expected, readFlagsOf(loaded));
+	}
+
+	@Test
+	public void cleanDeletesJournal() {
+		append("a", "b", "first");
+		journal.snapshot();
+		journal.clean();
+		assertFalse(journal.load().isPresent());
+		assertEquals(0, append("a", "b", "again").getIndex());
+		assertTrue(journal.load().isPresent());
+	}
+}
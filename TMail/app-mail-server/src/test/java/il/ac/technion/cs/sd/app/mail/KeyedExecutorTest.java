@@ -0,0 +1,98 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyedExecutorTest {
+
+	KeyedExecutor executor;
+
+	@Before
+	public void setUp() {
+		executor = new KeyedExecutor(Executors.newFixedThreadPool(4));
+	}
+
+	@After
+	public void tearDown() {
+		executor.close();
+	}
+
+	@Test
+	public void tasksOfTheSameKeyRunInOrder() {
+		List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> b = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; ++i) {
+			final int n = i;
+			executor.execute("a", () -> a.add(n));
+			executor.execute("b", () -> b.add(n));
+			expected.add(i);
+		}
+		executor.close();
+		assertEquals(expected, a);
+		assertEquals(expected, b);
+	}
+
+	@Test(timeout = 5000)
+	public void slowKeyDoesNotBlockOtherKeys() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch otherRan = new CountDownLatch(1);
+		executor.execute("slow", () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		});
+		executor.execute("other", () -> otherRan.countDown());
+
+		assertTrue(otherRan.await(1, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test(timeout = 5000)
+	public void tasksOfTheSameKeyNeverOverlap() {
+		int[] running = new int[1];
+		boolean[] overlapped = new boolean[1];
+		for (int i = 0; i < 200; ++i) {
+			executor.execute("key", () -> {
+				synchronized (running) {
+					overlapped[0] |= running[0]++ > 0;
+				}
+				Thread.yield();
+				synchronized (running) {
+					--running[0];
+				}
+			});
+		}
+		executor.close();
+		assertFalse(overlapped[0]);
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void closedExecutorRejectsTasks() {
+		executor.close();
+		executor.execute("a", () -> {});
+	}
+
+	@Test(timeout = 5000)
+	public void failingTaskDoesNotStopItsKey() throws InterruptedException {
+		CountDownLatch ran = new CountDownLatch(1);
+		executor.execute("a", () -> {
+			throw new RuntimeException("expected by the test");
+		});
+		executor.execute("a", () -> ran.countDown());
+		assertTrue(ran.await(1, TimeUnit.SECONDS));
+	}
+}
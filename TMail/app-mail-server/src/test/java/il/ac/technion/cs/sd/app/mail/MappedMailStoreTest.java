@@ -0,0 +1,99 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedMailStoreTest {
+
+	static private final String fileName = "MappedMailStoreTestFile";
+
+	MappedMailStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new MappedMailStore(fileName, 64);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+	}
+
+	@Test
+	public void getsMailAdded() {
+		Mail mail = new Mail("a", "b", "content");
+		long offset = store.add(mail);
+		assertEquals(mail, store.get(offset));
+		assertEquals("a", store.from(offset));
+		assertEquals("b", store.to(offset));
+	}
+
+	@Test
+	public void keepsMailsAcrossSegments() {
+		List<Mail> mails = new ArrayList<Mail>();
+		List<Long> offsets = new ArrayList<Long>();
+		for (int i = 0; i < 100; ++i) {
+			Mail mail = new Mail("sender " + i % 3, "recipient " + i % 5, "mail number " + i);
+			mails.add(mail);
+			offsets.add(store.add(mail));
+		}
+		assertTrue(new File(fileName + ".1").exists());
+		for (int i = 0; i < mails.size(); ++i) {
+			assertEquals(mails.get(i), store.get(offsets.get(i)));
+		}
+	}
+
+	@Test
+	public void mailLargerThanASegmentGetsOneOfItsOwn() {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 1000; ++i) {
+			content.append('x');
+		}
+		long small = store.add(new Mail("a", "b", "small"));
+		Mail large = new Mail("a", "b", content.toString());
+		long offset = store.add(large);
+		assertEquals(large, store.get(offset));
+		assertEquals(new Mail("a", "b", "small"), store.get(small));
+		assertEquals(new Mail("b", "a", "after"), store.get(store.add(new Mail("b", "a", "after"))));
+	}
+
+	@Test
+	public void keepsContentAsUtf8() {
+		Mail mail = new Mail("a", "b", "\u05e9\u05dc\u05d5\u05dd \u00e9");
+		assertEquals(mail, store.get(store.add(mail)));
+	}
+
+	@Test
+	public void closeDeletesSegments() {
+		store.add(new Mail("a", "b", "content"));
+		assertTrue(new File(fileName + ".0").exists());
+		store.close();
+		assertFalse(new File(fileName + ".0").exists());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void cantGetMailAfterClose() {
+		long offset = store.add(new Mail("a", "b", "content"));
+		store.close();
+		store.get(offset);
+	}
+
+	@Test
+	public void entryMovedToStoreKeepsItsMail() {
+		Mail mail = new Mail("a", "b", "content");
+		MailEntry entry = new MailEntry(mail);
+		entry.moveTo(store);
+		assertEquals(mail, entry.getMail());
+		assertEquals("a", entry.getFrom());
+		assertEquals("b", entry.getTo());
+	}
+}
@@ -1,13 +1,24 @@
 package il.ac.technion.cs.sd.app.mail;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import il.ac.technion.cs.sd.lib.MessageWithSender;
 import il.ac.technion.cs.sd.lib.ServerConnection;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 public class ServerMailApplicationTest {
@@ -40,7 +51,9 @@ public class ServerMailApplicationTest {
 	public void tearDown() throws Exception {
 		server.stop();
 		server.clean();
-		serverThread.stop();
+		if (null != serverThread) {
+			serverThread.stop();
+		}
 	}
 	
 	private MessageWithSender<MailRequest> newRequest(MailRequest request) {
@@ -129,4 +142,241 @@ public class ServerMailApplicationTest {
 		reponse.attachResponse(MailResponse.withContactsResults(new ArrayList<String>()));
 		Mockito.verify(connection).send(clientAddress, reponse);
 	}
+	
+	@SuppressWarnings("unchecked")
+	private void verifyRespondsToEachClientInOrder(ExecutionMode mode) throws InterruptedException {
+		server = new ServerMailApplication(serverAddress, mode, 4);
+		server.injectMockConnection(connection);
+		MessageWithSender<MailRequest>[] requests = new MessageWithSender[40];
+		for (int i = 0; i < requests.length; ++i) {
+			requests[i] = new MessageWithSender<MailRequest>(MailRequest.getAllMail(i / 2), i % 2 == 0 ? "a" : "b");
+		}
+		Mockito.when(connection.receiveBlocking()).thenReturn(requests[0], Arrays.copyOfRange(requests, 1, requests.length))
+				.thenThrow(IllegalMonitorStateException.class);
+		startServer();
+		
+		InOrder a = Mockito.inOrder(connection);
+		InOrder b = Mockito.inOrder(connection);
+		for (int i = 0; i < requests.length / 2; ++i) {
+			MailRequest reponse = MailRequest.getAllMail(i);
+			reponse.attachResponse(MailResponse.withMailResults(new ArrayList<Mail>()));
+			a.verify(connection).send("a", reponse);
+			b.verify(connection).send("b", reponse);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void verifyMailIsVisibleToLaterRequests(ExecutionMode mode) throws InterruptedException {
+		server = new ServerMailApplication(serverAddress, mode, 4);
+		server.injectMockConnection(connection);
+		Mail mail = new Mail(clientAddress, "Judy", "hi");
+		Mockito.when(connection.receiveBlocking())
+				.thenReturn(newRequest(MailRequest.sendMail(mail)), newRequest(MailRequest.getMailSent(5)),
+						new MessageWithSender<MailRequest>(MailRequest.getUnread(), "Judy"))
+				.thenThrow(IllegalMonitorStateException.class);
+		startServer();
+		
+		MailRequest sent = MailRequest.getMailSent(5);
+		sent.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		Mockito.verify(connection).send(clientAddress, sent);
+		MailRequest unread = MailRequest.getUnread();
+		unread.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		Mockito.verify(connection).send("Judy", unread);
+	}
+	
+	@Test
+	public void workerPoolRespondsToEachClientInOrder() throws InterruptedException {
+		verifyRespondsToEachClientInOrder(ExecutionMode.WORKER_POOL);
+	}
+	
+	@Test
+	public void workerPoolMailIsVisibleToLaterRequests() throws InterruptedException {
+		verifyMailIsVisibleToLaterRequests(ExecutionMode.WORKER_POOL);
+	}
+	
+	@Test
+	public void shardedRespondsToEachClientInOrder() throws InterruptedException {
+		verifyRespondsToEachClientInOrder(ExecutionMode.SHARDED);
+	}
+	
+	@Test
+	public void shardedMailIsVisibleToLaterRequests() throws InterruptedException {
+		verifyMailIsVisibleToLaterRequests(ExecutionMode.SHARDED);
+	}
+	
+	@Test
+	public void virtualThreadsRespondToEachClientInOrder() throws InterruptedException {
+		Assume.assumeTrue(VirtualThreads.isSupported());
+		verifyRespondsToEachClientInOrder(ExecutionMode.VIRTUAL_THREADS);
+	}
+	
+	@Test
+	public void virtualThreadsMailIsVisibleToLaterRequests() throws InterruptedException {
+		Assume.assumeTrue(VirtualThreads.isSupported());
+		verifyMailIsVisibleToLaterRequests(ExecutionMode.VIRTUAL_THREADS);
+	}
+	
+	@Test(expected = UnsupportedOperationException.class)
+	public void virtualThreadsRequireJava21() {
+		Assume.assumeFalse(VirtualThreads.isSupported());
+		new ServerMailApplication(serverAddress, ExecutionMode.VIRTUAL_THREADS);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void batchedSendsTheResponsesAsynchronously() throws InterruptedException {
+		server = new ServerMailApplication(serverAddress, ExecutionMode.BATCHED);
+		server.injectMockConnection(connection);
+		Mail mail = new Mail(clientAddress, "Judy", "hi");
+		List<MessageWithSender<MailRequest>> burst = Arrays.asList(
+				newRequest(MailRequest.getUnread()),
+				newRequest(MailRequest.sendMail(mail)),
+				new MessageWithSender<MailRequest>(MailRequest.getUnread(), "Judy"),
+				newRequest(MailRequest.getMailSent(5)));
+		Mockito.when(connection.receiveBatch(Mockito.anyInt(), Mockito.anyLong(), Mockito.any(TimeUnit.class)))
+				.thenReturn(burst).thenThrow(IllegalMonitorStateException.class);
+		Mockito.when(connection.sendAsync(Mockito.anyString(), Mockito.any(MailRequest.class)))
+				.thenReturn(CompletableFuture.completedFuture(null));
+		startServer();
+		
+		MailRequest unread = MailRequest.getUnread();
+		unread.attachResponse(MailResponse.withMailResults(new ArrayList<Mail>()));
+		MailRequest sent = MailRequest.getMailSent(5);
+		sent.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		MailRequest judysUnread = MailRequest.getUnread();
+		judysUnread.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		InOrder inOrder = Mockito.inOrder(connection);
+		inOrder.verify(connection).sendAsync(clientAddress, unread);
+		inOrder.verify(connection).sendAsync("Judy", judysUnread);
+		inOrder.verify(connection).sendAsync(clientAddress, sent);
+		Mockito.verify(connection, Mockito.never()).send(Mockito.anyString(), Mockito.any(MailRequest.class));
+	}
+	
+	@Test
+	public void requestIsAnsweredRightAwayWhenTheServerIsFull() throws InterruptedException {
+		server.limitInboundQueue(1, OverloadPolicy.REJECT_NEWEST, 0, TimeUnit.SECONDS);
+		MailRequest first = MailRequest.getUnread();
+		MailRequest second = MailRequest.getContacts();
+		CountDownLatch firstSent = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		// The first request holds the only place until its response is sent.
+		Mockito.doAnswer(invocation -> {
+			MailRequest sent = (MailRequest)invocation.getArguments()[1];
+			if (!sent.getResponse().isOverloaded()) {
+				firstSent.countDown();
+				release.await();
+			}
+			return null;
+		}).when(connection).send(Mockito.anyString(), Mockito.any(MailRequest.class));
+		Mockito.when(connection.receiveBlocking()).thenReturn(newRequest(first)).thenAnswer(invocation -> {
+			firstSent.await();
+			return newRequest(second);
+		}).thenThrow(IllegalMonitorStateException.class);
+		try {
+			startServer();
+			MailRequest overloaded = MailRequest.getContacts();
+			overloaded.attachResponse(MailResponse.overloaded());
+			Mockito.verify(connection, Mockito.timeout(1000)).send(clientAddress, overloaded);
+		} finally {
+			release.countDown();
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "deprecation" })
+	@Test
+	public void snapshotsAreTakenPeriodicallyAndLoadedOnRestart() throws InterruptedException {
+		Mail mail = new Mail(clientAddress, "Judy", "snap");
+		server.snapshotEvery(50, TimeUnit.MILLISECONDS);
+		Mockito.when(connection.receiveBlocking()).thenReturn(newRequest(MailRequest.sendMail(mail)))
+				.thenAnswer(invocation -> {
+					Thread.sleep(300);
+					throw new IllegalMonitorStateException();
+				});
+		startServer();
+		assertTrue(new File("app-mail-journal-" + serverAddress + ".snapshot").exists());
+		server.stop();
+		serverThread.stop();
+		
+		MailRequest request = MailRequest.getIncoming(5);
+		Mockito.reset(connection);
+		Mockito.when(connection.getAddress()).thenReturn(serverAddress);
+		Mockito.when(connection.receiveBlocking()).thenReturn(new MessageWithSender<MailRequest>(request, "Judy"))
+				.thenThrow(IllegalMonitorStateException.class);
+		server = new ServerMailApplication(serverAddress);
+		server.injectMockConnection(connection);
+		startServer();
+		
+		MailRequest response = MailRequest.getIncoming(5);
+		response.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		Mockito.verify(connection).send("Judy", response);
+	}
+	
+	@Test
+	public void mappedMailIsServedAndLoadedOnRestart() throws InterruptedException {
+		Mail mail = new Mail(clientAddress, "Judy", "mapped");
+		server.mapMail(64);
+		Mockito.when(connection.receiveBlocking()).thenReturn(newRequest(MailRequest.sendMail(mail)))
+				.thenThrow(IllegalMonitorStateException.class);
+		startServer();
+		server.stop();
+		serverThread.stop();
+		
+		MailRequest request = MailRequest.getIncoming(5);
+		Mockito.reset(connection);
+		Mockito.when(connection.getAddress()).thenReturn(serverAddress);
+		Mockito.when(connection.receiveBlocking()).thenReturn(new MessageWithSender<MailRequest>(request, "Judy"))
+				.thenThrow(IllegalMonitorStateException.class);
+		server = new ServerMailApplication(serverAddress);
+		server.injectMockConnection(connection);
+		server.mapMail(64);
+		startServer();
+		
+		MailRequest response = MailRequest.getIncoming(5);
+		response.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		Mockito.verify(connection).send("Judy", response);
+	}
+	
+	@Test
+	public void responsesWaitForTheJournalToBeSynced() throws InterruptedException {
+		Mail mail = new Mail("Judy", clientAddress, "durable");
+		server.syncJournal(1000, 1, TimeUnit.SECONDS);
+		Mockito.when(connection.receiveBlocking()).thenReturn(newRequest(MailRequest.sendMail(mail)),
+				newRequest(MailRequest.getUnread())).thenAnswer(invocation -> {
+					Thread.sleep(3000);
+					throw new IllegalMonitorStateException();
+				});
+		startServer();
+		
+		MailRequest response = MailRequest.getUnread();
+		response.attachResponse(MailResponse.withMailResults(Arrays.asList(mail)));
+		Mockito.verify(connection, Mockito.never()).send(clientAddress, response);
+		Mockito.verify(connection, Mockito.timeout(2000)).send(clientAddress, response);
+	}
+	
+	@Test
+	public void mailSavedBeforeTheJournalIsMigrated() throws InterruptedException {
+		Mail read = new Mail("Judy", clientAddress, "old and read");
+		Mail unread = new Mail("Judy", clientAddress, "old");
+		new FileDataSaver<List<MailEntry>>("app-mail-data-" + serverAddress).save(
+				new ArrayList<MailEntry>(Arrays.asList(new MailEntry(read, true), new MailEntry(unread))));
+		Mockito.when(connection.receiveBlocking()).thenReturn(newRequest(MailRequest.getUnread()))
+				.thenThrow(IllegalMonitorStateException.class);
+		startServer();
+		
+		MailRequest response = MailRequest.getUnread();
+		response.attachResponse(MailResponse.withMailResults(Arrays.asList(unread)));
+		Mockito.verify(connection).send(clientAddress, response);
+		assertFalse(new File("app-mail-data-" + serverAddress).exists());
+		assertTrue(new File("app-mail-journal-" + serverAddress + ".snapshot").exists());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void mappedSegmentSizeMustBePositive() {
+		server.mapMail(0);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void snapshotPeriodMustBePositive() {
+		server.snapshotEvery(0, TimeUnit.SECONDS);
+	}
 }
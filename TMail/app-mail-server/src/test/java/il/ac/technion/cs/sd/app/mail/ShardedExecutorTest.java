@@ -0,0 +1,132 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedExecutorTest {
+
+	ShardedExecutor<Map<String, List<Integer>>> executor;
+
+	@Before
+	public void setUp() {
+		executor = new ShardedExecutor<Map<String, List<Integer>>>(4, "test", HashMap::new);
+	}
+
+	@After
+	public void tearDown() {
+		executor.close();
+	}
+
+	private void append(String key, int n) {
+		executor.execute(key, state -> state.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(n));
+	}
+
+	@Test
+	public void tasksOfAKeyRunInOrderOnItsShardState() {
+		for (int i = 0; i < 1000; ++i) {
+			for (String key : new String[] {"a", "b", "c", "d", "e"}) {
+				append(key, i);
+			}
+		}
+		List<List<Integer>> results = new ArrayList<List<Integer>>();
+		for (String key : new String[] {"a", "b", "c", "d", "e"}) {
+			executor.execute(key, state -> {
+				synchronized (results) {
+					results.add(state.get(key));
+				}
+			});
+		}
+		executor.close();
+
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; ++i) {
+			expected.add(i);
+		}
+		assertEquals(5, results.size());
+		for (List<Integer> result : results) {
+			assertEquals(expected, result);
+		}
+	}
+
+	@Test
+	public void eachShardHasItsOwnState() {
+		Map<Integer, Set<Object>> statesOfShard = new HashMap<Integer, Set<Object>>();
+		for (int i = 0; i < 100; ++i) {
+			String key = "client" + i;
+			executor.execute(key, state -> {
+				synchronized (statesOfShard) {
+					statesOfShard.computeIfAbsent(executor.shardOf(key),
+							shard -> Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>())).add(state);
+				}
+			});
+		}
+		executor.close();
+
+		Set<Object> all = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		for (Set<Object> states : statesOfShard.values()) {
+			assertEquals(1, states.size());
+			all.addAll(states);
+		}
+		assertEquals(executor.size(), statesOfShard.size());
+		assertEquals(executor.size(), all.size());
+	}
+
+	@Test(timeout = 5000)
+	public void idleShardWakesUpForNewTasks() throws InterruptedException {
+		for (int i = 0; i < 20; ++i) {
+			CountDownLatch ran = new CountDownLatch(1);
+			Thread.sleep(5); // Let the shard park.
+			executor.execute("a", state -> ran.countDown());
+			assertTrue(ran.await(1, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void closeRunsAllSubmittedTasks() {
+		int[] count = new int[1];
+		for (int i = 0; i < 10000; ++i) {
+			executor.execute("a", state -> ++count[0]);
+		}
+		executor.close();
+		assertEquals(10000, count[0]);
+	}
+
+	@Test
+	public void taskForEachShardRunsOnAllShards() {
+		for (int i = 0; i < 100; ++i) {
+			append("client" + i, i);
+		}
+		executor.executeOnEach(state -> state.clear());
+		int[] left = new int[1];
+		for (int i = 0; i < 100; ++i) {
+			String key = "client" + i;
+			executor.execute(key, state -> {
+				synchronized (left) {
+					left[0] += state.containsKey(key) ? 1 : 0;
+				}
+			});
+		}
+		executor.close();
+		assertEquals(0, left[0]);
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void closedExecutorRejectsTasks() {
+		executor.close();
+		executor.execute("a", state -> {});
+	}
+}
@@ -0,0 +1,48 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class IntegrationAsyncClientTest extends IntegrationTestBaseClass {
+
+	@Test
+	public void asyncClientGetsMailSentToIt() throws Exception {
+		ClientMailApplication one = buildClient("one");
+		AsyncClientMailApplication two = buildAsyncClient("two");
+		one.sendMail("two", "hi");
+
+		List<Mail> newMail = two.getNewMail().get();
+		assertEquals("client two should have a single incoming mail from one", 1, newMail.size());
+		assertEquals("client two should have the incoming mail \"hi\" from one", "hi", newMail.get(0).content);
+		assertEquals(Arrays.asList("one"), two.getContacts(1).get());
+	}
+
+	@Test
+	public void concurrentCallersShareOneAsyncClient() throws Exception {
+		AsyncClientMailApplication client = buildAsyncClient("shared");
+		client.sendMail("a", "to a");
+		client.sendMail("b", "to b");
+
+		@SuppressWarnings("unchecked")
+		CompletableFuture<List<Mail>>[] futures = new CompletableFuture[8];
+		List<Thread> callers = new ArrayList<>();
+		for (int i = 0; i < futures.length; ++i) {
+			int caller = i;
+			callers.add(new Thread(() -> futures[caller] = client.getCorrespondences(caller % 2 == 0 ? "a" : "b", 5)));
+		}
+		callers.forEach(Thread::start);
+		for (Thread caller : callers) {
+			caller.join();
+		}
+		for (int i = 0; i < futures.length; ++i) {
+			String whom = i % 2 == 0 ? "a" : "b";
+			assertEquals(Arrays.asList(new Mail("shared", whom, "to " + whom)), futures[i].get());
+		}
+	}
+}
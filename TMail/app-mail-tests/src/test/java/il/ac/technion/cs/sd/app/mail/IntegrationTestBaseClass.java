@@ -15,6 +15,7 @@ public class IntegrationTestBaseClass {
 	
 	private ServerMailApplication		server	= new ServerMailApplication("server");
 	private List<ClientMailApplication>	clients	= new ArrayList<>();
+	private List<AsyncClientMailApplication>	asyncClients	= new ArrayList<>();
 	private Thread						serverThread;
 	
 	protected ClientMailApplication buildClient(String login) {
@@ -23,6 +24,12 @@ public class IntegrationTestBaseClass {
 		return $;
 	}
 	
+	protected AsyncClientMailApplication buildAsyncClient(String login) {
+		AsyncClientMailApplication $ = new AsyncClientMailApplication(server.getAddress(), login);
+		asyncClients.add($);
+		return $;
+	}
+	
 	@Before 
 	public void setup() throws InterruptedException {
 		buildServer();
@@ -41,6 +48,7 @@ public class IntegrationTestBaseClass {
 		server.stop();
 		server.clean();
 		clients.forEach(x -> x.stop());
+		asyncClients.forEach(x -> x.stop());
 		serverThread.stop();
 	}
 	
@@ -0,0 +1,55 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Durable appends to a {@link JournalDataSaver}: every benchmark thread appends a mail and waits for it to be synced
+ * to the disk. With a max batch of 1, each mail is synced on its own; otherwise, concurrent mails share a sync.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+	@Param({ "1", "256" })
+	public int maxBatch;
+
+	private JournalDataSaver journal;
+	private final Mail mail = new Mail("benchmark-sender", "benchmark-recipient", "a short mail, of about a line of text");
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		journal = new JournalDataSaver("benchmark-journal");
+		journal.clean();
+		journal.groupCommit(maxBatch, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		journal.clean();
+	}
+
+	@Benchmark
+	public void appendDurably() throws Exception {
+		journal.appendMail(new MailEntry(mail)).get();
+	}
+}
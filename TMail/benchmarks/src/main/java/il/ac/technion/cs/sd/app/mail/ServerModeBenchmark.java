@@ -0,0 +1,96 @@
+package il.ac.technion.cs.sd.app.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The mail server under each {@link ExecutionMode}, with many connected clients of which only a few are active.
+ * <br>
+ * Every benchmark thread is an active client, which mails another active client and reads its own new mail. The idle
+ * clients are connected to the server (and have mail in their mailboxes) but send nothing. Runs over the messaging
+ * library, in-process. VIRTUAL_THREADS needs Java 21 or later.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ServerModeBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		@Param
+		public ExecutionMode mode;
+
+		@Param({ "16", "1024" })
+		public int idleClients;
+
+		private ServerMailApplication server;
+		private final List<ClientMailApplication> idle = new ArrayList<ClientMailApplication>();
+		private final AtomicInteger activeClients = new AtomicInteger();
+
+		@Setup(Level.Trial)
+		public void setUp() throws InterruptedException {
+			server = new ServerMailApplication("benchmark-server-" + mode, mode);
+			Thread serverThread = new Thread(() -> server.start());
+			serverThread.setDaemon(true);
+			serverThread.start();
+			Thread.sleep(100);
+
+			for (int i = 0; i < idleClients; ++i) {
+				ClientMailApplication client = new ClientMailApplication(server.getAddress(), "idle" + i);
+				client.sendMail("idle" + ((i + 1) % idleClients), "hello");
+				idle.add(client);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			idle.forEach(ClientMailApplication::stop);
+			server.stop();
+			server.clean();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		private ClientMailApplication client;
+		private String peer;
+
+		@Setup(Level.Trial)
+		public void setUp(Server server) {
+			int n = server.activeClients.getAndIncrement();
+			client = new ClientMailApplication(server.server.getAddress(), "active" + n);
+			peer = "active" + (n + 1);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			client.stop();
+		}
+	}
+
+	@Benchmark
+	public List<Mail> sendAndReadNewMail(Client client) {
+		client.client.sendMail(client.peer, "hello");
+		return client.client.getNewMail();
+	}
+}
@@ -0,0 +1,76 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending the same mail request from a server connection to many clients: one send per client, against a single
+ * broadcast. The clients are not on the {@link LoopbackMessenger} network, so what is sent to them is dropped, and
+ * only the encoding and sending are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	@Param({ "GET_UNREAD", "SEND_MAIL_1KB", "MAIL_LIST_100" })
+	public Payload payload;
+
+	@Param
+	public WireCodec codec;
+
+	@Param({ "100", "10000" })
+	public int recipients;
+
+	private ServerConnection<MailRequest> server;
+	private MailRequest request;
+	private List<String> clients;
+
+	@Setup
+	public void setUp() {
+		server = ServerConnection.createWithMockMessenger(
+				new LoopbackMessenger("Server", new HashMap<String, LoopbackMessenger>()), codec.forServer());
+		request = payload.create();
+		clients = new ArrayList<String>(recipients);
+		for (int i = 0; i < recipients; ++i) {
+			clients.add("client" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.kill();
+	}
+
+	@Benchmark
+	public void sendToEach() {
+		for (String client : clients) {
+			server.send(client, request);
+		}
+	}
+
+	@Benchmark
+	public void broadcast() {
+		server.broadcast(clients, request);
+	}
+}
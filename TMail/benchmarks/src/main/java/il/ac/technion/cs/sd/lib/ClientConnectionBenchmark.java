@@ -0,0 +1,69 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full round trip of a mail request: the client sends it, the server receives it and sends it back, and the
+ * client receives the reply. Both connections run on a {@link LoopbackMessenger}, on the benchmark's thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientConnectionBenchmark {
+
+	private static final String SERVER = "Server";
+	private static final String CLIENT = "Moshe";
+
+	@Param
+	public Payload payload;
+
+	@Param
+	public WireCodec codec;
+
+	private ServerConnection<MailRequest> server;
+	private ClientConnection<MailRequest> client;
+	private MailRequest request;
+
+	@Setup
+	public void setUp() {
+		Map<String, LoopbackMessenger> network = new HashMap<String, LoopbackMessenger>();
+		server = ServerConnection.createWithMockMessenger(new LoopbackMessenger(SERVER, network), codec.forServer());
+		client = ClientConnection.createWithMockMessenger(SERVER, new LoopbackMessenger(CLIENT, network),
+				codec.forClient());
+		request = payload.create();
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.kill();
+		server.kill();
+	}
+
+	@Benchmark
+	public MailRequest roundTrip() {
+		client.send(request);
+		MessageWithSender<MailRequest> received = server.receiveBlocking();
+		server.send(received.sender, received.content);
+		return client.receiveBlocking();
+	}
+}
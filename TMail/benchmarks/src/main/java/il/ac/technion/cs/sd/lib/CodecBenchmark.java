@@ -0,0 +1,72 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a mail request, on its own and framed with its sender by {@link MessageWithSenderCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param
+	public Payload payload;
+
+	@Param
+	public WireCodec codec;
+
+	private Codec<MailRequest> messageCodec;
+	private MessageWithSenderCodec<MailRequest> senderCodec;
+	private MailRequest request;
+	private MessageWithSender<MailRequest> withSender;
+	private byte[] encoded;
+	private byte[] encodedWithSender;
+
+	@Setup
+	public void setUp() {
+		messageCodec = codec.forServer();
+		senderCodec = new MessageWithSenderCodec<MailRequest>(messageCodec);
+		request = payload.create();
+		withSender = new MessageWithSender<MailRequest>(request, "Moshe");
+		encoded = messageCodec.encode(request);
+		encodedWithSender = senderCodec.encode(withSender);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return messageCodec.encode(request);
+	}
+
+	@Benchmark
+	public MailRequest decode() {
+		return messageCodec.decode(encoded);
+	}
+
+	@Benchmark
+	public byte[] encodeWithSender() {
+		return senderCodec.encode(withSender);
+	}
+
+	@Benchmark
+	public MessageWithSender<MailRequest> decodeWithSender() {
+		return senderCodec.decode(encodedWithSender);
+	}
+}
@@ -0,0 +1,80 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+import il.ac.technion.cs.sd.app.mail.MailRequestCodec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding a mail request by {@link CompressingCodec}, with and without deflating it.
+ * <br>
+ * Deflating pays off on links slower than the bytes it saves divided by the extra time it takes, i.e. the difference
+ * in the encoded sizes of both modes divided by the difference in their round trip times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	/**
+	 * Whether messages are deflated, whatever their size.
+	 */
+	public enum Compression {
+		RAW(Integer.MAX_VALUE),
+		DEFLATE(0);
+
+		final int threshold;
+
+		Compression(int threshold) {
+			this.threshold = threshold;
+		}
+	}
+
+	@Param
+	public Payload payload;
+
+	@Param
+	public Compression compression;
+
+	private Codec<MailRequest> codec;
+	private MailRequest request;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() {
+		codec = new CompressingCodec<MailRequest>(new MailRequestCodec(), compression.threshold);
+		request = payload.create();
+		encoded = codec.encode(request);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return codec.encode(request);
+	}
+
+	@Benchmark
+	public MailRequest decode() {
+		return codec.decode(encoded);
+	}
+
+	@Benchmark
+	public void roundTrip(Blackhole blackhole) {
+		blackhole.consume(codec.decode(codec.encode(request)));
+	}
+}
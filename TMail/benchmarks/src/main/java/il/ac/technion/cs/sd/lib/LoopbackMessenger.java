@@ -0,0 +1,80 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.msg.Messenger;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+
+/**
+ * An in-process stand-in for the messaging layer, so the benchmarks measure the connections and not the network.
+ * <br>
+ * Messengers sharing a network map deliver into each other's inbox. Payloads are passed by reference, without
+ * copying them, and messages to an unknown address are dropped. Not thread-safe: a benchmark sends and receives
+ * on a single thread, so listening on an empty inbox fails instead of blocking forever.
+ */
+class LoopbackMessenger implements Messenger {
+
+	final private String address;
+	final private Map<String, LoopbackMessenger> network;
+	final private Queue<byte[]> inbox = new ArrayDeque<byte[]>();
+
+	LoopbackMessenger(String address, Map<String, LoopbackMessenger> network) {
+		this.address = address;
+		this.network = network;
+		network.put(address, this);
+	}
+
+	@Override
+	public String getAddress() {
+		return address;
+	}
+
+	@Override
+	public void send(String to, byte[] payload) {
+		LoopbackMessenger target = network.get(to);
+		if (target != null) {
+			target.inbox.add(payload);
+		}
+	}
+
+	@Override
+	public byte[] listen() {
+		byte[] $ = inbox.poll();
+		if ($ == null) {
+			throw new IllegalStateException("Nothing was sent to " + address);
+		}
+		return $;
+	}
+
+	@Override
+	public Optional<byte[]> tryListen() {
+		return Optional.ofNullable(inbox.poll());
+	}
+
+	@Override
+	public void kill() {
+		network.remove(address, this);
+	}
+
+	/**
+	 * Put a payload in the inbox, as if it was just sent here.
+	 * @param payload the payload to deliver.
+	 */
+	void deliver(byte[] payload) {
+		inbox.add(payload);
+	}
+
+	/**
+	 * Discard everything in the inbox.
+	 * @return the total size of the discarded payloads.
+	 */
+	int drain() {
+		int $ = 0;
+		for (byte[] payload = inbox.poll(); payload != null; payload = inbox.poll()) {
+			$ += payload.length;
+		}
+		return $;
+	}
+}
@@ -0,0 +1,74 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.Mail;
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+import il.ac.technion.cs.sd.app.mail.MailResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The mail requests the benchmarks are run with, from the smallest request to a 1 MB mail.
+ */
+public enum Payload {
+	GET_UNREAD {
+		@Override
+		MailRequest create() {
+			return MailRequest.getUnread();
+		}
+	},
+	SEND_MAIL_1KB {
+		@Override
+		MailRequest create() {
+			return MailRequest.sendMail(mail(1024));
+		}
+	},
+	SEND_MAIL_64KB {
+		@Override
+		MailRequest create() {
+			return MailRequest.sendMail(mail(64 * 1024));
+		}
+	},
+	SEND_MAIL_1MB {
+		@Override
+		MailRequest create() {
+			return MailRequest.sendMail(mail(1024 * 1024));
+		}
+	},
+	/**
+	 * A GET_ALL_MAIL request with its response attached, as the server sends it back: 100 mails of 1 KB.
+	 */
+	MAIL_LIST_100 {
+		@Override
+		MailRequest create() {
+			List<Mail> mails = new ArrayList<Mail>();
+			for (int i = 0; i < 100; ++i) {
+				mails.add(mail(1024));
+			}
+			MailRequest $ = MailRequest.getAllMail(100);
+			$.attachResponse(MailResponse.withMailResults(mails));
+			return $;
+		}
+	};
+
+	private static final String[] WORDS = { "hello", "meeting", "tomorrow", "the", "a", "report", "please", "see",
+			"attached", "thanks", "regards", "project", "deadline", "review", "and", "to", "of", "we", "should", "send" };
+
+	/**
+	 * @return a new request of this kind.
+	 */
+	abstract MailRequest create();
+
+	/**
+	 * A mail with mail-like content: words of a small vocabulary, in a (reproducible) random order.
+	 */
+	private static Mail mail(int contentSize) {
+		Random random = new Random(contentSize);
+		StringBuilder sb = new StringBuilder(contentSize + 16);
+		while (sb.length() < contentSize) {
+			sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+		}
+		return new Mail("Moshe", "Sarah", sb.substring(0, contentSize));
+	}
+}
@@ -0,0 +1,79 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending a mail request from a server connection, and receiving one, over a {@link LoopbackMessenger}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerConnectionBenchmark {
+
+	private static final String SERVER = "Server";
+	private static final String CLIENT = "Moshe";
+
+	@Param
+	public Payload payload;
+
+	@Param
+	public WireCodec codec;
+
+	private LoopbackMessenger serverMessenger;
+	private LoopbackMessenger clientMessenger;
+	private ServerConnection<MailRequest> server;
+	private MailRequest request;
+	// A request as the client sends it.
+	private byte[] received;
+
+	@Setup
+	public void setUp() {
+		Map<String, LoopbackMessenger> network = new HashMap<String, LoopbackMessenger>();
+		serverMessenger = new LoopbackMessenger(SERVER, network);
+		clientMessenger = new LoopbackMessenger(CLIENT, network);
+		server = ServerConnection.createWithMockMessenger(serverMessenger, codec.forServer());
+		request = payload.create();
+
+		ClientConnection<MailRequest> client =
+				ClientConnection.createWithMockMessenger(SERVER, clientMessenger, codec.forClient());
+		client.send(request);
+		received = serverMessenger.listen();
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.kill();
+	}
+
+	@Benchmark
+	public int send() {
+		server.send(CLIENT, request);
+		return clientMessenger.drain();
+	}
+
+	@Benchmark
+	public MessageWithSender<MailRequest> receive() {
+		serverMessenger.deliver(received);
+		return server.receiveBlocking();
+	}
+}
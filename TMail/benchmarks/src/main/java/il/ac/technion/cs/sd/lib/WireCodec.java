@@ -0,0 +1,42 @@
+package il.ac.technion.cs.sd.lib;
+
+import il.ac.technion.cs.sd.app.mail.MailRequest;
+import il.ac.technion.cs.sd.app.mail.MailRequestCodec;
+
+/**
+ * The codecs mail requests can be sent with.
+ */
+public enum WireCodec {
+	/**
+	 * Java serialization, the library's default.
+	 */
+	SERIALIZE {
+		@Override
+		Codec<MailRequest> forServer() {
+			return new SerializeCodec<MailRequest>();
+		}
+
+		@Override
+		Codec<MailRequest> forClient() {
+			return new SerializeCodec<MailRequest>();
+		}
+	},
+	/**
+	 * The codec the mail applications use: the mail request codec, compressing large messages.
+	 */
+	MAIL {
+		@Override
+		Codec<MailRequest> forServer() {
+			return new CompressingCodec<MailRequest>(new MailRequestCodec());
+		}
+
+		@Override
+		Codec<MailRequest> forClient() {
+			return new CompressingCodec<MailRequest>(MailRequestCodec.withLazyMailLists());
+		}
+	};
+
+	abstract Codec<MailRequest> forServer();
+
+	abstract Codec<MailRequest> forClient();
+}
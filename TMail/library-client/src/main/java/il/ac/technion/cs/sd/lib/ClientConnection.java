@@ -1,7 +1,19 @@
 package il.ac.technion.cs.sd.lib;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import il.ac.technion.cs.sd.msg.Messenger;
 import il.ac.technion.cs.sd.msg.MessengerException;
@@ -10,12 +22,42 @@ import il.ac.technion.cs.sd.msg.MessengerFactory;
 /**
  * Handle all communication for a client application that uses a matching server application for communication,
  * giving an abstraction for sending and receiving messages as Java objects. 
+ * <br>
+ * Several messages can be sent to the server as a single batch (see {@link ClientConnection#sendBatch(Collection)}).
+ * Batches sent by the server are unpacked on receiving, so messages are still received one at a time.
+ * <br>
+ * Large messages the server sends in chunks are reassembled before they are decoded, holding at most
+ * {@link ClientConnection#setMaxReassemblySize(int)} bytes of partially received messages. Alternatively,
+ * {@link ClientConnection#receiveStream()} reads the next message's bytes as its chunks arrive.
+ * The receive methods (and reading the streams they return) are meant to be used by a single thread at a time.
+ * <br>
+ * Instead of receiving, messages can be pushed to a subscriber as it requests them, by a reader thread of the
+ * connection (see {@link ClientConnection#subscribe(Subscriber)}).
  */
 public class ClientConnection<Message> {
 	
 	final private Messenger messenger;
 	final private String serverAddress;
 	final private Codec<Message> codec;
+	final private MessageWithSenderCodec<Message> frameCodec;
+	final private MessageWithSenderCodec<List<Message>> batchFrameCodec;
+	
+	/**
+	 * The default maximal amount of bytes held for chunked messages that were not fully received yet.
+	 */
+	public static final int DEFAULT_MAX_REASSEMBLY_SIZE = 64 * 1024 * 1024;
+	
+	// Received messages, not yet decoded and returned by receive.
+	final private Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	// Chunked messages being received, by stream id: either reassembled here, or read by a receiveStream caller.
+	final private Map<Integer, Reassembly> reassemblies = new HashMap<Integer, Reassembly>();
+	final private Map<Integer, ChunkInputStream> streams = new HashMap<Integer, ChunkInputStream>();
+	private long reassemblySize;
+	private volatile int maxReassemblySize = DEFAULT_MAX_REASSEMBLY_SIZE;
+	
+	// Pushes the received messages, while there is a subscriber.
+	private PushSubscription<Message> subscription;
 	
 	/**
 	 * Factory method for creating and starting a new client connection, enabling it to communicate with a running server.
@@ -55,6 +97,20 @@ public class ClientConnection<Message> {
 		}
 	}
 	
+	/**
+	 * Factory method for creating and starting a new client connection, that keeps a long-lived serialization
+	 * stream with the server (see {@link StatefulSerializeCodec}), so class descriptors are only sent once per
+	 * stream instead of with every message. The server must be created with ServerConnection.createStateful.
+	 * 
+	 * @param serverAddress - Address of this client's server, through which all of its communication is done.
+	 * @param clientAddress - Address of this client.
+	 * @return A new ClientConnection instance, initialized and ready for communication.
+	 */
+	public static <Message extends Serializable> ClientConnection<Message> createStateful(String serverAddress, String clientAddress) {
+		// A client only talks to its server, so a single codec instance is already scoped to one peer.
+		return create(serverAddress, clientAddress, new StatefulSerializeCodec<Message>());
+	}
+	
 	/**
 	 * Factory method for a ClientConnection object, that uses a custom messenger, <i>intended for testing purposes.</i> <br>
 	 * This connection is initialized for exchanging Objects of type Message, which has to be serializable. <br>
@@ -100,6 +156,8 @@ public class ClientConnection<Message> {
 		this.serverAddress = serverAddress;
 		this.messenger = messenger;
 		this.codec = codec;
+		this.frameCodec = new MessageWithSenderCodec<Message>(codec);
+		this.batchFrameCodec = new MessageWithSenderCodec<List<Message>>(new BatchCodec<Message>(codec));
 	}
 	
 	/**
@@ -129,13 +187,50 @@ public class ClientConnection<Message> {
 		try {
 			MessageWithSender<Message> mws = new MessageWithSender<Message>(
 					msg, getAddress());
-			messenger.send(serverAddress, new MessageWithSenderCodec<Message>(
-					codec).encode(mws));
+			// The sender header and the message are framed together in one buffer.
+			messenger.send(serverAddress, Frame.encode(Frame.SINGLE, frameCodec, mws));
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Send several Message objects to the server as a single payload. The server receives them one at a time,
+	 * in the given order, just as if they were sent one by one.
+	 * 
+	 * @param msgs Message objects to be sent.
+	 */
+	public void sendBatch(Collection<Message> msgs) {
+		if (msgs.isEmpty()) {
+			return;
+		}
+		if (msgs.size() == 1) {
+			send(msgs.iterator().next());
+			return;
+		}
+		try {
+			MessageWithSender<List<Message>> mws = new MessageWithSender<List<Message>>(
+					new ArrayList<Message>(msgs), getAddress());
+			messenger.send(serverAddress, Frame.encode(Frame.BATCH, batchFrameCodec, mws));
+		} catch (MessengerException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Set the maximal amount of bytes held for chunked messages that were not fully received yet, or received by a
+	 * stream but not read yet. A chunked message that would exceed it is dropped, and receiving it throws an
+	 * IllegalStateException (or, for a stream, reading it throws an IOException).
+	 * 
+	 * @param maxReassemblySize the maximal amount of bytes.
+	 */
+	public void setMaxReassemblySize(int maxReassemblySize) {
+		if (maxReassemblySize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxReassemblySize = maxReassemblySize;
+	}
+	
 	/**
 	 * Try to receive an incoming message from this client's server. This is a Non-blocking method.
 	 * 
@@ -143,11 +238,15 @@ public class ClientConnection<Message> {
 	 */
 	public Optional<Message> receive() {
 		try {
-			Optional<byte[]> bytes = messenger.tryListen();
-			if (!bytes.isPresent()) {
-				return Optional.empty();
+			ByteBuffer body;
+			while ((body = pending.poll()) == null) {
+				Optional<byte[]> bytes = messenger.tryListen();
+				if (!bytes.isPresent()) {
+					return Optional.empty();
+				}
+				unpack(bytes.get());
 			}
-			return Optional.of(codec.decode(bytes.get()));
+			return Optional.of(codec.decode(body));
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
@@ -161,13 +260,171 @@ public class ClientConnection<Message> {
 	 */
 	public Message receiveBlocking() {
 		try {
-			byte[] bytes = messenger.listen();
-			return codec.decode(bytes);
+			ByteBuffer body;
+			while ((body = pending.poll()) == null) {
+				unpack(messenger.listen());
+			}
+			return codec.decode(body);
+		} catch (MessengerException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Receive the encoded bytes of the next incoming message from this client's server, without decoding it.
+	 * This is a blocking method, which returns as soon as the message starts arriving. For a message sent in chunks,
+	 * reading the stream blocks until the next chunk arrives, and the message is never held in memory as a whole.
+	 * 
+	 * @return A stream of the encoded message, which can be decoded by a codec that reads a stream.
+	 */
+	public InputStream receiveStream() {
+		try {
+			while (true) {
+				ByteBuffer body = pending.poll();
+				if (body != null) {
+					return new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining());
+				}
+				ByteBuffer payload = ByteBuffer.wrap(messenger.listen());
+				if (payload.get(0) != Frame.CHUNK) {
+					unpack(payload.array());
+					continue;
+				}
+				payload.get();
+				Frame.Chunk chunk = new Frame.Chunk(payload);
+				if (chunk.seq != 0 || chunk.last) {
+					accept(chunk);
+					continue;
+				}
+				// The start of a chunked message: the rest of it goes to the stream.
+				discardReassembly(chunk.streamId);
+				ChunkInputStream $ = new ChunkInputStream(chunk.streamId);
+				ChunkInputStream stale = streams.put(chunk.streamId, $);
+				if (stale != null) {
+					stale.discard();
+				}
+				$.add(chunk);
+				return $;
+			}
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Push the messages sent by the server to a subscriber, as it requests them, by a reader thread of the connection.
+	 * The subscriber is completed once the connection is killed. There can only be one subscriber at a time, and
+	 * while there is, messages should not be received by other means.
+	 * @param subscriber the subscriber.
+	 * @throws IllegalStateException if there already is a subscriber that did not cancel its subscription. If it did,
+	 * its reader thread is waited for.
+	 */
+	public synchronized void subscribe(Subscriber<? super Message> subscriber) {
+		// The reader of a cancelled (or completed) subscription is waited for, so two threads never receive at once.
+		if (subscription != null && !subscription.awaitDone()) {
+			throw new IllegalStateException("Already subscribed");
+		}
+		subscription = new PushSubscription<Message>("reader-" + getAddress(), subscriber,
+				new PushSubscription.Source<Message>() {
+			@Override
+			public boolean poll() {
+				try {
+					while (pending.isEmpty()) {
+						Optional<byte[]> bytes = messenger.tryListen();
+						if (!bytes.isPresent()) {
+							return false;
+						}
+						unpack(bytes.get());
+					}
+					return true;
+				} catch (MessengerException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			
+			@Override
+			public Message take() {
+				return codec.decode(pending.poll());
+			}
+		});
+	}
+	
+	/**
+	 * Handle a received payload, adding the messages that were fully received to the pending messages.
+	 */
+	private void unpack(byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		byte kind = buffer.get();
+		switch (kind) {
+		case Frame.SINGLE:
+			pending.add(buffer.slice());
+			break;
+		case Frame.BATCH:
+			pending.addAll(BatchCodec.split(buffer));
+			break;
+		case Frame.CHUNK:
+			accept(new Frame.Chunk(buffer));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown frame kind: " + kind);
+		}
+	}
+	
+	/**
+	 * Handle a received chunk: pass it to the stream reading its message, or add it to its message's reassembly.
+	 */
+	private void accept(Frame.Chunk chunk) {
+		ChunkInputStream stream = streams.get(chunk.streamId);
+		if (stream != null) {
+			stream.add(chunk);
+			if (chunk.last) {
+				streams.remove(chunk.streamId);
+			}
+			return;
+		}
+		
+		Reassembly reassembly;
+		if (chunk.seq == 0) {
+			// A message in progress with the same id is stale, e.g. its server restarted.
+			discardReassembly(chunk.streamId);
+			if (chunk.last) {
+				pending.add(chunk.data);
+				return;
+			}
+			reassembly = new Reassembly();
+			reassemblies.put(chunk.streamId, reassembly);
+		} else {
+			reassembly = reassemblies.get(chunk.streamId);
+			if (reassembly == null) {
+				// The start of the message was missed, or it was dropped.
+				return;
+			}
+		}
+		
+		if (chunk.seq != reassembly.chunks.size()) {
+			discardReassembly(chunk.streamId);
+			throw new IllegalStateException("Chunk " + chunk.seq + " of a chunked message arrived out of order");
+		}
+		if (reassemblySize + chunk.data.remaining() > maxReassemblySize) {
+			discardReassembly(chunk.streamId);
+			throw new IllegalStateException("A chunked message exceeds the reassembly limit of "
+					+ maxReassemblySize + " bytes");
+		}
+		reassembly.add(chunk.data);
+		reassemblySize += chunk.data.remaining();
+		if (chunk.last) {
+			reassemblies.remove(chunk.streamId);
+			reassemblySize -= reassembly.size;
+			pending.add(ByteBuffer.wrap(reassembly.concat()));
+		}
+	}
+	
+	private void discardReassembly(int streamId) {
+		Reassembly reassembly = reassemblies.remove(streamId);
+		if (reassembly != null) {
+			reassemblySize -= reassembly.size;
+		}
+	}
+	
 	/**
 	 * Kill this connection instance. After invocation, this ClientConnection instance will not be able to do
 	 * any more communication, but a new instance with the same client address can be created to handle the same
@@ -176,12 +433,147 @@ public class ClientConnection<Message> {
 	 * @throws MessengerException
 	 */
 	public void kill() {
+		synchronized (this) {
+			if (subscription != null) {
+				subscription.close();
+			}
+		}
 		try {
 			messenger.kill();
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	/**
+	 * The chunks of a message received so far.
+	 */
+	private static class Reassembly {
+		final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		int size;
+		
+		void add(ByteBuffer chunk) {
+			chunks.add(chunk);
+			size += chunk.remaining();
+		}
+		
+		byte[] concat() {
+			ByteBuffer $ = ByteBuffer.allocate(size);
+			for (ByteBuffer chunk : chunks) {
+				$.put(chunk);
+			}
+			return $.array();
+		}
+	}
+	
+	/**
+	 * A stream over a chunked message, which receives the following chunks as it is being read. Payloads of other
+	 * messages that arrive in the meantime are handled as usual.
+	 */
+	private class ChunkInputStream extends InputStream {
+		final private int streamId;
+		// Received chunks not read yet, counted in reassemblySize.
+		final private Queue<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+		private int queuedSize;
+		private ByteBuffer current = ByteBuffer.allocate(0);
+		private int nextSeq;
+		private boolean complete;
+		private boolean outOfOrder;
+		private boolean overflowed;
+		private boolean closed;
+		
+		ChunkInputStream(int streamId) {
+			this.streamId = streamId;
+		}
+		
+		void add(Frame.Chunk chunk) {
+			if (chunk.seq != nextSeq++) {
+				outOfOrder = true;
+			}
+			if (reassemblySize + chunk.data.remaining() > maxReassemblySize) {
+				overflowed = true;
+				discard();
+				return;
+			}
+			chunks.add(chunk.data);
+			queuedSize += chunk.data.remaining();
+			reassemblySize += chunk.data.remaining();
+			complete = chunk.last;
+		}
+		
+		/**
+		 * Stop receiving the message, and drop its chunks that were not read yet.
+		 */
+		void discard() {
+			if (streams.get(streamId) == this) {
+				streams.remove(streamId);
+			}
+			chunks.clear();
+			reassemblySize -= queuedSize;
+			queuedSize = 0;
+		}
+		
+		@Override
+		public void close() {
+			closed = true;
+			discard();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return fill() ? current.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, current.remaining());
+			current.get(b, off, n);
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return current.remaining();
+		}
+		
+		/**
+		 * Make sure the current chunk has bytes left to read, waiting for the next chunk if needed.
+		 * @return false if the message has ended.
+		 */
+		private boolean fill() throws IOException {
+			while (!current.hasRemaining()) {
+				if (closed) {
+					throw new IOException("Stream closed");
+				}
+				if (overflowed) {
+					throw new IOException("A chunked message exceeds the reassembly limit of "
+							+ maxReassemblySize + " bytes");
+				}
+				if (outOfOrder) {
+					throw new IOException("A chunk of the message arrived out of order");
+				}
+				ByteBuffer next = chunks.poll();
+				if (next != null) {
+					queuedSize -= next.remaining();
+					reassemblySize -= next.remaining();
+					current = next;
+				} else if (complete) {
+					return false;
+				} else {
+					try {
+						unpack(messenger.listen());
+					} catch (MessengerException e) {
+						throw new IOException(e);
+					}
+				}
+			}
+			return true;
+		}
+	}
 }
-
-
@@ -4,7 +4,17 @@ import static org.junit.Assert.*;
 import il.ac.technion.cs.sd.msg.Messenger;
 import il.ac.technion.cs.sd.msg.MessengerException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -83,10 +93,138 @@ public class ClientConnectionTest {
 		connection.send(message);
 		
 		Mockito.verify(messenger).send(testServerAddress,
-				new MessageWithSenderCodec<String>(codec).encode(
+				Frame.encode(Frame.SINGLE, new MessageWithSenderCodec<String>(codec),
 				new MessageWithSender<String>(message, testClientAddress)));
 	}
 	
+	@Test
+	public void testSendBatch() throws MessengerException {
+		List<String> messages = Arrays.asList("Yo", "dawg");
+		connection.sendBatch(messages);
+		
+		Mockito.verify(messenger).send(testServerAddress,
+				Frame.encode(Frame.BATCH, new MessageWithSenderCodec<List<String>>(new BatchCodec<String>(codec)),
+				new MessageWithSender<List<String>>(messages, testClientAddress)));
+	}
+	
+	@Test
+	public void receiveBatchOneAtATime() throws MessengerException {
+		Mockito.when(messenger.listen()).thenReturn(
+				Frame.encode(Frame.BATCH, new BatchCodec<String>(codec), Arrays.asList("Howdy", "Partner")),
+				Frame.encode(Frame.SINGLE, codec, "Bye"));
+		
+		assertEquals("Howdy", connection.receiveBlocking());
+		assertEquals("Partner", connection.receive().get());
+		assertEquals("Bye", connection.receiveBlocking());
+	}
+	
+	private static byte[][] chunks(int streamId, byte[] message, int chunkSize) {
+		int count = (message.length + chunkSize - 1) / chunkSize;
+		byte[][] $ = new byte[count][];
+		for (int i = 0; i < count; ++i) {
+			int length = Math.min(chunkSize, message.length - i * chunkSize);
+			byte[] data = new byte[length];
+			System.arraycopy(message, i * chunkSize, data, 0, length);
+			$[i] = Frame.chunk(streamId, i, i == count - 1, data, length);
+		}
+		return $;
+	}
+	
+	@Test
+	public void receiveChunkedMessageReassembled() throws MessengerException {
+		String message = "A message that is sent in quite a few small chunks";
+		byte[][] chunks = chunks(7, codec.encode(message), 10);
+		Mockito.when(messenger.listen()).thenReturn(chunks[0], Arrays.copyOfRange(chunks, 1, chunks.length));
+		
+		assertEquals(message, connection.receiveBlocking());
+	}
+	
+	@SafeVarargs
+	private final void stubTryListen(byte[]... payloads) throws MessengerException {
+		@SuppressWarnings("unchecked")
+		Optional<byte[]>[] rest = new Optional[payloads.length];
+		for (int i = 1; i < payloads.length; ++i) {
+			rest[i - 1] = Optional.of(payloads[i]);
+		}
+		rest[payloads.length - 1] = Optional.empty();
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(payloads[0]), rest);
+	}
+	
+	@Test
+	public void receiveInterleavedChunkedMessages() throws MessengerException {
+		byte[][] first = chunks(1, codec.encode("first message, chunked"), 10);
+		byte[][] second = chunks(2, codec.encode("second message, chunked"), 10);
+		stubTryListen(first[0], second[0], second[1], first[1], Frame.encode(Frame.SINGLE, codec, "single"),
+				second[2], first[2]);
+		
+		// Messages are received in the order they are completed.
+		assertEquals("single", connection.receive().get());
+		assertEquals("second message, chunked", connection.receive().get());
+		assertEquals("first message, chunked", connection.receive().get());
+		assertFalse(connection.receive().isPresent());
+	}
+	
+	@Test
+	public void chunkedMessageOverReassemblyLimitDropped() throws MessengerException {
+		connection.setMaxReassemblySize(30);
+		byte[][] large = chunks(1, codec.encode("A message that is larger than the reassembly limit"), 10);
+		byte[][] small = chunks(2, codec.encode("small"), 10);
+		byte[][] all = Arrays.copyOf(large, large.length + small.length);
+		System.arraycopy(small, 0, all, large.length, small.length);
+		stubTryListen(all);
+		
+		try {
+			connection.receive();
+			fail("The message exceeds the reassembly limit");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// The rest of the dropped message is ignored.
+		assertEquals("small", connection.receive().get());
+	}
+	
+	@Test
+	public void receiveStreamReadsChunksAsTheyArrive() throws Exception {
+		byte[] encoded = codec.encode("A message that is read as a stream of chunks");
+		byte[][] chunks = chunks(3, encoded, 16);
+		byte[][] rest = Arrays.copyOf(Arrays.copyOfRange(chunks, 1, chunks.length), chunks.length);
+		System.arraycopy(rest, 0, rest, 1, chunks.length - 1);
+		rest[0] = Frame.encode(Frame.SINGLE, codec, "other");
+		Mockito.when(messenger.listen()).thenReturn(chunks[0], rest);
+		
+		InputStream stream = connection.receiveStream();
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		byte[] buffer = new byte[5];
+		for (int n; (n = stream.read(buffer)) >= 0;) {
+			read.write(buffer, 0, n);
+		}
+		assertArrayEquals(encoded, read.toByteArray());
+		// A message that arrived while the stream was read is received as usual.
+		assertEquals("other", connection.receive().get());
+	}
+	
+	@Test
+	public void unreadStreamOverReassemblyLimitFails() throws Exception {
+		connection.setMaxReassemblySize(30);
+		byte[][] large = chunks(1, codec.encode("A message that is larger than the reassembly limit"), 10);
+		byte[][] small = chunks(2, codec.encode("small"), 10);
+		Mockito.when(messenger.listen()).thenReturn(large[0]);
+		InputStream stream = connection.receiveStream();
+		
+		// The stream is not read while the rest of its message arrives.
+		byte[][] rest = Arrays.copyOf(Arrays.copyOfRange(large, 1, large.length), large.length - 1 + small.length);
+		System.arraycopy(small, 0, rest, large.length - 1, small.length);
+		stubTryListen(rest);
+		assertEquals("small", connection.receive().get());
+		try {
+			stream.read();
+			fail("The message exceeds the reassembly limit");
+		} catch (IOException e) {
+			// expected
+		}
+		stream.close();
+	}
+	
 	@SuppressWarnings("deprecation")
 	@Test 
 	public void blockOnBlockingReceiveWithNoMessage() throws InterruptedException, MessengerException {
@@ -108,7 +246,7 @@ public class ClientConnectionTest {
 	@Test
 	public void dontBlockOnBlockingReceiveWithMessage() throws MessengerException {
 		String message = "Howdy";
-		Mockito.when(messenger.listen()).thenReturn(codec.encode(message));
+		Mockito.when(messenger.listen()).thenReturn(Frame.encode(Frame.SINGLE, codec, message));
 		assertEquals("Messages should match", message, connection.receiveBlocking()); 
 	}
 	
@@ -123,7 +261,7 @@ public class ClientConnectionTest {
 	@Test
 	public void reconstructSimpleReceivedString() throws MessengerException {
 		String message = "Howdy";
-		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(codec.encode(message)));
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(Frame.encode(Frame.SINGLE, codec, message)));
 		
 		Optional<String> resultMessage = connection.receive();
 		assertTrue("A message should have been returned.", resultMessage.isPresent());
@@ -131,4 +269,122 @@ public class ClientConnectionTest {
 		assertEquals("Received message should match the one returend from the messenger",
 				message, resultMessage.get());
 	}
+	
+	/**
+	 * Records what a connection pushes, requesting the given amount of messages on subscription.
+	 */
+	private static class Recorder<T> implements Subscriber<T> {
+		final long initialDemand;
+		final BlockingQueue<T> items = new LinkedBlockingQueue<T>();
+		final CountDownLatch completed = new CountDownLatch(1);
+		volatile Throwable error;
+		volatile Subscription subscription;
+		
+		Recorder(long initialDemand) {
+			this.initialDemand = initialDemand;
+		}
+		
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			if (initialDemand > 0) {
+				subscription.request(initialDemand);
+			}
+		}
+		
+		@Override
+		public void onNext(T item) {
+			items.add(item);
+		}
+		
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			completed.countDown();
+		}
+		
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+	}
+	
+	/**
+	 * Make the messenger return the given payloads from listen (or tryListen), and then block (or find nothing) until
+	 * it is killed.
+	 */
+	private static void listenUntilKilled(Messenger messenger, byte[]... payloads) throws MessengerException {
+		CountDownLatch killed = new CountDownLatch(1);
+		Mockito.doAnswer(invocation -> {
+			killed.countDown();
+			return null;
+		}).when(messenger).kill();
+		Queue<byte[]> queued = new ConcurrentLinkedQueue<byte[]>(Arrays.asList(payloads));
+		Mockito.when(messenger.listen()).thenAnswer(invocation -> {
+			byte[] $ = queued.poll();
+			if ($ == null) {
+				killed.await();
+				throw new IllegalMonitorStateException();
+			}
+			return $;
+		});
+		Mockito.when(messenger.tryListen()).thenAnswer(invocation -> {
+			byte[] $ = queued.poll();
+			if ($ == null && killed.getCount() == 0) {
+				throw new IllegalMonitorStateException();
+			}
+			return Optional.ofNullable($);
+		});
+	}
+	
+	private byte[] single(String message) {
+		return Frame.encode(Frame.SINGLE, codec, message);
+	}
+	
+	@Test
+	public void subscriberGetsOnlyTheRequestedMessages() throws Exception {
+		listenUntilKilled(messenger, single("one"), single("two"));
+		Recorder<String> recorder = new Recorder<String>(1);
+		connection.subscribe(recorder);
+		assertEquals("one", recorder.items.take());
+		Thread.sleep(50);
+		assertTrue(recorder.items.isEmpty());
+		
+		recorder.subscription.request(1);
+		assertEquals("two", recorder.items.take());
+	}
+	
+	@Test
+	public void subscriberIsCompletedOnKill() throws Exception {
+		Messenger other = Mockito.mock(Messenger.class);
+		listenUntilKilled(other);
+		ClientConnection<String> con = ClientConnection.<String>createWithMockMessenger(testServerAddress, other);
+		Recorder<String> recorder = new Recorder<String>(1);
+		con.subscribe(recorder);
+		con.kill();
+		recorder.completed.await();
+		assertNull(recorder.error);
+	}
+	
+	@Test
+	public void cancelledMessagesCanStillBeReceived() throws Exception {
+		listenUntilKilled(messenger, single("one"));
+		Recorder<String> recorder = new Recorder<String>(0);
+		connection.subscribe(recorder);
+		recorder.subscription.cancel();
+		assertEquals("one", connection.receiveBlocking());
+		assertTrue(recorder.items.isEmpty());
+	}
+	
+	@Test
+	public void subscriberCanBeReplacedOnceCancelled() throws Exception {
+		listenUntilKilled(messenger, single("one"));
+		Recorder<String> first = new Recorder<String>(1);
+		connection.subscribe(first);
+		assertEquals("one", first.items.take());
+		first.subscription.cancel();
+		Recorder<String> second = new Recorder<String>(0);
+		connection.subscribe(second);
+		second.subscription.cancel();
+	}
 }
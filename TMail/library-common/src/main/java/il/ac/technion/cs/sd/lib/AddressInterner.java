@@ -0,0 +1,117 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the UTF-8 bytes of an address to a single, canonical String instance.
+ * <br>
+ * A server receives the same few addresses over and over. Looking them up by their raw bytes means a known
+ * address is decoded without allocating anything, and every message of a client carries the very same String,
+ * so using it as a map key hits the identity check in equals, and its hash code is only computed once.
+ * <br>
+ * The amount of interned addresses is bounded; once full, new addresses are decoded into fresh strings.
+ * This class is thread-safe.
+ */
+class AddressInterner {
+
+	/**
+	 * The default maximal amount of interned addresses.
+	 */
+	static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final int capacity;
+	private final Map<Key, String> addresses = new ConcurrentHashMap<Key, String>();
+
+	// A lookup key over the received bytes, reused so that finding a known address allocates nothing.
+	private final ThreadLocal<Key> probe = ThreadLocal.withInitial(Key::new);
+
+	AddressInterner() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	AddressInterner(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the canonical address encoded by a region of an array.
+	 * @param b the array holding the encoded address.
+	 * @param offset the start of the address in the array.
+	 * @param length the length of the encoded address.
+	 * @return the decoded address.
+	 */
+	String intern(byte[] b, int offset, int length) {
+		Key key = probe.get().set(b, offset, length);
+		try {
+			String $ = addresses.get(key);
+			if ($ != null) {
+				return $;
+			}
+		} finally {
+			key.set(null, 0, 0); // Don't hold on to the received message.
+		}
+
+		String $ = new String(b, offset, length, StandardCharsets.UTF_8);
+		if (addresses.size() >= capacity) {
+			return $;
+		}
+		String existing = addresses.putIfAbsent(new Key().set(Arrays.copyOfRange(b, offset, offset + length), 0, length), $);
+		return existing != null ? existing : $;
+	}
+
+	/**
+	 * @return the amount of interned addresses.
+	 */
+	int size() {
+		return addresses.size();
+	}
+
+	/**
+	 * A region of a byte array, compared by content.
+	 */
+	private static class Key {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+		private int hash;
+
+		Key set(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+			int h = 1;
+			for (int i = offset; i < offset + length; ++i) {
+				h = 31 * h + bytes[i];
+			}
+			this.hash = h;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			if (hash != other.hash || length != other.length)
+				return false;
+			for (int i = 0; i < length; ++i) {
+				if (bytes[offset + i] != other.bytes[other.offset + i])
+					return false;
+			}
+			return true;
+		}
+	}
+}
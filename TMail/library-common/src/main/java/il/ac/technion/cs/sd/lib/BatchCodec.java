@@ -0,0 +1,168 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A codec for a batch of messages, so that many messages can be sent as a single messenger payload.
+ * <br>
+ * Encoding:
+ * 1. The amount of messages, as a varint
+ * 2. For each message: its encoded size as a varint, followed by the message encoded with the given codec.
+ * <br>
+ * Messages are encoded and decoded in order, so stateful codecs can be used for the messages as well.
+ * On decoding, every message is decoded in place from its region of the received buffer.
+ *
+ * @param <T> The type of the batched messages.
+ */
+public class BatchCodec<T> implements Codec<List<T>> {
+
+	final private Codec<T> codec;
+
+	/**
+	 * Initialize the codec using a codec for the batched messages.
+	 * @param codec a codec for a single message.
+	 */
+	public BatchCodec(Codec<T> codec) {
+		if (codec == null) {
+			throw new IllegalArgumentException();
+		}
+		this.codec = codec;
+	}
+
+	/**
+	 * Encodes a batch of messages to an array of bytes.
+	 * @param messages the messages to encode.
+	 * @return an array of bytes represents the messages' data.
+	 */
+	@Override
+	public byte[] encode(List<T> messages) {
+		int size = sizeHint(messages);
+		if (size >= 0) {
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			encodeTo(messages, buffer);
+			return buffer.array();
+		}
+
+		// Unknown sizes: every message has to be encoded on its own first.
+		List<byte[]> encoded = new ArrayList<byte[]>(messages.size());
+		for (T message : messages) {
+			encoded.add(codec.encode(message));
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(sizeOfEncoded(encoded));
+		writeEncoded(buffer, encoded);
+		return buffer.array();
+	}
+
+	/**
+	 * @param encoded messages that were already encoded, each on its own.
+	 * @return the size of a batch of these messages.
+	 */
+	static int sizeOfEncoded(List<byte[]> encoded) {
+		int $ = WireFormat.sizeOfVarInt(encoded.size());
+		for (byte[] b : encoded) {
+			$ += WireFormat.sizeOfVarInt(b.length) + b.length;
+		}
+		return $;
+	}
+
+	/**
+	 * Write a batch of messages that were already encoded, each on its own, into a buffer.
+	 * @param buffer the buffer to write to. Must have {@link BatchCodec#sizeOfEncoded(List)} bytes remaining.
+	 * @param encoded the encoded messages.
+	 */
+	static void writeEncoded(ByteBuffer buffer, List<byte[]> encoded) {
+		WireFormat.writeVarInt(buffer, encoded.size());
+		for (byte[] b : encoded) {
+			WireFormat.writeVarInt(buffer, b.length);
+			buffer.put(b);
+		}
+	}
+
+	/**
+	 * Get the exact encoded size of a batch, if the message codec knows the size of every message in it.
+	 * @param messages the messages to measure.
+	 * @return the encoded size, or -1 if it is unknown.
+	 */
+	@Override
+	public int sizeHint(List<T> messages) {
+		int $ = WireFormat.sizeOfVarInt(messages.size());
+		for (T message : messages) {
+			int size = codec.sizeHint(message);
+			if (size < 0) {
+				return -1;
+			}
+			$ += WireFormat.sizeOfVarInt(size) + size;
+		}
+		return $;
+	}
+
+	/**
+	 * Encodes a batch of messages into a buffer.
+	 * @param messages the messages to encode.
+	 * @param buffer the buffer to write to.
+	 */
+	@Override
+	public void encodeTo(List<T> messages, ByteBuffer buffer) {
+		if (sizeHint(messages) < 0) {
+			buffer.put(encode(messages));
+			return;
+		}
+		WireFormat.writeVarInt(buffer, messages.size());
+		for (T message : messages) {
+			WireFormat.writeVarInt(buffer, codec.sizeHint(message));
+			codec.encodeTo(message, buffer);
+		}
+	}
+
+	/**
+	 * Decodes a batch of messages from an array of bytes.
+	 * @param b the array of bytes to decode.
+	 * @return the decoded messages, in the order they were encoded.
+	 */
+	@Override
+	public List<T> decode(byte[] b) {
+		return decode(ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Decodes a batch of messages from the remaining bytes of a buffer.
+	 * @param buffer the buffer to decode.
+	 * @return the decoded messages, in the order they were encoded.
+	 */
+	@Override
+	public List<T> decode(ByteBuffer buffer) {
+		List<ByteBuffer> messages = split(buffer);
+		List<T> $ = new ArrayList<T>(messages.size());
+		for (ByteBuffer message : messages) {
+			$.add(codec.decode(message));
+		}
+		return $;
+	}
+
+	/**
+	 * Split an encoded batch into the regions of its messages, without decoding them.
+	 * @param buffer the buffer holding the batch, which is advanced past it.
+	 * @return the encoded messages, in order.
+	 */
+	static List<ByteBuffer> split(ByteBuffer buffer) {
+		int count = WireFormat.readVarInt(buffer);
+		if (count < 0 || count > buffer.remaining()) {
+			// Every message takes at least one byte for its size.
+			throw new IllegalArgumentException("Invalid batch size: " + count);
+		}
+		List<ByteBuffer> $ = new ArrayList<ByteBuffer>(count);
+		for (int i = 0; i < count; ++i) {
+			int size = WireFormat.readVarInt(buffer);
+			if (size < 0 || size > buffer.remaining()) {
+				throw new IllegalArgumentException("Invalid message size: " + size);
+			}
+			ByteBuffer message = buffer.slice();
+			message.limit(size);
+			buffer.position(buffer.position() + size);
+			$.add(message);
+		}
+		return $;
+	}
+}
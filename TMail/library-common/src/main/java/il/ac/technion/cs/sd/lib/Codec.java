@@ -1,9 +1,19 @@
 package il.ac.technion.cs.sd.lib;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * An interface for encoding and decoding object as an array of bytes, and
  * decoding an array of bytes back to an instance of the object.
- * 
+ * <br>
+ * Besides the byte[] methods, a codec may implement the ByteBuffer methods, which let the connection
+ * classes write a message directly into a larger frame, and read it back from a region of a larger frame,
+ * without intermediate copies. The default implementations bridge to the byte[] methods.
+ * A codec may also implement {@link Codec#encodeTo(Object, OutputStream)}, so that large objects can be sent
+ * in chunks as they are being encoded, instead of being encoded into a single array first.
+ *
  * @param <T> The object type to encode/decode.
  */
 public interface Codec<T> {
@@ -13,11 +23,59 @@ public interface Codec<T> {
 	 * @return an array of bytes represents the object's data.
 	 */
 	public byte[] encode(T obj);
-	
+
 	/**
 	 * Decodes object data from an array of bytes.
-	 * @param b the array of bytes to decode. 
+	 * @param b the array of bytes to decode.
 	 * @return the decoded object.
 	 */
 	public T decode(byte[] b);
+
+	/**
+	 * Get the exact amount of bytes an object is encoded to, if it can be known without encoding it.
+	 * Codecs that return a size must also implement {@link Codec#encodeTo(Object, ByteBuffer)}.
+	 * @param obj the object to measure.
+	 * @return the encoded size of the object, or -1 if it is unknown.
+	 */
+	public default int sizeHint(T obj) {
+		return -1;
+	}
+
+	/**
+	 * Encodes an object into a buffer, starting at the buffer's position and advancing it.
+	 * @param obj the object to encode.
+	 * @param buffer the buffer to write to. Must have enough bytes remaining.
+	 */
+	public default void encodeTo(T obj, ByteBuffer buffer) {
+		buffer.put(encode(obj));
+	}
+
+	/**
+	 * Encodes an object into a stream, writing bytes that {@link Codec#decode(byte[])} accepts. These are usually the
+	 * bytes {@link Codec#encode(Object)} returns, but need not be: e.g. a codec may encode differently when it can't
+	 * see the whole encoding before writing it.
+	 * @param obj the object to encode.
+	 * @param out the stream to write to. It is not closed.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	public default void encodeTo(T obj, OutputStream out) throws IOException {
+		out.write(encode(obj));
+	}
+
+	/**
+	 * Decodes object data from the remaining bytes of a buffer. The buffer's position is advanced past the decoded data.
+	 * @param buffer the buffer to decode; the object is expected to span all of its remaining bytes.
+	 * @return the decoded object.
+	 */
+	public default T decode(ByteBuffer buffer) {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+				&& buffer.remaining() == buffer.array().length) {
+			// The buffer wraps a whole array, no need to copy it.
+			buffer.position(buffer.limit());
+			return decode(buffer.array());
+		}
+		byte[] b = new byte[buffer.remaining()];
+		buffer.get(b);
+		return decode(b);
+	}
 }
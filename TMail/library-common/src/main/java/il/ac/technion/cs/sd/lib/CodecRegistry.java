@@ -0,0 +1,270 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps small integer tags to the codecs of different message classes, so several kinds of messages can be passed
+ * over a single connection, each encoded by its own codec, without reflection.
+ * <br>
+ * Encoding:
+ * 1. The tag of the message's class, as a varint
+ * 2. The message, encoded by the codec registered for its class.
+ * <br>
+ * {@link CodecRegistry#codec()} decodes messages fully. {@link CodecRegistry#taggedCodec()} only reads the tag, so a
+ * receiver can route a message by its kind before (or instead of) decoding it.
+ * <br>
+ * Codecs should all be registered before the registry's codecs are used, but registering is thread-safe.
+ */
+public class CodecRegistry {
+
+	/**
+	 * The largest tag that can be registered.
+	 */
+	public static final int MAX_TAG = 1023;
+
+	// Indexed by tag, replaced as a whole when a codec is registered.
+	private volatile Registration<?>[] byTag = new Registration<?>[0];
+	private final Map<Class<?>, Registration<?>> byClass = new ConcurrentHashMap<Class<?>, Registration<?>>();
+
+	private final Codec<Object> codec = new RegistryCodec();
+	private final Codec<TaggedMessage> taggedCodec = new TaggedCodec();
+
+	/**
+	 * Register a codec for a message class.
+	 * @param tag the tag messages of the class are sent with, from 0 to {@link CodecRegistry#MAX_TAG}.
+	 * Smaller tags take less space; tags up to 127 take a single byte.
+	 * @param type the class of the messages. Messages of subclasses that are not registered themselves
+	 * are encoded with this codec as well.
+	 * @param codec the codec of the messages.
+	 * @return this registry, for chaining.
+	 */
+	public synchronized <T> CodecRegistry register(int tag, Class<T> type, Codec<T> codec) {
+		if (tag < 0 || tag > MAX_TAG || type == null || codec == null) {
+			throw new IllegalArgumentException();
+		}
+		if (tag < byTag.length && byTag[tag] != null) {
+			throw new IllegalArgumentException("Tag " + tag + " is already registered for " + byTag[tag].type);
+		}
+		if (byClass.containsKey(type) && byClass.get(type).type == type) {
+			throw new IllegalArgumentException(type + " is already registered");
+		}
+
+		Registration<T> registration = new Registration<T>(tag, type, codec);
+		Registration<?>[] tags = new Registration<?>[Math.max(byTag.length, tag + 1)];
+		System.arraycopy(byTag, 0, tags, 0, byTag.length);
+		tags[tag] = registration;
+		// Subclasses may have been resolved to a superclass before this registration.
+		byClass.clear();
+		for (Registration<?> r : tags) {
+			if (r != null) {
+				byClass.put(r.type, r);
+			}
+		}
+		byTag = tags;
+		return this;
+	}
+
+	/**
+	 * Get a codec for all the registered message classes, which decodes messages fully.
+	 * @return the codec.
+	 */
+	public Codec<Object> codec() {
+		return codec;
+	}
+
+	/**
+	 * Get a codec that decodes messages into a {@link TaggedMessage}, which holds the tag and the encoded message.
+	 * The message itself is only decoded when {@link TaggedMessage#decode()} is called.
+	 * @return the codec.
+	 */
+	public Codec<TaggedMessage> taggedCodec() {
+		return taggedCodec;
+	}
+
+	/**
+	 * Get the tag registered for a message class.
+	 * @param type the message class.
+	 * @return the tag its messages are sent with.
+	 */
+	public int tagOf(Class<?> type) {
+		return registrationOf(type).tag;
+	}
+
+	/**
+	 * Get the message class registered for a tag.
+	 * @param tag the tag.
+	 * @return the class of messages sent with the tag.
+	 */
+	public Class<?> typeOf(int tag) {
+		return registrationOf(tag).type;
+	}
+
+	/**
+	 * Read the tag of an encoded message, without moving the buffer's position.
+	 * @param buffer a buffer holding an encoded message at its position.
+	 * @return the message's tag.
+	 */
+	public static int peekTag(ByteBuffer buffer) {
+		return WireFormat.readVarInt(buffer.duplicate());
+	}
+
+	private Registration<?> registrationOf(int tag) {
+		Registration<?>[] tags = byTag;
+		if (tag < 0 || tag >= tags.length || tags[tag] == null) {
+			throw new IllegalArgumentException("Unknown tag: " + tag);
+		}
+		return tags[tag];
+	}
+
+	private Registration<?> registrationOf(Class<?> type) {
+		Registration<?> $ = byClass.get(type);
+		if ($ != null) {
+			return $;
+		}
+		// An unregistered subclass: use the closest registered superclass (or interface), and remember it.
+		for (Class<?> c = type.getSuperclass(); c != null && $ == null; c = c.getSuperclass()) {
+			$ = byClass.get(c);
+		}
+		if ($ == null) {
+			for (Registration<?> r : byTag) {
+				if (r != null && r.type.isAssignableFrom(type)) {
+					$ = r;
+					break;
+				}
+			}
+		}
+		if ($ == null) {
+			throw new IllegalArgumentException("No codec is registered for " + type);
+		}
+		byClass.put(type, $);
+		return $;
+	}
+
+	/**
+	 * A codec registered for a message class.
+	 */
+	private static class Registration<T> {
+		final int tag;
+		final Class<T> type;
+		final Codec<T> codec;
+		final int tagSize;
+
+		Registration(int tag, Class<T> type, Codec<T> codec) {
+			this.tag = tag;
+			this.type = type;
+			this.codec = codec;
+			this.tagSize = WireFormat.sizeOfVarInt(tag);
+		}
+
+		int sizeHint(Object message) {
+			int size = codec.sizeHint(type.cast(message));
+			return size < 0 ? -1 : tagSize + size;
+		}
+
+		byte[] encode(Object message) {
+			T typed = type.cast(message);
+			int size = codec.sizeHint(typed);
+			ByteBuffer buffer;
+			if (size >= 0) {
+				buffer = ByteBuffer.allocate(tagSize + size);
+				WireFormat.writeVarInt(buffer, tag);
+				codec.encodeTo(typed, buffer);
+			} else {
+				byte[] b = codec.encode(typed);
+				buffer = ByteBuffer.allocate(tagSize + b.length);
+				WireFormat.writeVarInt(buffer, tag);
+				buffer.put(b);
+			}
+			return buffer.array();
+		}
+
+		void encodeTo(Object message, ByteBuffer buffer) {
+			WireFormat.writeVarInt(buffer, tag);
+			codec.encodeTo(type.cast(message), buffer);
+		}
+
+		void encodeTo(Object message, OutputStream out) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(tagSize);
+			WireFormat.writeVarInt(header, tag);
+			out.write(header.array());
+			codec.encodeTo(type.cast(message), out);
+		}
+	}
+
+	/**
+	 * Encodes messages with the codec registered for their class, and decodes them by their tag.
+	 */
+	private class RegistryCodec implements Codec<Object> {
+		@Override
+		public byte[] encode(Object message) {
+			return registrationOf(message.getClass()).encode(message);
+		}
+
+		@Override
+		public int sizeHint(Object message) {
+			return registrationOf(message.getClass()).sizeHint(message);
+		}
+
+		@Override
+		public void encodeTo(Object message, ByteBuffer buffer) {
+			registrationOf(message.getClass()).encodeTo(message, buffer);
+		}
+
+		@Override
+		public void encodeTo(Object message, OutputStream out) throws IOException {
+			registrationOf(message.getClass()).encodeTo(message, out);
+		}
+
+		@Override
+		public Object decode(byte[] b) {
+			return decode(ByteBuffer.wrap(b));
+		}
+
+		@Override
+		public Object decode(ByteBuffer buffer) {
+			return registrationOf(WireFormat.readVarInt(buffer)).codec.decode(buffer);
+		}
+	}
+
+	/**
+	 * Decodes only the tags of messages. Encodes tagged messages by writing their tag and encoded body as is,
+	 * so a received message can be forwarded without decoding it.
+	 */
+	private class TaggedCodec implements Codec<TaggedMessage> {
+		@Override
+		public byte[] encode(TaggedMessage message) {
+			ByteBuffer buffer = ByteBuffer.allocate(sizeHint(message));
+			encodeTo(message, buffer);
+			return buffer.array();
+		}
+
+		@Override
+		public int sizeHint(TaggedMessage message) {
+			return WireFormat.sizeOfVarInt(message.getTag()) + message.body.remaining();
+		}
+
+		@Override
+		public void encodeTo(TaggedMessage message, ByteBuffer buffer) {
+			WireFormat.writeVarInt(buffer, message.getTag());
+			buffer.put(message.body.duplicate());
+		}
+
+		@Override
+		public TaggedMessage decode(byte[] b) {
+			return decode(ByteBuffer.wrap(b));
+		}
+
+		@Override
+		public TaggedMessage decode(ByteBuffer buffer) {
+			int tag = WireFormat.readVarInt(buffer);
+			Registration<?> registration = registrationOf(tag);
+			ByteBuffer body = buffer.slice();
+			buffer.position(buffer.limit());
+			return new TaggedMessage(tag, registration.type, registration.codec, body);
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A codec decorator that deflates the encoding of another codec, when it is large enough for compression to pay off.
+ * <br>
+ * Encoding:
+ * 1. A one-byte flag: raw or deflated
+ * 2. Raw: the inner encoding as is.
+ *    Deflated: the inner encoding size as a varint, followed by the deflated inner encoding.
+ * <br>
+ * Messages smaller than the threshold skip compression entirely, and cost a single extra byte. Messages that
+ * don't shrink are sent raw as well. Deflater and Inflater instances are reused per thread, so the codec can be
+ * shared between threads.
+ * <br>
+ * When encoding to a stream, an inner codec that knows its encoded size is deflated as it is being written, so the
+ * uncompressed message is never held in memory as a whole. Such messages are sent deflated even if they don't shrink.
+ * <br>
+ * A deflated message declares its inflated size, which is checked before any memory is allocated for it: it may not be
+ * larger than a max size (see {@link CompressingCodec#DEFAULT_MAX_INFLATED_SIZE}), nor larger than deflate could ever
+ * inflate the compressed bytes to. A peer can thus not make the decoder allocate more than it is willing to.
+ *
+ * @param <T> The object type to encode/decode.
+ */
+public class CompressingCodec<T> implements Codec<T> {
+
+	/**
+	 * The default minimal encoded size, in bytes, of a message to compress.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	/**
+	 * The default maximal inflated size, in bytes, of a message to decode.
+	 */
+	public static final int DEFAULT_MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+	// The most deflate can compress: a byte repeated over and over is 258 bytes per 2 bits.
+	private static final int MAX_DEFLATE_RATIO = 1032;
+
+	private static final byte RAW = 0;
+	private static final byte DEFLATED = 1;
+
+	private final Codec<T> inner;
+	private final int threshold;
+	private final int maxInflatedSize;
+	private final ThreadLocal<Deflater> deflater;
+	private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Create a compressing codec with the default threshold, using the fastest compression level.
+	 * @param inner the codec whose encoding is compressed.
+	 */
+	public CompressingCodec(Codec<T> inner) {
+		this(inner, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Create a compressing codec using the fastest compression level.
+	 * @param inner the codec whose encoding is compressed.
+	 * @param threshold the minimal encoded size, in bytes, of a message to compress.
+	 */
+	public CompressingCodec(Codec<T> inner, int threshold) {
+		this(inner, threshold, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Create a compressing codec.
+	 * @param inner the codec whose encoding is compressed.
+	 * @param threshold the minimal encoded size, in bytes, of a message to compress.
+	 * @param level the deflate compression level (0-9).
+	 */
+	public CompressingCodec(Codec<T> inner, int threshold, int level) {
+		this(inner, threshold, level, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/**
+	 * Create a compressing codec, with a custom bound on the messages it decodes.
+	 * @param inner the codec whose encoding is compressed.
+	 * @param threshold the minimal encoded size, in bytes, of a message to compress.
+	 * @param level the deflate compression level (0-9).
+	 * @param maxInflatedSize the maximal inflated size, in bytes, of a message to decode.
+	 */
+	public CompressingCodec(Codec<T> inner, int threshold, int level, int maxInflatedSize) {
+		if (inner == null || threshold < 0 || level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION
+				|| maxInflatedSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.inner = inner;
+		this.threshold = threshold;
+		this.maxInflatedSize = maxInflatedSize;
+		this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+	}
+
+	/**
+	 * Encodes an object, compressing its inner encoding if it is at least as large as the threshold.
+	 * @param obj the object to encode.
+	 * @return an array of bytes represents the object's data.
+	 */
+	@Override
+	public byte[] encode(T obj) {
+		int size = sizeHint(obj);
+		if (size >= 0) {
+			// Known to be below the threshold: written once, behind the flag.
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			encodeTo(obj, buffer);
+			return buffer.array();
+		}
+
+		byte[] raw = inner.encode(obj);
+		if (raw.length >= threshold) {
+			byte[] deflated = deflate(raw);
+			if (deflated != null) {
+				return deflated;
+			}
+		}
+		byte[] $ = new byte[1 + raw.length];
+		$[0] = RAW;
+		System.arraycopy(raw, 0, $, 1, raw.length);
+		return $;
+	}
+
+	/**
+	 * Get the exact encoded size of an object, if it is known not to be compressed.
+	 * @param obj the object to measure.
+	 * @return the encoded size, or -1 if it is unknown.
+	 */
+	@Override
+	public int sizeHint(T obj) {
+		int size = inner.sizeHint(obj);
+		return size >= 0 && size < threshold ? 1 + size : -1;
+	}
+
+	/**
+	 * Encodes an object into a buffer.
+	 * @param obj the object to encode.
+	 * @param buffer the buffer to write to.
+	 */
+	@Override
+	public void encodeTo(T obj, ByteBuffer buffer) {
+		int size = inner.sizeHint(obj);
+		if (size >= 0 && size < threshold) {
+			buffer.put(RAW);
+			inner.encodeTo(obj, buffer);
+		} else {
+			buffer.put(encode(obj));
+		}
+	}
+
+	/**
+	 * Encodes an object into a stream. If the inner codec knows the object's size, the object is deflated while it
+	 * is being encoded, and is sent deflated even if it doesn't shrink (unlike by {@link CompressingCodec#encode});
+	 * otherwise it is encoded into an array first.
+	 * @param obj the object to encode.
+	 * @param out the stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	@Override
+	public void encodeTo(T obj, OutputStream out) throws IOException {
+		int size = inner.sizeHint(obj);
+		if (size < 0) {
+			out.write(encode(obj));
+			return;
+		}
+		if (size < threshold) {
+			out.write(RAW);
+			inner.encodeTo(obj, out);
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(1 + WireFormat.sizeOfVarInt(size));
+		header.put(DEFLATED);
+		WireFormat.writeVarInt(header, size);
+		out.write(header.array());
+		Deflater d = deflater.get();
+		try {
+			// Not closed, since that would close the given stream as well.
+			DeflaterOutputStream dos = new DeflaterOutputStream(out, d);
+			inner.encodeTo(obj, dos);
+			dos.finish();
+		} finally {
+			d.reset();
+		}
+	}
+
+	/**
+	 * Decodes object data from an array of bytes.
+	 * @param b the array of bytes to decode.
+	 * @return the decoded object.
+	 */
+	@Override
+	public T decode(byte[] b) {
+		return decode(ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Decodes object data from the remaining bytes of a buffer. Raw messages are decoded in place.
+	 * @param buffer the buffer to decode.
+	 * @return the decoded object.
+	 */
+	@Override
+	public T decode(ByteBuffer buffer) {
+		byte flag = buffer.get();
+		switch (flag) {
+		case RAW:
+			return inner.decode(buffer);
+		case DEFLATED:
+			return inner.decode(inflate(buffer));
+		default:
+			throw new IllegalArgumentException("Unknown compression flag: " + flag);
+		}
+	}
+
+	/**
+	 * Deflate an encoded message.
+	 * @return the flagged, deflated message; or null if deflating does not make it smaller.
+	 */
+	private byte[] deflate(byte[] raw) {
+		int headerSize = 1 + WireFormat.sizeOfVarInt(raw.length);
+		if (headerSize >= 1 + raw.length) {
+			return null;
+		}
+		// If the result does not fit in the raw size, it isn't worth sending compressed.
+		byte[] $ = new byte[1 + raw.length];
+		ByteBuffer.wrap($).put(DEFLATED);
+		WireFormat.writeVarInt(ByteBuffer.wrap($, 1, headerSize - 1), raw.length);
+
+		Deflater d = deflater.get();
+		try {
+			d.setInput(raw);
+			d.finish();
+			int length = headerSize;
+			while (!d.finished() && length < $.length) {
+				length += d.deflate($, length, $.length - length);
+			}
+			return d.finished() ? Arrays.copyOf($, length) : null;
+		} finally {
+			d.reset();
+		}
+	}
+
+	private byte[] inflate(ByteBuffer buffer) {
+		int size = WireFormat.readVarInt(buffer);
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid inflated size: " + size);
+		}
+		if (size > maxInflatedSize) {
+			throw new IllegalArgumentException("Inflated size " + size + " exceeds the maximum of " + maxInflatedSize);
+		}
+		if (size > (long) buffer.remaining() * MAX_DEFLATE_RATIO) {
+			throw new IllegalArgumentException("Inflated size " + size + " can't be deflated to " + buffer.remaining()
+					+ " bytes");
+		}
+		if (!buffer.hasArray()) {
+			byte[] b = new byte[buffer.remaining()];
+			buffer.get(b);
+			buffer = ByteBuffer.wrap(b);
+		}
+
+		byte[] $ = new byte[size];
+		Inflater i = inflater.get();
+		try {
+			i.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			int length = 0;
+			while (length < size && !i.finished()) {
+				int n = i.inflate($, length, size - length);
+				if (n == 0 && (i.needsInput() || i.needsDictionary())) {
+					throw new IllegalArgumentException("Truncated compressed message");
+				}
+				length += n;
+			}
+			if (length != size || !i.finished()) {
+				throw new IllegalArgumentException("Compressed message does not match its declared size");
+			}
+			buffer.position(buffer.limit());
+			return $;
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			i.reset();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The kinds of payloads the connection classes pass to the messenger.
+ * <br>
+ * Every payload starts with a one-byte kind, followed by its body: a single message, a batch of messages
+ * (see {@link BatchCodec}), or a chunk of a message too large to send as a single payload. Payloads sent by a client
+ * carry the sender header (see {@link MessageWithSenderCodec}) right after the kind.
+ * <br>
+ * A chunk's body is the id of the chunked message (a stream), the chunk's sequence number in the stream, a flag
+ * marking the last chunk, and the chunk's bytes. The message is the concatenation of the chunks' bytes.
+ */
+final class Frame {
+
+	/** The body is a single message. */
+	static final byte SINGLE = 0;
+
+	/** The body is a batch of messages. */
+	static final byte BATCH = 1;
+
+	/** The body is a chunk of a message. */
+	static final byte CHUNK = 2;
+
+	private static final byte NOT_LAST = 0;
+	private static final byte LAST = 1;
+
+	private Frame() {
+	}
+
+	/**
+	 * Encode a payload of a given kind.
+	 * @param kind the kind of the payload.
+	 * @param codec the codec of the body.
+	 * @param body the body of the payload.
+	 * @return the encoded payload.
+	 */
+	static <T> byte[] encode(byte kind, Codec<T> codec, T body) {
+		int size = codec.sizeHint(body);
+		if (size >= 0) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 + size);
+			buffer.put(kind);
+			codec.encodeTo(body, buffer);
+			return buffer.array();
+		}
+		byte[] b = codec.encode(body);
+		byte[] $ = new byte[1 + b.length];
+		$[0] = kind;
+		System.arraycopy(b, 0, $, 1, b.length);
+		return $;
+	}
+
+	/**
+	 * Encode a chunk payload.
+	 * @param streamId the id of the chunked message.
+	 * @param seq the sequence number of the chunk in the stream, starting at 0.
+	 * @param last whether this is the last chunk of the message.
+	 * @param data an array holding the chunk's bytes, from its start.
+	 * @param length the amount of bytes in the chunk.
+	 * @return the encoded payload.
+	 */
+	static byte[] chunk(int streamId, int seq, boolean last, byte[] data, int length) {
+		return chunk(streamId, seq, last, data, 0, length);
+	}
+
+	/**
+	 * Encode a chunk payload.
+	 * @param streamId the id of the chunked message.
+	 * @param seq the sequence number of the chunk in the stream, starting at 0.
+	 * @param last whether this is the last chunk of the message.
+	 * @param data an array holding the chunk's bytes.
+	 * @param offset the index of the chunk's first byte in the array.
+	 * @param length the amount of bytes in the chunk.
+	 * @return the encoded payload.
+	 */
+	static byte[] chunk(int streamId, int seq, boolean last, byte[] data, int offset, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + WireFormat.sizeOfVarInt(streamId) + WireFormat.sizeOfVarInt(seq)
+				+ 1 + length);
+		buffer.put(CHUNK);
+		WireFormat.writeVarInt(buffer, streamId);
+		WireFormat.writeVarInt(buffer, seq);
+		buffer.put(last ? LAST : NOT_LAST);
+		buffer.put(data, offset, length);
+		return buffer.array();
+	}
+
+	/**
+	 * A decoded chunk. The chunk's bytes are a region of the received payload.
+	 */
+	static class Chunk {
+		final int streamId;
+		final int seq;
+		final boolean last;
+		final ByteBuffer data;
+
+		/**
+		 * Decode a chunk's body, from the remaining bytes of a buffer.
+		 */
+		Chunk(ByteBuffer body) {
+			streamId = WireFormat.readVarInt(body);
+			seq = WireFormat.readVarInt(body);
+			byte flag = body.get();
+			if (flag != LAST && flag != NOT_LAST) {
+				throw new IllegalArgumentException("Invalid chunk flag: " + flag);
+			}
+			last = flag == LAST;
+			data = body.slice();
+			body.position(body.limit());
+		}
+	}
+}
@@ -1,24 +1,56 @@
 package il.ac.technion.cs.sd.lib;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
 
 /**
  * A codec for encoding and decoding the MessageWithSender Class.
+ * <br>
+ * When the inner codec knows its encoded size (see {@link Codec#sizeHint(Object)}), the sender header and the
+ * message are written into a single buffer; on decoding, the inner codec reads the message directly from the
+ * received buffer. Either way, no intermediate copy of the message is made.
+ * <br>
+ * Decoded sender addresses are interned (see {@link AddressInterner}), so all the messages of a sender carry
+ * the same String instance. The encoded header of the last sender is cached, since a client always sends
+ * with the same address.
  * @param <Message>
  */
 public class MessageWithSenderCodec<Message> implements
 		Codec<MessageWithSender<Message>> {
 
-	final private Codec<Message> messageCodec;
-	
+	final private Function<String, Codec<Message>> codecOfSender;
+	final private AddressInterner senders;
+	private volatile SenderHeader lastHeader = new SenderHeader("");
+
 	/**
 	 * Initialize the codec using a codec for the inner message.
 	 * @param mc a codec for the message class.
 	 */
 	MessageWithSenderCodec(Codec<Message> mc) {
-		messageCodec = mc;
+		this(sender -> mc);
+	}
+
+	/**
+	 * Initialize the codec using a separate codec for the messages of each sender, for stateful codecs
+	 * that must only see the messages of a single peer.
+	 * @param codecOfSender returns the codec to use for the messages of a given sender address.
+	 */
+	MessageWithSenderCodec(Function<String, Codec<Message>> codecOfSender) {
+		this(codecOfSender, new AddressInterner());
 	}
-	
+
+	/**
+	 * Initialize the codec using a separate codec for the messages of each sender, and interning the decoded
+	 * senders into a given table, which may be shared with other codecs.
+	 * @param codecOfSender returns the codec to use for the messages of a given sender address.
+	 * @param senders the table to intern decoded sender addresses into.
+	 */
+	MessageWithSenderCodec(Function<String, Codec<Message>> codecOfSender, AddressInterner senders) {
+		this.codecOfSender = codecOfSender;
+		this.senders = senders;
+	}
+
 	/**
 	 * Encodes a MessageWithSender to an array of bytes.
 	 * @param message the MessageWithSender to encode.
@@ -27,22 +59,53 @@ public class MessageWithSenderCodec<Message> implements
 	@Override
 	public byte[] encode(MessageWithSender<Message> message) {
 		// Encoding:
-		// 1. Sender address string size
-		// 2. Sender address string as raw bytes
+		// 1. Sender address UTF-8 size, as a varint
+		// 2. Sender address as UTF-8 bytes
 		// 3. Message context, serialized with the given codec.
-		
-		byte[] messageBytes = messageCodec.encode(message.content);
-		byte[] senderBytes = message.sender.getBytes();
-		
-		ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES
-				+ senderBytes.length + messageBytes.length);
-		buff.putInt(senderBytes.length)
-			.put(senderBytes)
-			.put(messageBytes);
-		
+
+		Codec<Message> messageCodec = codecOfSender.apply(message.sender);
+		byte[] header = headerOf(message.sender);
+		int messageSize = messageCodec.sizeHint(message.content);
+		if (messageSize < 0) {
+			// Unknown size: the message has to be encoded on its own first.
+			byte[] messageBytes = messageCodec.encode(message.content);
+			return ByteBuffer.allocate(header.length + messageBytes.length)
+					.put(header)
+					.put(messageBytes)
+					.array();
+		}
+
+		ByteBuffer buff = ByteBuffer.allocate(header.length + messageSize);
+		buff.put(header);
+		messageCodec.encodeTo(message.content, buff);
 		return buff.array();
 	}
-	
+
+	/**
+	 * Get the exact encoded size of a MessageWithSender, if the inner codec knows the size of the message.
+	 * @param message the MessageWithSender to measure.
+	 * @return the encoded size, or -1 if it is unknown.
+	 */
+	@Override
+	public int sizeHint(MessageWithSender<Message> message) {
+		int messageSize = codecOfSender.apply(message.sender).sizeHint(message.content);
+		if (messageSize < 0) {
+			return -1;
+		}
+		return headerOf(message.sender).length + messageSize;
+	}
+
+	/**
+	 * Encodes a MessageWithSender into a buffer.
+	 * @param message the MessageWithSender to encode.
+	 * @param buffer the buffer to write to.
+	 */
+	@Override
+	public void encodeTo(MessageWithSender<Message> message, ByteBuffer buffer) {
+		buffer.put(headerOf(message.sender));
+		codecOfSender.apply(message.sender).encodeTo(message.content, buffer);
+	}
+
 	/**
 	 * Decodes a MessageWithSender from an array of bytes.
 	 * @param b the byte array to decode.
@@ -50,20 +113,61 @@ public class MessageWithSenderCodec<Message> implements
 	 */
 	@Override
 	public MessageWithSender<Message> decode(byte[] b) {
-		ByteBuffer buff = ByteBuffer.wrap(b);
-		
+		return decode(ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Decodes a MessageWithSender from the remaining bytes of a buffer. The message is decoded
+	 * in place, from the region of the buffer that follows the sender header.
+	 * @param buff the buffer to decode.
+	 * @return the decoded MessageWithSender.
+	 */
+	@Override
+	public MessageWithSender<Message> decode(ByteBuffer buff) {
 		// Extract sender address.
-		byte[] senderBytes = new byte[buff.getInt(0)];
-		buff.position(Integer.BYTES);
-		buff.get(senderBytes);
-		
-		// Extract content.
-		byte[] contentBytes = new byte[buff.remaining()]; 
-		buff.position(Integer.BYTES + senderBytes.length);
-		buff.get(contentBytes);
-		
-		return new MessageWithSender<Message>(
-				messageCodec.decode(contentBytes), new String(senderBytes));
+		int senderLength = WireFormat.readVarInt(buff);
+		if (senderLength < 0 || senderLength > buff.remaining()) {
+			throw new IllegalArgumentException("Invalid sender address length: " + senderLength);
+		}
+		String sender;
+		if (buff.hasArray()) {
+			sender = senders.intern(buff.array(), buff.arrayOffset() + buff.position(), senderLength);
+			buff.position(buff.position() + senderLength);
+		} else {
+			byte[] senderBytes = new byte[senderLength];
+			buff.get(senderBytes);
+			sender = senders.intern(senderBytes, 0, senderLength);
+		}
+
+		// The rest of the buffer is the content.
+		return new MessageWithSender<Message>(codecOfSender.apply(sender).decode(buff), sender);
+	}
+
+	/**
+	 * Get the encoded sender header of an address, reusing the header of the previous message if it had the same sender.
+	 */
+	private byte[] headerOf(String sender) {
+		SenderHeader header = lastHeader;
+		if (!header.sender.equals(sender)) {
+			header = new SenderHeader(sender);
+			lastHeader = header;
+		}
+		return header.bytes;
 	}
 
+	/**
+	 * A sender address, with its encoded header.
+	 */
+	private static class SenderHeader {
+		final String sender;
+		final byte[] bytes;
+
+		SenderHeader(String sender) {
+			this.sender = sender;
+			byte[] utf8 = sender.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buffer = ByteBuffer.allocate(WireFormat.sizeOfVarInt(utf8.length) + utf8.length);
+			WireFormat.writeVarInt(buffer, utf8.length);
+			this.bytes = buffer.put(utf8).array();
+		}
+	}
 }
@@ -0,0 +1,206 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes the messages received by a connection to a subscriber, from a reader thread of its own, as many as the
+ * subscriber requested. While there is no demand, the reader thread waits without receiving, so messages wait in the
+ * messenger.
+ * <br>
+ * The reader polls for messages rather than blocking on the messenger, so it notices a cancellation while no message
+ * arrives, and stops receiving before another subscriber (or receive call) takes over. The pause between polls grows
+ * while no message arrives, up to a millisecond.
+ * 
+ * @param <T> The type of the messages pushed.
+ */
+class PushSubscription<T> implements Subscription {
+
+	private static final long MIN_POLL_INTERVAL_NANOS = 1000;
+	private static final long MAX_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Where the messages come from.
+	 */
+	interface Source<T> {
+		/**
+		 * Receive what already arrived, without waiting.
+		 * @return true if a message can be taken.
+		 * @throws RuntimeException if receiving fails, e.g. because the connection was killed.
+		 */
+		boolean poll();
+
+		/**
+		 * @return the message waited for, which is taken from the source.
+		 */
+		T take();
+	}
+
+	final private Subscriber<? super T> subscriber;
+	final private Source<T> source;
+	final private Thread reader;
+
+	// Guarded by this.
+	private long demand;
+	private boolean cancelled;
+	private boolean closed;
+	private boolean done;
+
+	/**
+	 * Create a subscription, and start pushing to the subscriber.
+	 * @param name a name for the reader thread.
+	 * @param subscriber the subscriber.
+	 * @param source where the messages come from.
+	 */
+	PushSubscription(String name, Subscriber<? super T> subscriber, Source<T> source) {
+		if (subscriber == null || source == null) {
+			throw new IllegalArgumentException();
+		}
+		this.subscriber = subscriber;
+		this.source = source;
+		this.reader = new Thread(this::run, name);
+		reader.setDaemon(true);
+		subscriber.onSubscribe(this);
+		reader.start();
+	}
+
+	@Override
+	public synchronized void request(long n) {
+		if (n <= 0) {
+			// Reported by the reader thread, so the subscriber is never called concurrently.
+			demand = -1;
+		} else if (demand >= 0) {
+			demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+		}
+		notifyAll();
+	}
+
+	@Override
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			notifyAll();
+		}
+		awaitDone();
+	}
+
+	/**
+	 * Stop pushing because the connection is being killed. The subscriber is told it is complete.
+	 */
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the reader thread to stop, if it was told to.
+	 * @return true if the reader thread no longer receives, so messages can be received by other means; false if the
+	 * subscription is still active.
+	 */
+	boolean awaitDone() {
+		synchronized (this) {
+			if (!done && !cancelled && !closed) {
+				return false;
+			}
+		}
+		if (Thread.currentThread() == reader) {
+			// Resubscribing from the subscriber: the reader stops as soon as it returns, without receiving again.
+			return true;
+		}
+		boolean interrupted = false;
+		while (reader.isAlive()) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				boolean complete;
+				boolean invalid;
+				synchronized (this) {
+					while (demand == 0 && !cancelled && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Only cancel() and close() stop the reader thread.
+						}
+					}
+					if (cancelled) {
+						return;
+					}
+					complete = closed;
+					invalid = demand < 0;
+				}
+				if (complete) {
+					subscriber.onComplete();
+					return;
+				}
+				if (invalid) {
+					subscriber.onError(new IllegalArgumentException("Requested a non-positive amount of messages"));
+					return;
+				}
+				boolean received;
+				try {
+					received = awaitMessage();
+				} catch (RuntimeException e) {
+					synchronized (this) {
+						if (cancelled) {
+							return;
+						}
+						complete = closed;
+					}
+					if (complete) {
+						subscriber.onComplete();
+					} else {
+						subscriber.onError(e);
+					}
+					return;
+				}
+				synchronized (this) {
+					// Not taken once cancelled, so it can still be received by other means.
+					if (cancelled) {
+						return;
+					}
+					if (!received) {
+						continue;
+					}
+					if (demand != Long.MAX_VALUE) {
+						--demand;
+					}
+				}
+				subscriber.onNext(source.take());
+			}
+		} finally {
+			synchronized (this) {
+				done = true;
+			}
+		}
+	}
+
+	/**
+	 * Poll the source until a message can be taken, or the subscription is cancelled or closed.
+	 * @return true if a message can be taken.
+	 */
+	private boolean awaitMessage() {
+		long pause = MIN_POLL_INTERVAL_NANOS;
+		while (!source.poll()) {
+			synchronized (this) {
+				if (cancelled || closed) {
+					return false;
+				}
+			}
+			LockSupport.parkNanos(pause);
+			pause = Math.min(pause * 2, MAX_POLL_INTERVAL_NANOS);
+		}
+		return true;
+	}
+}
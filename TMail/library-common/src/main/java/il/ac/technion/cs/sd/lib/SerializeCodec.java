@@ -5,7 +5,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A codec for encoding/decoding a Serializable object. This class uses the
@@ -32,16 +34,49 @@ public class SerializeCodec<T extends Serializable> implements Codec<T> {
 		}
 	}
 
+	/**
+	 * Encodes an object directly into a stream.
+	 * @param obj the object to encode.
+	 * @param out the stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	@Override
+	public void encodeTo(T obj, OutputStream out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(obj);
+		oos.flush();
+	}
+
 	/**
 	 * Decodes object data from an array of bytes.
 	 * @param b the array of bytes to decode. 
 	 * @return the decoded object.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public T decode(byte[] bytes) {
+		return decode(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * Decodes object data from the remaining bytes of a buffer. Array-backed buffers
+	 * are read in place, without copying the data out first.
+	 * @param buffer the buffer to decode.
+	 * @return the decoded object.
+	 */
+	@Override
+	public T decode(ByteBuffer buffer) {
+		if (!buffer.hasArray()) {
+			return Codec.super.decode(buffer);
+		}
+		ByteArrayInputStream bis = new ByteArrayInputStream(buffer.array(),
+				buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		buffer.position(buffer.limit());
+		return decode(bis);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T decode(ByteArrayInputStream bis) {
 		try {
-			ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
 			ObjectInputStream ois;
 			ois = new ObjectInputStream(bis);
 			T obj = (T) ois.readObject();
@@ -0,0 +1,219 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A codec for Serializable objects that keeps one long-lived object stream for each direction,
+ * instead of starting a new stream for every message like {@link SerializeCodec} does.
+ * The stream header and the class descriptors are therefore only sent the first time they are needed,
+ * and later messages refer back to them.
+ * <br>
+ * Since every message depends on the ones sent before it, an instance must be scoped to a single peer, and the
+ * peer must decode the messages in the order they were encoded. ServerConnection and ClientConnection do this
+ * when created with their createStateful methods.
+ * <br>
+ * Every {@code resetInterval} messages the encoder starts a new stream, so the memory held by both sides
+ * (references to every object written since the stream started) stays bounded, and a peer that lost its
+ * state (e.g. reconnected) can pick up the stream again. A new stream is also started once the encoder was idle for a
+ * while, so a peer that dropped its state in the meantime (e.g. the codec of a client that went quiet) picks up the
+ * stream on the next message. Objects sent through this codec must not be modified afterwards, until the next reset,
+ * since the stream may send a reference to the earlier copy instead.
+ *
+ * @param <T> The (serializable) object type to encode/decode.
+ */
+public class StatefulSerializeCodec<T extends Serializable> implements Codec<T> {
+
+	/**
+	 * The default amount of messages sent on a stream, before a new one is started.
+	 */
+	public static final int DEFAULT_RESET_INTERVAL = 128;
+
+	/**
+	 * The default time, in seconds, the encoder may be idle before it starts a new stream.
+	 */
+	public static final long DEFAULT_IDLE_RESET_SECONDS = 30;
+
+	// Every new stream starts with the serialization stream magic number.
+	private static final byte MAGIC_HIGH = (byte)0xAC;
+	private static final byte MAGIC_LOW = (byte)0xED;
+
+	private final int resetInterval;
+	private final long idleResetNanos;
+
+	// Encoding side, guarded by 'this'.
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	private ObjectOutputStream oos;
+	private int sentOnStream;
+	private long lastEncoded;
+
+	// Decoding side, guarded by 'in'.
+	private final MessageInputStream in = new MessageInputStream();
+	private ObjectInputStream ois;
+
+	/**
+	 * Create a codec that starts a new stream every {@link StatefulSerializeCodec#DEFAULT_RESET_INTERVAL} messages.
+	 */
+	public StatefulSerializeCodec() {
+		this(DEFAULT_RESET_INTERVAL);
+	}
+
+	/**
+	 * Create a codec with a custom reset interval.
+	 * @param resetInterval the amount of messages sent on a stream, before a new one is started.
+	 */
+	public StatefulSerializeCodec(int resetInterval) {
+		this(resetInterval, DEFAULT_IDLE_RESET_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Create a codec with a custom reset interval and idle time.
+	 * @param resetInterval the amount of messages sent on a stream, before a new one is started.
+	 * @param idleReset how long the encoder may be idle before it starts a new stream.
+	 * @param unit the unit of idleReset.
+	 */
+	public StatefulSerializeCodec(int resetInterval, long idleReset, TimeUnit unit) {
+		if (resetInterval <= 0) {
+			throw new IllegalArgumentException("reset interval must be positive");
+		}
+		if (idleReset <= 0 || unit == null) {
+			throw new IllegalArgumentException("idle reset time must be positive");
+		}
+		this.resetInterval = resetInterval;
+		this.idleResetNanos = unit.toNanos(idleReset);
+	}
+
+	/**
+	 * Encodes an object as the next message on the outgoing stream.
+	 * @param obj the object to encode.
+	 * @return an array of bytes represents the object's data, relative to the previous messages.
+	 */
+	@Override
+	public synchronized byte[] encode(T obj) {
+		long now = System.nanoTime();
+		try {
+			if (oos == null || sentOnStream == resetInterval || now - lastEncoded > idleResetNanos) {
+				// The constructor writes the stream header, which tells the decoder a new stream starts.
+				oos = new ObjectOutputStream(bos);
+				sentOnStream = 0;
+			}
+			// The message itself is never shared, so a message object may be sent again after changing it.
+			oos.writeUnshared(obj);
+			oos.flush();
+			++sentOnStream;
+			lastEncoded = now;
+			return bos.toByteArray();
+		} catch (IOException e) {
+			oos = null; // The stream is unusable; the next message starts a new one.
+			throw new RuntimeException(e);
+		} finally {
+			bos.reset();
+		}
+	}
+
+	/**
+	 * Decodes the next message on the incoming stream.
+	 * @param b the array of bytes to decode.
+	 * @return the decoded object.
+	 */
+	@Override
+	public T decode(byte[] b) {
+		return decode(ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Decodes the next message on the incoming stream, from the remaining bytes of a buffer.
+	 * @param buffer the buffer to decode.
+	 * @return the decoded object.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T decode(ByteBuffer buffer) {
+		if (!buffer.hasArray()) {
+			byte[] b = new byte[buffer.remaining()];
+			buffer.get(b);
+			buffer = ByteBuffer.wrap(b);
+		}
+		synchronized (in) {
+			in.feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			try {
+				if (startsNewStream(in)) {
+					ois = new ObjectInputStream(in);
+				} else if (ois == null) {
+					throw new IllegalStateException("Message is in the middle of a stream that was never started");
+				}
+				return (T)ois.readUnshared();
+			} catch (IOException | ClassNotFoundException e) {
+				ois = null; // Out of sync with the peer; wait for it to start a new stream.
+				throw new RuntimeException(e);
+			} finally {
+				in.clear();
+			}
+		}
+	}
+
+	private static boolean startsNewStream(MessageInputStream in) {
+		return in.remaining() >= 2 && in.peek(0) == MAGIC_HIGH && in.peek(1) == MAGIC_LOW;
+	}
+
+	/**
+	 * An input stream over the bytes of the message currently being decoded.
+	 * The object input stream reads from it; once the message is consumed it reports end-of-stream,
+	 * until the next message is fed.
+	 */
+	private static class MessageInputStream extends InputStream {
+		private byte[] buf;
+		private int pos;
+		private int end;
+
+		void feed(byte[] b, int offset, int length) {
+			buf = b;
+			pos = offset;
+			end = offset + length;
+		}
+
+		void clear() {
+			buf = null;
+			pos = end = 0;
+		}
+
+		int remaining() {
+			return end - pos;
+		}
+
+		byte peek(int i) {
+			return buf[pos + i];
+		}
+
+		@Override
+		public int read() {
+			return pos < end ? buf[pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos >= end) {
+				return -1;
+			}
+			int n = Math.min(len, end - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return end - pos;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package il.ac.technion.cs.sd.lib;
+
+/**
+ * A receiver of messages pushed by a connection, as it requests them (see {@link Subscription}).
+ * <br>
+ * This has the same methods and rules as java.util.concurrent.Flow.Subscriber, which is not available on Java 8.
+ * A Flow subscriber can be adapted by forwarding each method, wrapping the subscription it is given.
+ * 
+ * @param <T> The type of the messages received.
+ */
+public interface Subscriber<T> {
+	/**
+	 * Called once, before any other method, with the subscription that controls the messages pushed to this
+	 * subscriber. No messages are pushed until some are requested.
+	 * @param subscription the subscription.
+	 */
+	public void onSubscribe(Subscription subscription);
+
+	/**
+	 * Called with each message, up to the amount requested. Never called concurrently.
+	 * @param item the message.
+	 */
+	public void onNext(T item);
+
+	/**
+	 * Called once receiving failed; no other method is called afterwards.
+	 * @param throwable the failure.
+	 */
+	public void onError(Throwable throwable);
+
+	/**
+	 * Called once the connection was killed; no other method is called afterwards.
+	 */
+	public void onComplete();
+}
@@ -0,0 +1,23 @@
+package il.ac.technion.cs.sd.lib;
+
+/**
+ * Links a connection to its {@link Subscriber}, which uses it to request messages, or to stop receiving them.
+ * <br>
+ * This has the same methods and rules as java.util.concurrent.Flow.Subscription, which is not available on Java 8.
+ */
+public interface Subscription {
+	/**
+	 * Allow n more messages to be pushed to the subscriber, on top of those requested before. Messages that are not
+	 * requested wait in the connection. May be called from {@link Subscriber#onNext(Object)}.
+	 * @param n the amount of messages, which must be positive; otherwise the subscriber gets an
+	 * IllegalArgumentException through {@link Subscriber#onError(Throwable)}.
+	 */
+	public void request(long n);
+
+	/**
+	 * Stop pushing messages to the subscriber, which may still get a message that is already being pushed. Returns once
+	 * the connection stopped receiving for the subscriber (unless called from the subscriber itself), so messages that
+	 * arrive later wait in the connection, to be received by other means or by another subscriber.
+	 */
+	public void cancel();
+}
@@ -0,0 +1,57 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message received through a {@link CodecRegistry#taggedCodec()}: the tag of its class, and the message
+ * itself, still encoded. Lets a receiver route a message by its kind before decoding it.
+ */
+public class TaggedMessage {
+
+	final private int tag;
+	final private Class<?> type;
+	final private Codec<?> codec;
+	// The encoded message. Package-private so the registry can forward it as is.
+	final ByteBuffer body;
+
+	TaggedMessage(int tag, Class<?> type, Codec<?> codec, ByteBuffer body) {
+		this.tag = tag;
+		this.type = type;
+		this.codec = codec;
+		this.body = body;
+	}
+
+	/**
+	 * @return the tag the message was sent with.
+	 */
+	public int getTag() {
+		return tag;
+	}
+
+	/**
+	 * @return the class registered for the message's tag.
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * Decode the message. Each call decodes it again.
+	 * @return the decoded message.
+	 */
+	public Object decode() {
+		return codec.decode(body.duplicate());
+	}
+
+	/**
+	 * Decode the message, as an instance of a given class.
+	 * @param expected the class the message is expected to be of.
+	 * @return the decoded message.
+	 */
+	public <T> T decode(Class<T> expected) {
+		if (!expected.isAssignableFrom(type)) {
+			throw new IllegalArgumentException("Message of " + type + " is not a " + expected);
+		}
+		return expected.cast(decode());
+	}
+}
@@ -0,0 +1,191 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Static helpers for writing and reading compact binary fields to and from a ByteBuffer.
+ * Used by hand-written codecs that want to avoid the overhead of Java serialization.
+ * <br>
+ * Integers are written as unsigned LEB128 varints (7 bits per byte), so small values take a single byte.
+ * Strings are written as a varint of (length + 1) followed by the UTF-8 bytes, where a length of 0 stands for null.
+ */
+public final class WireFormat {
+
+	private WireFormat() {}
+
+	/**
+	 * Get the amount of bytes needed to write an unsigned varint.
+	 * @param value the value, treated as unsigned.
+	 * @return the encoded size in bytes (1 to 5).
+	 */
+	public static int sizeOfVarInt(int value) {
+		int $ = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			++$;
+		}
+		return $;
+	}
+
+	/**
+	 * Write an unsigned varint to the buffer.
+	 * @param buffer the buffer to write to.
+	 * @param value the value, treated as unsigned.
+	 */
+	public static void writeVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Read an unsigned varint from the buffer.
+	 * @param buffer the buffer to read from.
+	 * @return the decoded value.
+	 */
+	public static int readVarInt(ByteBuffer buffer) {
+		int $ = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			$ |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return $;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Map a signed integer to an unsigned one, so values close to zero (including negatives) encode to a short varint.
+	 * @param value a signed value.
+	 * @return the zigzag-encoded value.
+	 */
+	public static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Reverse {@link WireFormat#zigZag(int)}.
+	 * @param value a zigzag-encoded value.
+	 * @return the original signed value.
+	 */
+	public static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Get the amount of UTF-8 bytes of a string, without encoding it.
+	 * @param s the string to measure.
+	 * @return the size of the string encoded as UTF-8.
+	 */
+	public static int utf8Length(String s) {
+		int $ = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				$ += 1;
+			} else if (c < 0x800) {
+				$ += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				$ += 4;
+				++i;
+			} else if (Character.isSurrogate(c)) {
+				$ += 1; // Unpaired surrogate, written as '?' like String.getBytes() does.
+			} else {
+				$ += 3;
+			}
+		}
+		return $;
+	}
+
+	/**
+	 * Get the amount of bytes needed to write a (nullable) string.
+	 * @param s the string, may be null.
+	 * @return the encoded size in bytes.
+	 */
+	public static int sizeOfString(String s) {
+		if (s == null) {
+			return 1;
+		}
+		int length = utf8Length(s);
+		return sizeOfVarInt(length + 1) + length;
+	}
+
+	/**
+	 * Write a (nullable) string to the buffer, as a length prefix followed by its UTF-8 bytes.
+	 * The string is encoded directly into the buffer, without an intermediate byte array.
+	 * @param buffer the buffer to write to.
+	 * @param s the string to write, may be null.
+	 */
+	public static void writeString(ByteBuffer buffer, String s) {
+		if (s == null) {
+			writeVarInt(buffer, 0);
+			return;
+		}
+		writeVarInt(buffer, utf8Length(s) + 1);
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte)c);
+			} else if (c < 0x800) {
+				buffer.put((byte)(0xC0 | (c >> 6)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte)(0xF0 | (cp >> 18)));
+				buffer.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+				buffer.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				buffer.put((byte)'?');
+			} else {
+				buffer.put((byte)(0xE0 | (c >> 12)));
+				buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Read a (nullable) string written by {@link WireFormat#writeString(ByteBuffer, String)}.
+	 * @param buffer the buffer to read from.
+	 * @return the decoded string, or null.
+	 */
+	public static String readString(ByteBuffer buffer) {
+		int length = readVarInt(buffer) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			throw new IllegalArgumentException("String length exceeds the buffer");
+		}
+		String $;
+		if (buffer.hasArray()) {
+			$ = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			$ = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return $;
+	}
+
+	/**
+	 * Skip over a (nullable) string written by {@link WireFormat#writeString(ByteBuffer, String)}, without decoding it.
+	 * @param buffer the buffer to read from.
+	 */
+	public static void skipString(ByteBuffer buffer) {
+		int length = readVarInt(buffer) - 1;
+		if (length < 0) {
+			return;
+		}
+		if (length > buffer.remaining()) {
+			throw new IllegalArgumentException("String length exceeds the buffer");
+		}
+		buffer.position(buffer.position() + length);
+	}
+}
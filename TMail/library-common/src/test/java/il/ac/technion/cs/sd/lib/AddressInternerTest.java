@@ -0,0 +1,57 @@
+package il.ac.technion.cs.sd.lib;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class AddressInternerTest {
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void SameBytesGiveTheSameInstance() {
+		AddressInterner interner = new AddressInterner();
+		String first = interner.intern(utf8("Moshe"), 0, 5);
+		String second = interner.intern(utf8("Moshe"), 0, 5);
+
+		assertEquals("Moshe", first);
+		assertSame(first, second);
+		assertEquals(1, interner.size());
+	}
+
+	@Test
+	public void AddressIsReadFromARegion() {
+		AddressInterner interner = new AddressInterner();
+		byte[] b = utf8("xxMosheyy");
+
+		assertSame(interner.intern(utf8("Moshe"), 0, 5), interner.intern(b, 2, 5));
+		assertEquals("Sarah", interner.intern(utf8("Sarah"), 0, 5));
+		assertEquals(2, interner.size());
+	}
+
+	@Test
+	public void InternedBytesAreNotAffectedByChangesToTheMessage() {
+		AddressInterner interner = new AddressInterner();
+		byte[] b = utf8("Moshe");
+		String first = interner.intern(b, 0, 5);
+		b[0] = 'N';
+
+		assertEquals("Noshe", interner.intern(b, 0, 5));
+		assertSame(first, interner.intern(utf8("Moshe"), 0, 5));
+	}
+
+	@Test
+	public void AddressesBeyondCapacityAreNotInterned() {
+		AddressInterner interner = new AddressInterner(1);
+		interner.intern(utf8("Moshe"), 0, 5);
+		String sarah = interner.intern(utf8("Sarah"), 0, 5);
+
+		assertEquals("Sarah", sarah);
+		assertNotSame(sarah, interner.intern(utf8("Sarah"), 0, 5));
+		assertEquals(1, interner.size());
+	}
+}
@@ -0,0 +1,74 @@
+package il.ac.technion.cs.sd.lib;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BatchCodecTest {
+
+	@Test
+	public void CheckBatchEncodedAndDecodedInOrder() {
+		BatchCodec<AuxMsg> codec = new BatchCodec<AuxMsg>(new SerializeCodec<AuxMsg>());
+		List<AuxMsg> batch = Arrays.asList(AuxMsg.msg1(), AuxMsg.msg2(), AuxMsg.msg1());
+
+		assertEquals(batch, codec.decode(codec.encode(batch)));
+	}
+
+	@Test
+	public void CheckEmptyBatch() {
+		BatchCodec<AuxMsg> codec = new BatchCodec<AuxMsg>(new SerializeCodec<AuxMsg>());
+		byte[] b = codec.encode(new ArrayList<AuxMsg>());
+
+		assertEquals(1, b.length);
+		assertTrue(codec.decode(b).isEmpty());
+	}
+
+	@Test
+	public void SizedAndUnsizedCodecsProduceTheSameBatch() {
+		Codec<String> unsized = new SerializeCodec<String>();
+		Codec<String> sized = new SerializeCodec<String>() {
+			@Override
+			public int sizeHint(String obj) {
+				return encode(obj).length;
+			}
+		};
+		List<String> batch = Arrays.asList("Hello", "there!");
+		byte[] b = new BatchCodec<String>(sized).encode(batch);
+
+		assertArrayEquals(new BatchCodec<String>(unsized).encode(batch), b);
+		assertEquals(new BatchCodec<String>(sized).sizeHint(batch), b.length);
+		assertEquals(-1, new BatchCodec<String>(unsized).sizeHint(batch));
+	}
+
+	@Test
+	public void StatefulCodecCanBeBatched() {
+		BatchCodec<AuxMsg> sender = new BatchCodec<AuxMsg>(new StatefulSerializeCodec<AuxMsg>());
+		BatchCodec<AuxMsg> receiver = new BatchCodec<AuxMsg>(new StatefulSerializeCodec<AuxMsg>());
+		List<AuxMsg> batch = Arrays.asList(AuxMsg.msg1(), AuxMsg.msg2());
+
+		assertEquals(batch, receiver.decode(sender.encode(batch)));
+		assertEquals(batch, receiver.decode(sender.encode(batch)));
+	}
+
+	@Test
+	public void DecodeFromTheMiddleOfABuffer() {
+		BatchCodec<String> codec = new BatchCodec<String>(new SerializeCodec<String>());
+		byte[] b = codec.encode(Arrays.asList("Hello", "there!"));
+		byte[] padded = new byte[b.length + 10];
+		System.arraycopy(b, 0, padded, 5, b.length);
+
+		assertEquals(Arrays.asList("Hello", "there!"), codec.decode(ByteBuffer.wrap(padded, 5, b.length)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TruncatedBatchIsRejected() {
+		BatchCodec<String> codec = new BatchCodec<String>(new SerializeCodec<String>());
+		byte[] b = codec.encode(Arrays.asList("Hello", "there!"));
+		codec.decode(ByteBuffer.wrap(b, 0, b.length - 3));
+	}
+}
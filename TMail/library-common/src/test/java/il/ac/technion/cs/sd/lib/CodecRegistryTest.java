@@ -0,0 +1,161 @@
+package il.ac.technion.cs.sd.lib;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CodecRegistryTest {
+
+	/**
+	 * A codec of integers with a known size.
+	 */
+	private static class IntCodec implements Codec<Integer> {
+		@Override
+		public byte[] encode(Integer obj) {
+			return ByteBuffer.allocate(Integer.BYTES).putInt(obj).array();
+		}
+
+		@Override
+		public Integer decode(byte[] b) {
+			return decode(ByteBuffer.wrap(b));
+		}
+
+		@Override
+		public int sizeHint(Integer obj) {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public void encodeTo(Integer obj, ByteBuffer buffer) {
+			buffer.putInt(obj);
+		}
+
+		@Override
+		public Integer decode(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+	}
+
+	private static class NamedList extends ArrayList<String> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private CodecRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new CodecRegistry()
+				.register(1, Integer.class, new IntCodec())
+				.register(200, String.class, new SerializeCodec<String>())
+				.register(3, AuxMsg.class, new SerializeCodec<AuxMsg>());
+	}
+
+	@Test
+	public void MessagesOfDifferentClassesAreDecodedByTheirTag() {
+		Codec<Object> codec = registry.codec();
+		assertEquals(42, codec.decode(codec.encode(42)));
+		assertEquals("Hello there!", codec.decode(codec.encode("Hello there!")));
+		assertEquals(AuxMsg.msg2(), codec.decode(codec.encode(AuxMsg.msg2())));
+	}
+
+	@Test
+	public void TagIsAVarIntBeforeTheMessage() {
+		byte[] b = registry.codec().encode(42);
+		assertEquals(1 + Integer.BYTES, b.length);
+		assertEquals(1, b[0]);
+		assertEquals(1 + Integer.BYTES, registry.codec().sizeHint(42));
+
+		assertEquals(2 + new SerializeCodec<String>().encode("x").length, registry.codec().encode("x").length);
+		assertEquals(-1, registry.codec().sizeHint("x"));
+	}
+
+	@Test
+	public void PeekTagDoesNotMoveTheBuffer() {
+		ByteBuffer buffer = ByteBuffer.wrap(registry.codec().encode("Hello there!"));
+		assertEquals(200, CodecRegistry.peekTag(buffer));
+		assertEquals(0, buffer.position());
+		assertEquals(String.class, registry.typeOf(CodecRegistry.peekTag(buffer)));
+	}
+
+	@Test
+	public void EncodeToStreamMatchesEncode() throws IOException {
+		for (Object o : new Object[] {42, "Hello there!"}) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			registry.codec().encodeTo(o, out);
+			assertArrayEquals(registry.codec().encode(o), out.toByteArray());
+		}
+	}
+
+	@Test
+	public void DecodeFromTheMiddleOfABuffer() {
+		byte[] first = registry.codec().encode(42);
+		byte[] second = registry.codec().encode(43);
+		ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length).put(first).put(second);
+		buffer.flip();
+
+		assertEquals(42, registry.codec().decode(buffer));
+		assertEquals(43, registry.codec().decode(buffer));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void UnregisteredSubclassUsesItsSuperclassCodec() {
+		CodecRegistry r = new CodecRegistry().register(5, ArrayList.class, new SerializeCodec<ArrayList>());
+		ArrayList<String> list = new NamedList();
+		list.add("a");
+		assertEquals(5, r.codec().encode(list)[0]);
+		assertEquals(5, r.tagOf(list.getClass()));
+	}
+
+	@Test
+	public void TaggedMessagesAreDecodedOnDemand() {
+		TaggedMessage tagged = registry.taggedCodec().decode(registry.codec().encode("Hello there!"));
+		assertEquals(200, tagged.getTag());
+		assertEquals(String.class, tagged.getType());
+		assertEquals("Hello there!", tagged.decode(String.class));
+		assertEquals("Hello there!", tagged.decode());
+	}
+
+	@Test
+	public void TaggedMessagesAreForwardedAsIs() {
+		byte[] b = registry.codec().encode(AuxMsg.msg2());
+		TaggedMessage tagged = registry.taggedCodec().decode(b);
+		assertArrayEquals(b, registry.taggedCodec().encode(tagged));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TaggedMessageOfAnotherClassIsRejected() {
+		registry.taggedCodec().decode(registry.codec().encode(42)).decode(String.class);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void UnknownTagIsRejected() {
+		registry.codec().decode(new byte[] {2, 0, 0, 0, 0});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void UnregisteredClassIsRejected() {
+		registry.codec().encode(4.2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TagCannotBeRegisteredTwice() {
+		registry.register(1, Double.class, new SerializeCodec<Double>());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ClassCannotBeRegisteredTwice() {
+		registry.register(7, Integer.class, new SerializeCodec<Integer>());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TagMustBeInRange() {
+		registry.register(CodecRegistry.MAX_TAG + 1, Double.class, new SerializeCodec<Double>());
+	}
+}
@@ -0,0 +1,196 @@
+package il.ac.technion.cs.sd.lib;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class CompressingCodecTest {
+
+	private static final SerializeCodec<AuxMsg> inner = new SerializeCodec<AuxMsg>();
+
+	private static AuxMsg repetitiveMsg(int length) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			sb.append("Hello World! ");
+		}
+		return new AuxMsg(sb.toString(), 5, 6.7, true);
+	}
+
+	private static AuxMsg randomMsg(int length) {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			sb.append((char)(' ' + random.nextInt(95)));
+		}
+		return new AuxMsg(sb.toString(), 5, 6.7, true);
+	}
+
+	@Test
+	public void SmallMessageIsNotCompressed() {
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(inner);
+		byte[] raw = inner.encode(AuxMsg.msg1());
+		byte[] encoded = codec.encode(AuxMsg.msg1());
+
+		assertEquals(raw.length + 1, encoded.length);
+		assertEquals(AuxMsg.msg1(), codec.decode(encoded));
+	}
+
+	@Test
+	public void LargeMessageIsCompressed() {
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(inner);
+		AuxMsg msg = repetitiveMsg(10000);
+		byte[] encoded = codec.encode(msg);
+
+		assertTrue(encoded.length < inner.encode(msg).length / 10);
+		assertEquals(msg, codec.decode(encoded));
+	}
+
+	@Test
+	public void IncompressibleMessageIsSentRaw() {
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(inner, 0, 0);
+		AuxMsg msg = randomMsg(5000);
+		byte[] encoded = codec.encode(msg);
+
+		assertEquals(inner.encode(msg).length + 1, encoded.length);
+		assertEquals(msg, codec.decode(encoded));
+	}
+
+	@Test
+	public void ThresholdIsConfigurable() {
+		AuxMsg msg = repetitiveMsg(500);
+		int rawLength = inner.encode(msg).length;
+
+		assertEquals(rawLength + 1, new CompressingCodec<AuxMsg>(inner, rawLength + 1).encode(msg).length);
+		assertTrue(new CompressingCodec<AuxMsg>(inner, rawLength).encode(msg).length < rawLength);
+	}
+
+	@Test
+	public void CheckDecodedFromBufferRegion() {
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(inner);
+		for (AuxMsg msg : new AuxMsg[] { AuxMsg.msg1(), repetitiveMsg(10000) }) {
+			byte[] encoded = codec.encode(msg);
+			ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 10);
+			buffer.position(7);
+			buffer.put(encoded);
+			buffer.flip().position(7);
+
+			assertEquals(msg, codec.decode(buffer.slice()));
+		}
+	}
+
+	@Test
+	public void SizedInnerCodecIsWrittenInPlace() {
+		Codec<AuxMsg> sized = new Codec<AuxMsg>() {
+			@Override
+			public byte[] encode(AuxMsg obj) {
+				return inner.encode(obj);
+			}
+
+			@Override
+			public AuxMsg decode(byte[] b) {
+				return inner.decode(b);
+			}
+
+			@Override
+			public int sizeHint(AuxMsg obj) {
+				return inner.encode(obj).length;
+			}
+		};
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(sized);
+
+		assertEquals(inner.encode(AuxMsg.msg1()).length + 1, codec.sizeHint(AuxMsg.msg1()));
+		assertEquals(-1, codec.sizeHint(repetitiveMsg(10000)));
+		assertEquals(AuxMsg.msg1(), codec.decode(codec.encode(AuxMsg.msg1())));
+	}
+
+	@Test
+	public void StreamedEncodingIsDeflatedWhileWritten() throws IOException {
+		Codec<AuxMsg> sized = new SerializeCodec<AuxMsg>() {
+			@Override
+			public int sizeHint(AuxMsg obj) {
+				return encode(obj).length;
+			}
+		};
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(sized);
+		for (AuxMsg msg : new AuxMsg[] { AuxMsg.msg1(), repetitiveMsg(10000) }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			codec.encodeTo(msg, out);
+			assertTrue(out.size() <= inner.encode(msg).length + 1);
+			assertEquals(msg, codec.decode(out.toByteArray()));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TruncatedCompressedMessageIsRejected() {
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(inner);
+		byte[] encoded = codec.encode(repetitiveMsg(10000));
+		codec.decode(ByteBuffer.wrap(encoded, 0, encoded.length - 5));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void HugeDeclaredSizeIsRejectedBeforeAllocating() {
+		ByteBuffer message = ByteBuffer.allocate(8);
+		message.put((byte)1);
+		WireFormat.writeVarInt(message, Integer.MAX_VALUE);
+		message.flip();
+		new CompressingCodec<AuxMsg>(inner).decode(message);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void DeclaredSizeBeyondDeflateRatioIsRejected() {
+		// Within the max size, but more than a single compressed byte could inflate to.
+		ByteBuffer message = ByteBuffer.allocate(8);
+		message.put((byte)1);
+		WireFormat.writeVarInt(message, 1024 * 1024);
+		message.put((byte)0);
+		message.flip();
+		new CompressingCodec<AuxMsg>(inner).decode(message);
+	}
+
+	@Test
+	public void MaxInflatedSizeIsConfigurable() {
+		byte[] encoded = new CompressingCodec<AuxMsg>(inner).encode(repetitiveMsg(10000));
+		assertEquals(repetitiveMsg(10000), new CompressingCodec<AuxMsg>(inner, 1024, 1, 100000).decode(encoded));
+		try {
+			new CompressingCodec<AuxMsg>(inner, 1024, 1, 1000).decode(encoded);
+			fail("A message larger than the max inflated size should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void UnknownFlagIsRejected() {
+		byte[] encoded = new CompressingCodec<AuxMsg>(inner).encode(AuxMsg.msg1());
+		encoded[0] = 7;
+		new CompressingCodec<AuxMsg>(inner).decode(encoded);
+	}
+
+	@Test
+	public void CodecCanBeSharedBetweenThreads() throws Exception {
+		CompressingCodec<AuxMsg> codec = new CompressingCodec<AuxMsg>(inner);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 16; ++i) {
+				AuxMsg msg = repetitiveMsg(1000 * (i + 1));
+				results.add(pool.submit(() -> msg.equals(codec.decode(codec.encode(msg)))));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
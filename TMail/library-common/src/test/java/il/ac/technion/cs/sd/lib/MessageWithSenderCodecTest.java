@@ -2,6 +2,8 @@ package il.ac.technion.cs.sd.lib;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 public class MessageWithSenderCodecTest {
@@ -48,5 +50,96 @@ public class MessageWithSenderCodecTest {
 		assertEquals(ms.sender, decoded.sender);
 	}
 
-}
+	/**
+	 * A codec that implements the ByteBuffer methods, and fails if the byte[] methods are used.
+	 */
+	private static class SizedIntCodec implements Codec<Integer> {
+		@Override
+		public byte[] encode(Integer obj) {
+			throw new AssertionError("encode(T) should not be used when the size is known");
+		}
+
+		@Override
+		public Integer decode(byte[] b) {
+			throw new AssertionError("decode(byte[]) should not be used when decoding from a buffer");
+		}
+
+		@Override
+		public int sizeHint(Integer obj) {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public void encodeTo(Integer obj, ByteBuffer buffer) {
+			buffer.putInt(obj);
+		}
+
+		@Override
+		public Integer decode(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+	}
+
+	@Test
+	public void SizedCodecIsFramedInPlace() {
+		MessageWithSenderCodec<Integer> msc = new MessageWithSenderCodec<Integer>(new SizedIntCodec());
+		MessageWithSender<Integer> ms = new MessageWithSender<Integer>(42, "MosheTheSender");
+
+		byte[] b = msc.encode(ms);
+		assertEquals(msc.sizeHint(ms), b.length);
+		MessageWithSender<Integer> decoded = msc.decode(b);
+		assertEquals(ms.content, decoded.content);
+		assertEquals(ms.sender, decoded.sender);
+	}
+
+	@Test
+	public void SizedAndUnsizedCodecsProduceTheSameFrame() {
+		Codec<String> unsized = new SerializeCodec<String>();
+		Codec<String> sized = new SerializeCodec<String>() {
+			@Override
+			public int sizeHint(String obj) {
+				return encode(obj).length;
+			}
+		};
+		MessageWithSender<String> ms = new MessageWithSender<String>("Hello there!", "SarahTheSender");
+		assertArrayEquals(new MessageWithSenderCodec<String>(unsized).encode(ms),
+				new MessageWithSenderCodec<String>(sized).encode(ms));
+	}
+
+	@Test
+	public void DecodeFromTheMiddleOfABuffer() {
+		MessageWithSenderCodec<String> msc = new MessageWithSenderCodec<String>(new SerializeCodec<String>());
+		byte[] frame = msc.encode(new MessageWithSender<String>("Hello there!", "SarahTheSender"));
+
+		byte[] padded = new byte[frame.length + 10];
+		System.arraycopy(frame, 0, padded, 5, frame.length);
+		ByteBuffer buff = ByteBuffer.wrap(padded, 5, frame.length);
+
+		MessageWithSender<String> decoded = msc.decode(buff);
+		assertEquals("Hello there!", decoded.content);
+		assertEquals("SarahTheSender", decoded.sender);
+	}
+
+	@Test
+	public void SenderHeaderIsAVarIntLengthAndUtf8() {
+		MessageWithSenderCodec<Integer> msc = new MessageWithSenderCodec<Integer>(new SizedIntCodec());
+		MessageWithSender<Integer> ms = new MessageWithSender<Integer>(42, "Mosh\u00e9");
 
+		byte[] b = msc.encode(ms);
+		assertEquals(1 + 6 + Integer.BYTES, b.length);
+		assertEquals(6, b[0]);
+		assertEquals("Mosh\u00e9", msc.decode(b).sender);
+	}
+
+	@Test
+	public void DecodedSendersAreInterned() {
+		MessageWithSenderCodec<String> msc = new MessageWithSenderCodec<String>(new SerializeCodec<String>());
+		MessageWithSender<String> first = msc.decode(msc.encode(new MessageWithSender<String>("a", "SarahTheSender")));
+		MessageWithSender<String> second = msc.decode(msc.encode(new MessageWithSender<String>("b", "SarahTheSender")));
+		MessageWithSender<String> other = msc.decode(msc.encode(new MessageWithSender<String>("c", "MosheTheSender")));
+
+		assertSame(first.sender, second.sender);
+		assertEquals("MosheTheSender", other.sender);
+	}
+
+}
@@ -2,6 +2,8 @@ package il.ac.technion.cs.sd.lib;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 public class SerializeCodecTest {
@@ -31,5 +33,17 @@ public class SerializeCodecTest {
 		AuxMsg decodedMsg = codec.decode(b);
 		assertEquals(msg, decodedMsg);
 	}
+	
+	@Test
+	public void CheckDecodedFromBufferRegion() {
+		Codec<String> codec = new SerializeCodec<String>();
+		byte[] b = codec.encode("Hello World!");
+		byte[] padded = new byte[b.length + 3];
+		System.arraycopy(b, 0, padded, 3, b.length);
+		
+		ByteBuffer buffer = ByteBuffer.wrap(padded, 3, b.length);
+		assertEquals("Hello World!", codec.decode(buffer));
+		assertFalse(buffer.hasRemaining());
+	}
 
 }
@@ -0,0 +1,103 @@
+package il.ac.technion.cs.sd.lib;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StatefulSerializeCodecTest {
+
+	@Test
+	public void CheckMessagesEncodedAndDecodedInOrder() {
+		StatefulSerializeCodec<AuxMsg> sender = new StatefulSerializeCodec<AuxMsg>();
+		StatefulSerializeCodec<AuxMsg> receiver = new StatefulSerializeCodec<AuxMsg>();
+
+		assertEquals(AuxMsg.msg1(), receiver.decode(sender.encode(AuxMsg.msg1())));
+		assertEquals(AuxMsg.msg2(), receiver.decode(sender.encode(AuxMsg.msg2())));
+		assertEquals(AuxMsg.msg1(), receiver.decode(sender.encode(AuxMsg.msg1())));
+	}
+
+	@Test
+	public void ClassDescriptorIsOnlySentOnce() {
+		StatefulSerializeCodec<AuxMsg> codec = new StatefulSerializeCodec<AuxMsg>();
+		int first = codec.encode(AuxMsg.msg1()).length;
+		int second = codec.encode(AuxMsg.msg2()).length;
+
+		assertEquals(new SerializeCodec<AuxMsg>().encode(AuxMsg.msg1()).length, first);
+		assertTrue("later messages should not repeat the stream header and class descriptor",
+				second * 2 < first);
+	}
+
+	@Test
+	public void NewStreamStartedAfterResetInterval() {
+		StatefulSerializeCodec<AuxMsg> sender = new StatefulSerializeCodec<AuxMsg>(2);
+		StatefulSerializeCodec<AuxMsg> receiver = new StatefulSerializeCodec<AuxMsg>(2);
+
+		byte[] first = sender.encode(AuxMsg.msg1());
+		byte[] second = sender.encode(AuxMsg.msg1());
+		byte[] third = sender.encode(AuxMsg.msg1());
+		assertTrue(second.length < first.length);
+		assertEquals(first.length, third.length);
+
+		assertEquals(AuxMsg.msg1(), receiver.decode(first));
+		assertEquals(AuxMsg.msg1(), receiver.decode(second));
+		assertEquals(AuxMsg.msg1(), receiver.decode(third));
+	}
+
+	@Test
+	public void NewStreamStartedAfterIdleTime() throws InterruptedException {
+		StatefulSerializeCodec<AuxMsg> sender = new StatefulSerializeCodec<AuxMsg>(100, 10, TimeUnit.MILLISECONDS);
+		byte[] first = sender.encode(AuxMsg.msg1());
+		Thread.sleep(50);
+		byte[] afterIdle = sender.encode(AuxMsg.msg1());
+		assertEquals(first.length, afterIdle.length);
+
+		// A receiver that dropped its state in the meantime picks up the new stream.
+		assertEquals(AuxMsg.msg1(), new StatefulSerializeCodec<AuxMsg>().decode(afterIdle));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void IdleResetTimeMustBePositive() {
+		new StatefulSerializeCodec<AuxMsg>(2, 0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void ReceiverThatMissedTheStreamStartRecoversOnTheNextStream() {
+		StatefulSerializeCodec<AuxMsg> sender = new StatefulSerializeCodec<AuxMsg>(2);
+		sender.encode(AuxMsg.msg1());
+		byte[] midStream = sender.encode(AuxMsg.msg2());
+
+		StatefulSerializeCodec<AuxMsg> lateReceiver = new StatefulSerializeCodec<AuxMsg>();
+		try {
+			lateReceiver.decode(midStream);
+			fail("A message in the middle of a stream can't be decoded on its own");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(AuxMsg.msg1(), lateReceiver.decode(sender.encode(AuxMsg.msg1())));
+	}
+
+	@Test
+	public void ModifiedMessageResentWithItsNewState() {
+		StatefulSerializeCodec<AuxMsg> sender = new StatefulSerializeCodec<AuxMsg>();
+		StatefulSerializeCodec<AuxMsg> receiver = new StatefulSerializeCodec<AuxMsg>();
+		AuxMsg msg = AuxMsg.msg1();
+		receiver.decode(sender.encode(msg));
+
+		msg.num = 100;
+		assertEquals(100, receiver.decode(sender.encode(msg)).num);
+	}
+
+	@Test
+	public void CheckDecodedFromBufferRegion() {
+		StatefulSerializeCodec<AuxMsg> sender = new StatefulSerializeCodec<AuxMsg>();
+		StatefulSerializeCodec<AuxMsg> receiver = new StatefulSerializeCodec<AuxMsg>();
+		byte[] b = sender.encode(AuxMsg.msg2());
+		byte[] padded = new byte[b.length + 4];
+		System.arraycopy(b, 0, padded, 4, b.length);
+
+		assertEquals(AuxMsg.msg2(), receiver.decode(ByteBuffer.wrap(padded, 4, b.length)));
+	}
+}
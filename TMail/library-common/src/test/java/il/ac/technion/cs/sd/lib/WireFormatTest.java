@@ -0,0 +1,87 @@
+package il.ac.technion.cs.sd.lib;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class WireFormatTest {
+
+	@Test
+	public void varIntsRoundTrip() {
+		int[] values = { 0, 1, 127, 128, 300, 1 << 21, Integer.MAX_VALUE, -1 };
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		for (int v : values) {
+			int before = buffer.position();
+			WireFormat.writeVarInt(buffer, v);
+			assertEquals(WireFormat.sizeOfVarInt(v), buffer.position() - before);
+		}
+		buffer.flip();
+		for (int v : values) {
+			assertEquals(v, WireFormat.readVarInt(buffer));
+		}
+	}
+
+	@Test
+	public void smallVarIntsTakeOneByte() {
+		assertEquals(1, WireFormat.sizeOfVarInt(0));
+		assertEquals(1, WireFormat.sizeOfVarInt(127));
+		assertEquals(2, WireFormat.sizeOfVarInt(128));
+		assertEquals(1, WireFormat.sizeOfVarInt(WireFormat.zigZag(-1)));
+	}
+
+	@Test
+	public void zigZagRoundTrip() {
+		for (int v : new int[] { 0, -1, 1, Integer.MIN_VALUE, Integer.MAX_VALUE }) {
+			assertEquals(v, WireFormat.unZigZag(WireFormat.zigZag(v)));
+		}
+	}
+
+	@Test
+	public void stringsMatchJavaUtf8Encoding() {
+		String[] strings = { "", "Hello", "caf\u00e9", "\u05e9\u05dc\u05d5\u05dd", "\ud83d\udce7 mail", "bad \ud800 surrogate" };
+		for (String s : strings) {
+			byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+			assertEquals(expected.length, WireFormat.utf8Length(s));
+
+			ByteBuffer buffer = ByteBuffer.allocate(WireFormat.sizeOfString(s));
+			WireFormat.writeString(buffer, s);
+			assertFalse(buffer.hasRemaining());
+			buffer.flip();
+			assertEquals(expected.length + 1, WireFormat.readVarInt(buffer));
+			byte[] actual = new byte[buffer.remaining()];
+			buffer.get(actual);
+			assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void nullStringRoundTrip() {
+		ByteBuffer buffer = ByteBuffer.allocate(WireFormat.sizeOfString(null));
+		WireFormat.writeString(buffer, null);
+		buffer.flip();
+		assertNull(WireFormat.readString(buffer));
+	}
+
+	@Test
+	public void stringReadFromDirectBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+		WireFormat.writeString(buffer, "direct");
+		buffer.flip();
+		assertEquals("direct", WireFormat.readString(buffer));
+	}
+
+	@Test
+	public void skippedStringsLeaveTheBufferAtTheNextField() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		WireFormat.writeString(buffer, "skip \u00e9");
+		WireFormat.writeString(buffer, null);
+		WireFormat.writeString(buffer, "read");
+		buffer.flip();
+		WireFormat.skipString(buffer);
+		WireFormat.skipString(buffer);
+		assertEquals("read", WireFormat.readString(buffer));
+	}
+}
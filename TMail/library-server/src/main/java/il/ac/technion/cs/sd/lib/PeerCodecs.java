@@ -0,0 +1,76 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A separate codec for each peer, created on the first message sent to or received from that peer.
+ * <br>
+ * The codec of a peer that neither sent nor was sent anything for a while may be dropped, so the codecs of clients
+ * that went away don't pile up; the peer gets a new codec on its next message. This only fits codecs that recover
+ * from the other side losing its state, the way {@link StatefulSerializeCodec} starts a new stream once it was idle.
+ * <br>
+ * This class is thread-safe.
+ * @param <Message> The type of the messages.
+ */
+class PeerCodecs<Message> implements Function<String, Codec<Message>> {
+
+	final private Supplier<Codec<Message>> codecFactory;
+	final private long maxIdleNanos; // 0 if codecs are never dropped
+	final private ConcurrentMap<String, Peer<Message>> peers = new ConcurrentHashMap<String, Peer<Message>>();
+	private volatile long nextSweep;
+
+	/**
+	 * @param codecFactory creates a new codec for a peer.
+	 * @param maxIdleNanos how long the codec of a peer is kept after its last use; 0 to keep codecs for good.
+	 */
+	PeerCodecs(Supplier<Codec<Message>> codecFactory, long maxIdleNanos) {
+		if (codecFactory == null || maxIdleNanos < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.codecFactory = codecFactory;
+		this.maxIdleNanos = maxIdleNanos;
+		this.nextSweep = System.nanoTime() + maxIdleNanos;
+	}
+
+	/**
+	 * Get the codec of a peer, creating it if it has none, and drop the codecs of peers that were idle for too long.
+	 * @param peer the address of the peer.
+	 * @return the codec of the peer.
+	 */
+	@Override
+	public Codec<Message> apply(String peer) {
+		long now = System.nanoTime();
+		// Touched and dropped atomically, so a peer never has two codecs at once.
+		Peer<Message> $ = peers.compute(peer, (address, existing) -> {
+			Peer<Message> touched = null != existing ? existing : new Peer<Message>(codecFactory.get());
+			touched.lastUsed = now;
+			return touched;
+		});
+		if (maxIdleNanos > 0 && now - nextSweep >= 0) {
+			nextSweep = now + maxIdleNanos;
+			for (String address : peers.keySet()) {
+				peers.computeIfPresent(address, (a, idle) -> now - idle.lastUsed > maxIdleNanos ? null : idle);
+			}
+		}
+		return $.codec;
+	}
+
+	/**
+	 * @return the amount of peers that have a codec.
+	 */
+	int size() {
+		return peers.size();
+	}
+
+	private static class Peer<Message> {
+		final Codec<Message> codec;
+		long lastUsed; // written and read only inside the map's compute calls
+
+		Peer(Codec<Message> codec) {
+			this.codec = codec;
+		}
+	}
+}
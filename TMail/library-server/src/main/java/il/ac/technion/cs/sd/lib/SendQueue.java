@@ -0,0 +1,160 @@
+package il.ac.technion.cs.sd.lib;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends messages on a thread of its own, so the threads that produce them don't wait for them to be sent.
+ * <br>
+ * Messages wait in a bounded queue; a thread that queues a message while the queue is full waits for room. Whenever
+ * the sending thread is free, it takes all the messages that piled up, and sends the messages of each client together,
+ * as a single batch, in the order they were queued.
+ * @param <Message> The type of the messages sent.
+ */
+class SendQueue<Message> {
+
+	final private BlockingQueue<Outgoing<Message>> queue;
+	final private BiConsumer<String, List<Message>> sendBatch;
+	final private Thread thread;
+
+	// Queued last, once closed.
+	final private Outgoing<Message> end = new Outgoing<Message>(null, null);
+
+	// Guards closed, so nothing is queued after the end.
+	final private Object lock = new Object();
+	private volatile boolean closed;
+
+	/**
+	 * Create a send queue, and start its thread.
+	 * @param name a name for the sending thread.
+	 * @param capacity the most messages that can wait to be sent.
+	 * @param sendBatch sends messages to a client, as a single batch.
+	 */
+	SendQueue(String name, int capacity, BiConsumer<String, List<Message>> sendBatch) {
+		if (capacity <= 0 || sendBatch == null) {
+			throw new IllegalArgumentException();
+		}
+		this.queue = new ArrayBlockingQueue<Outgoing<Message>>(capacity + 1);
+		this.sendBatch = sendBatch;
+		this.thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue a message to be sent, after all the messages previously queued to the same client. Waits while the queue
+	 * is full.
+	 * @param clientAddress the address of the client to send the message to.
+	 * @param message the message to send.
+	 * @return a future completed once the message was sent, or completed exceptionally if sending it failed, this
+	 * queue was closed, or the calling thread was interrupted while waiting for room.
+	 */
+	CompletableFuture<Void> submit(String clientAddress, Message message) {
+		Outgoing<Message> outgoing = new Outgoing<Message>(clientAddress, message);
+		synchronized (lock) {
+			if (closed) {
+				outgoing.sent.completeExceptionally(new IllegalStateException("send queue is closed"));
+				return outgoing.sent;
+			}
+			try {
+				queue.put(outgoing);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				outgoing.sent.completeExceptionally(e);
+			}
+		}
+		return outgoing.sent;
+	}
+
+	/**
+	 * Send all the messages already queued, and stop the sending thread. Messages queued later are not sent.
+	 */
+	void close() {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			// There is always room for the end, since the queue has one more place than its capacity.
+			queue.add(end);
+		}
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<Outgoing<Message>> taken = new ArrayList<Outgoing<Message>>();
+		while (true) {
+			try {
+				taken.add(queue.take());
+			} catch (InterruptedException e) {
+				// Only close() stops this thread.
+				continue;
+			}
+			queue.drainTo(taken);
+			// Nothing is queued after the end.
+			boolean last = taken.get(taken.size() - 1) == end;
+			if (last) {
+				taken.remove(taken.size() - 1);
+			}
+			send(taken);
+			taken.clear();
+			if (last) {
+				return;
+			}
+		}
+	}
+
+	private void send(List<Outgoing<Message>> taken) {
+		Map<String, List<Outgoing<Message>>> byClient = new LinkedHashMap<String, List<Outgoing<Message>>>();
+		for (Outgoing<Message> outgoing : taken) {
+			byClient.computeIfAbsent(outgoing.clientAddress, c -> new ArrayList<Outgoing<Message>>()).add(outgoing);
+		}
+		byClient.forEach((clientAddress, outgoings) -> {
+			List<Message> messages = new ArrayList<Message>(outgoings.size());
+			for (Outgoing<Message> outgoing : outgoings) {
+				messages.add(outgoing.message);
+			}
+			try {
+				sendBatch.accept(clientAddress, messages);
+			} catch (RuntimeException e) {
+				for (Outgoing<Message> outgoing : outgoings) {
+					outgoing.sent.completeExceptionally(e);
+				}
+				return;
+			}
+			for (Outgoing<Message> outgoing : outgoings) {
+				outgoing.sent.complete(null);
+			}
+		});
+	}
+
+	/**
+	 * A message waiting to be sent.
+	 */
+	private static class Outgoing<Message> {
+		final String clientAddress;
+		final Message message;
+		final CompletableFuture<Void> sent = new CompletableFuture<Void>();
+
+		Outgoing(String clientAddress, Message message) {
+			this.clientAddress = clientAddress;
+			this.message = message;
+		}
+	}
+}
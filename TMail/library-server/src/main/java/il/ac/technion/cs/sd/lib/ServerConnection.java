@@ -1,7 +1,27 @@
 package il.ac.technion.cs.sd.lib;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import il.ac.technion.cs.sd.msg.Messenger;
 import il.ac.technion.cs.sd.msg.MessengerException;
@@ -12,6 +32,24 @@ import il.ac.technion.cs.sd.msg.MessengerFactory;
 /**
  * Library class for the server, which allows sending and receiving custom-type
  * messages to and from several clients.
+ * <br>
+ * Several messages can be sent to a client as a single batch (see {@link ServerConnection#sendBatch(String, Collection)}).
+ * Batches sent by clients are unpacked on receiving, so messages are still received one at a time.
+ * Messages can also be received in bursts (see {@link ServerConnection#receiveBatch(int, long, TimeUnit)}), whatever
+ * way they were sent.
+ * <br>
+ * Instead of receiving, messages can be pushed to a subscriber as it requests them, by a reader thread of the
+ * connection (see {@link ServerConnection#subscribe(Subscriber)}).
+ * <br>
+ * A message can be sent to many clients at once (see {@link ServerConnection#broadcast(Collection, Object)}), encoding
+ * it only once.
+ * <br>
+ * Messages can be sent without waiting for them to be sent (see {@link ServerConnection#sendAsync(String, Object)}),
+ * by a thread of the connection. Messages to the same client that pile up while it is busy are sent as a single batch.
+ * <br>
+ * Messages larger than the chunk size (see {@link ServerConnection#setChunkSize(int)}) are sent to the client
+ * in chunks, which are sent as soon as they are encoded, so a large message is never held in memory as a whole
+ * (given a codec that implements {@link Codec#encodeTo(Object, OutputStream)}). The client reassembles them.
  * 
  * @param <Message>
  *            The message type to pass between the server and clients. All
@@ -19,8 +57,41 @@ import il.ac.technion.cs.sd.msg.MessengerFactory;
  */
 public class ServerConnection<Message> {
 	
+	/**
+	 * The default size of the chunks large messages are split to.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * The most messages that can wait to be sent by {@link ServerConnection#sendAsync(String, Object)}.
+	 */
+	public static final int SEND_QUEUE_CAPACITY = 4096;
+	
+	// The most clients a single task sends a broadcast message to.
+	private static final int BROADCAST_TASK_SIZE = 256;
+	
+	// The longest pause between polls of the messenger, while waiting for a message with a timeout.
+	private static final long MAX_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	
 	final private Messenger messenger;
-	final private Codec<Message> codec;
+	final private Function<String, Codec<Message>> codecOfPeer;
+	// With a codec for each client, a message is encoded and sent while holding its codec, so the messages of a
+	// client reach it in the order its codec encoded them.
+	final private boolean codecPerPeer;
+	final private MessageWithSenderCodec<Message> frameCodec;
+	final private MessageWithSenderCodec<List<Message>> batchFrameCodec;
+	
+	// Messages received, not yet returned by receive.
+	final private Queue<MessageWithSender<Message>> pending = new ConcurrentLinkedQueue<MessageWithSender<Message>>();
+	
+	final private AtomicInteger streamIds = new AtomicInteger();
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	
+	// Started on the first asynchronous send.
+	private SendQueue<Message> sendQueue;
+	
+	// Pushes the received messages, while there is a subscriber.
+	private PushSubscription<MessageWithSender<Message>> subscription;
 	
 	/**
 	 * Create a server connection with a given address. Using this create
@@ -41,12 +112,69 @@ public class ServerConnection<Message> {
 	 * @return the connection created.
 	 */
 	public static <Message> ServerConnection<Message> create(String address, Codec<Message> codec) {
+		if (codec == null) {
+			throw new IllegalArgumentException();
+		}
+		return start(address, peer -> codec, false);
+	}
+	
+	/**
+	 * Create a server connection that uses a separate codec instance for each client, created on the first
+	 * message sent to or received from that client. This is needed for stateful codecs, which must only see
+	 * the messages of a single peer. The codecs are kept for as long as the connection is open.
+	 * @param address the address of the server.
+	 * @param codecFactory creates a new codec for a client.
+	 * @return the connection created.
+	 */
+	public static <Message> ServerConnection<Message> createWithPeerCodecs(String address,
+			Supplier<Codec<Message>> codecFactory) {
+		return start(address, new PeerCodecs<Message>(codecFactory, 0), true);
+	}
+	
+	/**
+	 * Create a server connection that uses a separate codec instance for each client, like
+	 * {@link ServerConnection#createWithPeerCodecs(String, Supplier)}, and drops the codec of a client that neither
+	 * sent nor was sent anything for a while. The client gets a new codec on its next message, so the codecs must
+	 * recover from the other side losing its state (see {@link StatefulSerializeCodec}).
+	 * @param address the address of the server.
+	 * @param codecFactory creates a new codec for a client.
+	 * @param maxIdle how long the codec of a client is kept after its last message.
+	 * @param unit the unit of maxIdle.
+	 * @return the connection created.
+	 */
+	public static <Message> ServerConnection<Message> createWithPeerCodecs(String address,
+			Supplier<Codec<Message>> codecFactory, long maxIdle, TimeUnit unit) {
+		if (maxIdle <= 0 || unit == null) {
+			throw new IllegalArgumentException();
+		}
+		return start(address, new PeerCodecs<Message>(codecFactory, unit.toNanos(maxIdle)), true);
+	}
+	
+	/**
+	 * Create a server connection that keeps a long-lived serialization stream with each client (see
+	 * {@link StatefulSerializeCodec}), so class descriptors are only sent once per stream instead of with every
+	 * message. The clients must be created with {@link ClientConnection#createStateful(String, String)}.
+	 * <br>
+	 * The stream with a client is dropped once the client was idle for twice the time after which its side starts a
+	 * new stream (see {@link StatefulSerializeCodec#DEFAULT_IDLE_RESET_SECONDS}), so the streams of clients that went
+	 * away don't pile up.
+	 * 
+	 * @param address the address of the server.
+	 * @return the connection created.
+	 */
+	public static <Message extends Serializable> ServerConnection<Message> createStateful(String address) {
+		return createWithPeerCodecs(address, () -> new StatefulSerializeCodec<Message>(),
+				2 * StatefulSerializeCodec.DEFAULT_IDLE_RESET_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	private static <Message> ServerConnection<Message> start(String address,
+			Function<String, Codec<Message>> codecOfPeer, boolean codecPerPeer) {
 		if (address == null || address.isEmpty()) {
 			throw new IllegalArgumentException();
 		}
 		try {
 			Messenger messenger = new MessengerFactory().start(address);
-			return new ServerConnection<Message>(messenger, codec);
+			return new ServerConnection<Message>(messenger, codecOfPeer, codecPerPeer);
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
@@ -58,7 +186,7 @@ public class ServerConnection<Message> {
 	 * @return the connection created.
 	 */
 	static <Message extends Serializable> ServerConnection<Message> createWithMockMessenger(Messenger messenger) {
-		return new ServerConnection<Message>(messenger, new SerializeCodec<Message>());
+		return createWithMockMessenger(messenger, new SerializeCodec<Message>());
 	}
 	
 	
@@ -71,22 +199,58 @@ public class ServerConnection<Message> {
 	 * @return the connection created.
 	 */
 	static <Message> ServerConnection<Message> createWithMockMessenger(Messenger messenger, Codec<Message> codec) {
-		return new ServerConnection<Message>(messenger, codec);
+		if (codec == null) {
+			throw new IllegalArgumentException();
+		}
+		return new ServerConnection<Message>(messenger, peer -> codec, false);
+	}
+	
+	/**
+	 * Creates a server with a custom messenger instance, and a separate codec instance for each client.
+	 * <i>intended for testing purposes.</i>
+	 * 
+	 * @param messenger the mock-messenger to use.
+	 * @param codecFactory creates a new codec for a client.
+	 * @return the connection created.
+	 */
+	static <Message> ServerConnection<Message> createWithMockMessengerAndPeerCodecs(Messenger messenger,
+			Supplier<Codec<Message>> codecFactory) {
+		return new ServerConnection<Message>(messenger, new PeerCodecs<Message>(codecFactory, 0), true);
+	}
+	
+	/**
+	 * Creates a server with a custom messenger instance, and a separate codec instance for each client, dropped once
+	 * the client was idle for a while. <i>intended for testing purposes.</i>
+	 * 
+	 * @param messenger the mock-messenger to use.
+	 * @param codecs the codecs of the clients.
+	 * @return the connection created.
+	 */
+	static <Message> ServerConnection<Message> createWithMockMessengerAndPeerCodecs(Messenger messenger,
+			PeerCodecs<Message> codecs) {
+		return new ServerConnection<Message>(messenger, codecs, true);
 	}
 	
 	
 	/**
 	 * Constructor for the ServerConnection class.
-	 * @param codec the codec to use to encode/decode the messages sent and received to and from the clients. 
 	 * @param messenger the messenger to use to send and receive messages from the clients.
+	 * @param codecOfPeer returns the codec to use to encode/decode the messages sent and received to and from a client. 
+	 * @param codecPerPeer whether each client has a codec of its own.
 	 */
-	private ServerConnection(Messenger messenger, Codec<Message> codec) {
-		if (messenger == null || codec == null) {
+	private ServerConnection(Messenger messenger, Function<String, Codec<Message>> codecOfPeer, boolean codecPerPeer) {
+		if (messenger == null || codecOfPeer == null) {
 			throw new IllegalArgumentException();
 		}
 		
 		this.messenger = messenger;
-		this.codec = codec;
+		this.codecOfPeer = codecOfPeer;
+		this.codecPerPeer = codecPerPeer;
+		// Both frame codecs intern senders into the same table, so a client's address is always the same instance.
+		AddressInterner senders = new AddressInterner();
+		this.frameCodec = new MessageWithSenderCodec<Message>(codecOfPeer, senders);
+		this.batchFrameCodec = new MessageWithSenderCodec<List<Message>>(
+				peer -> new BatchCodec<Message>(codecOfPeer.apply(peer)), senders);
 	}
 	
 	/**
@@ -94,6 +258,15 @@ public class ServerConnection<Message> {
 	 * before opening another connection with the same address.
 	 */
 	public void kill() {
+		synchronized (this) {
+			if (subscription != null) {
+				subscription.close();
+			}
+			// Messages already handed to sendAsync are still sent.
+			if (sendQueue != null) {
+				sendQueue.close();
+			}
+		}
 		try {
 			messenger.kill();
 		} catch (MessengerException e) {
@@ -111,33 +284,267 @@ public class ServerConnection<Message> {
 		return this.messenger.getAddress();
 	}
 	
+	/**
+	 * Set the size of the chunks large messages are split to. A message that is encoded to at least this
+	 * many bytes is sent in chunks.
+	 * @param chunkSize the chunk size, in bytes.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.chunkSize = chunkSize;
+	}
+	
 	/**
 	 * Sends a given message to a given client.
 	 * @param clientAddress the address of the client to send the message to.
 	 * @param message the message to send.
 	 */
 	public void send(String clientAddress, Message message) {
+		Codec<Message> codec = codecOfPeer.apply(clientAddress);
+		if (codecPerPeer) {
+			synchronized (codec) {
+				send(clientAddress, codec, message);
+			}
+		} else {
+			send(clientAddress, codec, message);
+		}
+	}
+	
+	private void send(String clientAddress, Codec<Message> codec, Message message) {
+		int size = codec.sizeHint(message);
+		try {
+			if (size >= 0 && size < chunkSize) {
+				messenger.send(clientAddress, Frame.encode(Frame.SINGLE, codec, message));
+				return;
+			}
+			// Large or of unknown size: encoded straight into chunks, each sent as soon as it fills up.
+			ChunkingOutputStream out = new ChunkingOutputStream(payload -> sendPayload(clientAddress, payload));
+			codec.encodeTo(message, out);
+			out.close();
+		} catch (MessengerException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getCause() instanceof MessengerException ? e.getCause() : e);
+		}
+	}
+	
+	/**
+	 * Sends a given message to several clients. The message is encoded once, and the same bytes are sent to all the
+	 * clients (unless the connection has a separate codec for each client, see
+	 * {@link ServerConnection#createWithPeerCodecs(String, Supplier)}). A large message is held in memory as a whole,
+	 * in chunks, while it is sent.
+	 * @param clientAddresses the addresses of the clients to send the message to.
+	 * @param message the message to send.
+	 * @throws RuntimeException if sending to some of the clients failed, after trying to send to all of them.
+	 */
+	public void broadcast(Collection<String> clientAddresses, Message message) {
+		broadcast(clientAddresses, message, Runnable::run);
+	}
+	
+	/**
+	 * Sends a given message to several clients, like {@link ServerConnection#broadcast(Collection, Object)}, with the
+	 * sending split among tasks run by a given executor. Returns once the message was sent to all the clients.
+	 * @param clientAddresses the addresses of the clients to send the message to.
+	 * @param message the message to send.
+	 * @param executor runs the tasks that send the message, each to some of the clients.
+	 * @throws RuntimeException if sending to some of the clients failed, after trying to send to all of them.
+	 */
+	public void broadcast(Collection<String> clientAddresses, Message message, Executor executor) {
+		if (clientAddresses == null || executor == null) {
+			throw new IllegalArgumentException();
+		}
+		List<String> clients = new ArrayList<String>(clientAddresses);
+		// Clients that share a codec share the encoded payloads. A client with a codec of its own is sent its payloads
+		// as they are encoded, while holding its codec (see send).
+		Map<Codec<Message>, List<byte[]>> encoded = new IdentityHashMap<Codec<Message>, List<byte[]>>();
+		List<List<byte[]>> payloads = new ArrayList<List<byte[]>>(clients.size());
+		for (String client : clients) {
+			payloads.add(codecPerPeer ? null
+					: encoded.computeIfAbsent(codecOfPeer.apply(client), codec -> encodeFrames(codec, message)));
+		}
+		
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+		for (int start = 0; start < clients.size(); start += BROADCAST_TASK_SIZE) {
+			int from = start;
+			int to = Math.min(start + BROADCAST_TASK_SIZE, clients.size());
+			tasks.add(CompletableFuture.runAsync(() -> {
+				RuntimeException failure = null;
+				for (int i = from; i < to; ++i) {
+					try {
+						if (codecPerPeer) {
+							send(clients.get(i), message);
+							continue;
+						}
+						for (byte[] payload : payloads.get(i)) {
+							messenger.send(clients.get(i), payload);
+						}
+					} catch (MessengerException | RuntimeException e) {
+						failure = addFailure(failure, e);
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+			}, executor));
+		}
+		RuntimeException failure = null;
+		for (CompletableFuture<Void> task : tasks) {
+			try {
+				task.join();
+			} catch (CompletionException e) {
+				failure = addFailure(failure, e.getCause());
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	/**
+	 * Encode a message into the payloads that send it: a single one, or its chunks.
+	 */
+	private List<byte[]> encodeFrames(Codec<Message> codec, Message message) {
+		int size = codec.sizeHint(message);
+		if (size >= 0 && size < chunkSize) {
+			return Collections.singletonList(Frame.encode(Frame.SINGLE, codec, message));
+		}
+		List<byte[]> $ = new ArrayList<byte[]>();
+		try {
+			ChunkingOutputStream out = new ChunkingOutputStream($::add);
+			codec.encodeTo(message, out);
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return $;
+	}
+	
+	private static RuntimeException addFailure(RuntimeException failure, Throwable e) {
+		if (failure == null) {
+			return e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e);
+		}
+		if (failure != e) {
+			failure.addSuppressed(e);
+		}
+		return failure;
+	}
+	
+	/**
+	 * Sends a given message to a given client, on a thread of the connection, and returns without waiting for it to
+	 * be sent. Messages to the same client are sent in the order they were given, and several of them may be sent
+	 * together, as a single batch (see {@link ServerConnection#sendBatch(String, Collection)}). There is no order
+	 * between them and messages sent with {@link ServerConnection#send(String, Object)}.
+	 * <br>
+	 * If {@link ServerConnection#SEND_QUEUE_CAPACITY} messages are already waiting to be sent, waits for room.
+	 * @param clientAddress the address of the client to send the message to.
+	 * @param message the message to send.
+	 * @return a future completed once the message was sent, or completed exceptionally if sending failed or the
+	 * connection was killed.
+	 */
+	public CompletableFuture<Void> sendAsync(String clientAddress, Message message) {
+		SendQueue<Message> queue;
+		synchronized (this) {
+			if (sendQueue == null) {
+				sendQueue = new SendQueue<Message>("sender-" + getAddress(), SEND_QUEUE_CAPACITY, this::sendBatch);
+			}
+			queue = sendQueue;
+		}
+		return queue.submit(clientAddress, message);
+	}
+	
+	/**
+	 * Sends several messages to a given client, as a single payload. The client receives them one at a time,
+	 * in the given order, just as if they were sent one by one.
+	 * @param clientAddress the address of the client to send the messages to.
+	 * @param messages the messages to send.
+	 */
+	public void sendBatch(String clientAddress, Collection<Message> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		if (messages.size() == 1) {
+			send(clientAddress, messages.iterator().next());
+			return;
+		}
+		Codec<Message> peerCodec = codecOfPeer.apply(clientAddress);
+		if (codecPerPeer) {
+			synchronized (peerCodec) {
+				sendBatch(clientAddress, peerCodec, messages);
+			}
+		} else {
+			sendBatch(clientAddress, peerCodec, messages);
+		}
+	}
+	
+	private void sendBatch(String clientAddress, Codec<Message> peerCodec, Collection<Message> messages) {
+		BatchCodec<Message> codec = new BatchCodec<Message>(peerCodec);
+		List<Message> list = new ArrayList<Message>(messages);
+		int size = codec.sizeHint(list);
 		try {
-			messenger.send(clientAddress, codec.encode(message));
+			if (size >= 0 && size < chunkSize) {
+				messenger.send(clientAddress, Frame.encode(Frame.BATCH, codec, list));
+			} else if (size >= 0) {
+				// Too large for a single payload: sent one by one, so the large messages are sent in chunks.
+				for (Message message : list) {
+					send(clientAddress, peerCodec, message);
+				}
+			} else {
+				sendEncoded(clientAddress, peerCodec, list);
+			}
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Send messages of unknown sizes as a batch if they fit in a single payload, or one by one otherwise. Each message
+	 * is encoded exactly once, in order, and the bytes sent are the ones encoded: a stateful codec moves its stream on
+	 * with every encoding, so an encoding that is thrown away would leave the client behind.
+	 */
+	private void sendEncoded(String clientAddress, Codec<Message> codec, List<Message> messages)
+			throws MessengerException {
+		List<byte[]> encoded = new ArrayList<byte[]>(messages.size());
+		for (Message message : messages) {
+			encoded.add(codec.encode(message));
+		}
+		int size = BatchCodec.sizeOfEncoded(encoded);
+		if (size < chunkSize) {
+			ByteBuffer frame = ByteBuffer.allocate(1 + size);
+			frame.put(Frame.BATCH);
+			BatchCodec.writeEncoded(frame, encoded);
+			messenger.send(clientAddress, frame.array());
+			return;
+		}
+		try {
+			for (byte[] message : encoded) {
+				// Passed on whole if it fits in a chunk, or in chunks otherwise.
+				ChunkingOutputStream out = new ChunkingOutputStream(payload -> sendPayload(clientAddress, payload));
+				out.write(message);
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e.getCause() instanceof MessengerException ? e.getCause() : e);
+		}
+	}
+	
 	/**
 	 * Returns an optional that contains a message sent to the server, with the address of the client who sent it.
 	 * If no message was sent from any client, an empty optional is returned.
 	 * @return an optional containing a message and sender (if exists), or an empty optional (if not).
 	 */
 	public Optional<MessageWithSender<Message>> receive() {
+		MessageWithSender<Message> $;
 		try {
-			Optional<byte[]> bytes = messenger.tryListen();
-			if (!bytes.isPresent()) {
-				return Optional.empty();
+			while (($ = pending.poll()) == null) {
+				Optional<byte[]> bytes = messenger.tryListen();
+				if (!bytes.isPresent()) {
+					return Optional.empty();
+				}
+				unpack(bytes.get());
 			}
-			return Optional.of(new MessageWithSenderCodec<Message>(codec)
-					.decode(bytes.get()));
-			
+			return Optional.of($);
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
@@ -149,12 +556,220 @@ public class ServerConnection<Message> {
 	 * @return a message and sender address.
 	 */
 	public MessageWithSender<Message> receiveBlocking() {
+		MessageWithSender<Message> $;
 		try {
-			return new MessageWithSenderCodec<Message>(codec).decode(messenger.listen());
+			while (($ = pending.poll()) == null) {
+				unpack(messenger.listen());
+			}
+			return $;
 		} catch (MessengerException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	/**
+	 * Returns the messages sent to the server, in the order they arrived, with the addresses of the clients who sent
+	 * them. Waits (up to a timeout) for the first message, and then takes the messages that already arrived, without
+	 * waiting for more. 
+	 * @param max the maximal amount of messages to return.
+	 * @param timeout how long to wait for the first message.
+	 * @param unit the unit of the timeout.
+	 * @return the messages received, at least one unless the timeout passed (or the calling thread was interrupted)
+	 * before any message arrived.
+	 */
+	public List<MessageWithSender<Message>> receiveBatch(int max, long timeout, TimeUnit unit) {
+		if (max <= 0 || timeout < 0 || unit == null) {
+			throw new IllegalArgumentException();
+		}
+		List<MessageWithSender<Message>> $ = new ArrayList<MessageWithSender<Message>>();
+		Optional<MessageWithSender<Message>> first = receive();
+		if (!first.isPresent()) {
+			first = awaitMessage(unit.toNanos(timeout));
+			if (!first.isPresent()) {
+				return $;
+			}
+		}
+		$.add(first.get());
+		while ($.size() < max) {
+			Optional<MessageWithSender<Message>> next = receive();
+			if (!next.isPresent()) {
+				break;
+			}
+			$.add(next.get());
+		}
+		return $;
+	}
+	
+	/**
+	 * Poll for a message until one arrives or the timeout passes. The messenger has no way to wait with a timeout,
+	 * so the pause between polls grows while no message arrives, up to a millisecond.
+	 */
+	private Optional<MessageWithSender<Message>> awaitMessage(long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		long pause = 1000;
+		while (true) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0 || Thread.currentThread().isInterrupted()) {
+				return Optional.empty();
+			}
+			LockSupport.parkNanos(Math.min(pause, left));
+			pause = Math.min(pause * 2, MAX_POLL_INTERVAL_NANOS);
+			Optional<MessageWithSender<Message>> $ = receive();
+			if ($.isPresent()) {
+				return $;
+			}
+		}
+	}
+	
+	/**
+	 * Push the messages sent to the server to a subscriber, as it requests them, by a reader thread of the connection.
+	 * The subscriber is completed once the connection is killed. There can only be one subscriber at a time, and
+	 * while there is, messages should not be received by other means.
+	 * @param subscriber the subscriber, which gets each message with the address of the client who sent it.
+	 * @throws IllegalStateException if there already is a subscriber that did not cancel its subscription. If it did,
+	 * its reader thread is waited for.
+	 */
+	public synchronized void subscribe(Subscriber<? super MessageWithSender<Message>> subscriber) {
+		// The reader of a cancelled (or completed) subscription is waited for, so two threads never receive at once.
+		if (subscription != null && !subscription.awaitDone()) {
+			throw new IllegalStateException("Already subscribed");
+		}
+		subscription = new PushSubscription<MessageWithSender<Message>>("reader-" + getAddress(), subscriber,
+				new PushSubscription.Source<MessageWithSender<Message>>() {
+			@Override
+			public boolean poll() {
+				try {
+					while (pending.isEmpty()) {
+						Optional<byte[]> bytes = messenger.tryListen();
+						if (!bytes.isPresent()) {
+							return false;
+						}
+						unpack(bytes.get());
+					}
+					return true;
+				} catch (MessengerException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			
+			@Override
+			public MessageWithSender<Message> take() {
+				return pending.poll();
+			}
+		});
+	}
+	
+	/**
+	 * Decode a received payload, queuing its messages to be returned by the following receive calls.
+	 */
+	private void unpack(byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		byte kind = buffer.get();
+		switch (kind) {
+		case Frame.SINGLE:
+			pending.add(frameCodec.decode(buffer));
+			break;
+		case Frame.BATCH: {
+			MessageWithSender<List<Message>> batch = batchFrameCodec.decode(buffer);
+			for (Message message : batch.content) {
+				pending.add(new MessageWithSender<Message>(message, batch.sender));
+			}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown frame kind: " + kind);
+		}
+	}
+	
+	private void sendPayload(String clientAddress, byte[] payload) throws IOException {
+		try {
+			messenger.send(clientAddress, payload);
+		} catch (MessengerException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Takes the payloads a message is sent in.
+	 */
+	private interface PayloadSink {
+		void accept(byte[] payload) throws IOException;
+	}
+	
+	/**
+	 * A stream that passes the bytes written to it on as payloads. If they don't fit in a single chunk, they are
+	 * passed as a chunked message, a chunk at a time; otherwise, as a single message once the stream is closed.
+	 * <br>
+	 * The buffer starts small and grows as bytes are written, up to a chunk, so a small message of unknown size
+	 * doesn't cost a whole chunk. Its first byte is kept for the kind of a single message, which is then passed on
+	 * without copying it again if it fills the buffer exactly (as when the whole message is written at once).
+	 */
+	private class ChunkingOutputStream extends OutputStream {
+		private static final int INITIAL_CAPACITY = 256;
+		
+		final private PayloadSink sink;
+		final private int chunkSize = ServerConnection.this.chunkSize;
+		private byte[] buffer = new byte[1 + Math.min(INITIAL_CAPACITY, chunkSize)];
+		private int count; // after the first byte
+		private int streamId;
+		private int seq;
+		
+		ChunkingOutputStream(PayloadSink sink) {
+			this.sink = sink;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (count == chunkSize) {
+				sendChunk(false);
+			}
+			ensureRoom(1);
+			buffer[1 + count++] = (byte)b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == chunkSize) {
+					sendChunk(false);
+				}
+				int n = Math.min(len, chunkSize - count);
+				ensureRoom(n);
+				System.arraycopy(b, off, buffer, 1 + count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (seq == 0) {
+				// Everything fit in one chunk.
+				byte[] payload = 1 + count == buffer.length ? buffer : Arrays.copyOf(buffer, 1 + count);
+				payload[0] = Frame.SINGLE;
+				sink.accept(payload);
+			} else {
+				sendChunk(true);
+			}
+		}
+		
+		/**
+		 * Grow the buffer to fit more bytes, which fit in the current chunk.
+		 */
+		private void ensureRoom(int n) {
+			if (1 + count + n > buffer.length) {
+				int capacity = Math.max(1 + count + n, Math.min(2 * buffer.length, 1 + chunkSize));
+				buffer = Arrays.copyOf(buffer, capacity);
+			}
+		}
+		
+		private void sendChunk(boolean last) throws IOException {
+			if (seq == 0) {
+				streamId = streamIds.incrementAndGet() & Integer.MAX_VALUE;
+			}
+			sink.accept(Frame.chunk(streamId, seq++, last, buffer, 1, count));
+			count = 0;
+		}
+	}
 }
-
-
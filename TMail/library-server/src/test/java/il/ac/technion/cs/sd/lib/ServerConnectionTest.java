@@ -2,7 +2,25 @@ package il.ac.technion.cs.sd.lib;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import il.ac.technion.cs.sd.msg.Messenger;
 import il.ac.technion.cs.sd.msg.MessengerException;
@@ -12,6 +30,8 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 public class ServerConnectionTest {
@@ -76,17 +96,177 @@ public class ServerConnectionTest {
 	@Test
 	public void verifySendUsesMessenger() throws MessengerException {
 		String message = "HI!";
-		byte[] encodedMessage = new SerializeCodec<String>().encode(message);
+		byte[] encodedMessage = Frame.encode(Frame.SINGLE, new SerializeCodec<String>(), message);
 		String clientAddress = "claddr";
 		connection.send(clientAddress, message);
 		Mockito.verify(messenger).send(clientAddress, encodedMessage);
 	}
 	
+	@Test
+	public void verifyPeerCodecCreatedOncePerClient() throws MessengerException {
+		List<Codec<String>> created = new ArrayList<Codec<String>>();
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessengerAndPeerCodecs(messenger, () -> {
+			Codec<String> $ = new StatefulSerializeCodec<String>();
+			created.add($);
+			return $;
+		});
+		con.send("a", "1");
+		con.send("b", "2");
+		con.send("a", "3");
+		assertEquals(2, created.size());
+		
+		// Messages to "a" are encoded on one stream, so the second one is smaller.
+		ArgumentCaptor<byte[]> sent = ArgumentCaptor.forClass(byte[].class);
+		Mockito.verify(messenger, Mockito.times(2)).send(Mockito.eq("a"), sent.capture());
+		assertTrue(sent.getAllValues().get(1).length < sent.getAllValues().get(0).length);
+	}
+	
+	@Test
+	public void concurrentSendsToAPeerReachItInTheOrderTheyWereEncoded() throws Exception {
+		Queue<byte[]> sent = new ConcurrentLinkedQueue<byte[]>();
+		Mockito.doAnswer(invocation -> sent.add((byte[])invocation.getArguments()[1]))
+				.when(messenger).send(Mockito.eq("a"), Mockito.any(byte[].class));
+		// Integers refer back to their class descriptor, which is only sent at the start of each stream.
+		ServerConnection<Integer> con = ServerConnection.<Integer>createWithMockMessengerAndPeerCodecs(messenger,
+				() -> new StatefulSerializeCodec<Integer>(4));
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<CompletableFuture<Void>> senders = new ArrayList<CompletableFuture<Void>>();
+			for (int t = 0; t < 4; ++t) {
+				senders.add(CompletableFuture.runAsync(() -> {
+					for (int i = 0; i < 200; ++i) {
+						con.send("a", i);
+					}
+				}, pool));
+			}
+			for (CompletableFuture<Void> sender : senders) {
+				sender.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		StatefulSerializeCodec<Integer> receiver = new StatefulSerializeCodec<Integer>();
+		for (byte[] payload : sent) {
+			int decoded = receiver.decode(ByteBuffer.wrap(payload, 1, payload.length - 1));
+			assertTrue(decoded >= 0 && decoded < 200);
+		}
+		assertEquals(800, sent.size());
+	}
+	
+	@Test
+	public void batchOfUnknownSizeToAPeerIsEncodedOnce() throws Exception {
+		Queue<byte[]> sent = new ConcurrentLinkedQueue<byte[]>();
+		Mockito.doAnswer(invocation -> sent.add((byte[])invocation.getArguments()[1]))
+				.when(messenger).send(Mockito.eq("a"), Mockito.any(byte[].class));
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessengerAndPeerCodecs(messenger,
+				() -> new StatefulSerializeCodec<String>());
+		con.setChunkSize(300);
+		String first = String.join("", Collections.nCopies(201, "a"));
+		String second = String.join("", Collections.nCopies(201, "b"));
+		// Too large for one payload together, but each fits in one.
+		con.sendBatch("a", Arrays.asList(first, second));
+		con.sendBatch("a", Arrays.asList("c", "d"));
+		
+		StatefulSerializeCodec<String> receiver = new StatefulSerializeCodec<String>();
+		List<String> received = new ArrayList<String>();
+		for (byte[] payload : sent) {
+			ByteBuffer body = ByteBuffer.wrap(payload, 1, payload.length - 1);
+			if (payload[0] == Frame.BATCH) {
+				received.addAll(new BatchCodec<String>(receiver).decode(body));
+			} else {
+				assertEquals(Frame.SINGLE, payload[0]);
+				received.add(receiver.decode(body));
+			}
+		}
+		assertEquals(Arrays.asList(first, second, "c", "d"), received);
+	}
+	
+	@Test
+	public void peerCodecOfIdleClientIsDropped() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		PeerCodecs<String> codecs = new PeerCodecs<String>(() -> {
+			created.incrementAndGet();
+			return new StatefulSerializeCodec<String>();
+		}, TimeUnit.MILLISECONDS.toNanos(10));
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessengerAndPeerCodecs(messenger, codecs);
+		con.send("a", "1");
+		Thread.sleep(50);
+		con.send("b", "2");
+		assertEquals(1, codecs.size());
+		
+		con.send("a", "3");
+		assertEquals(3, created.get());
+	}
+	
+	@Test
+	public void messageOfUnknownSizeBelowAChunkIsSentWhole() throws MessengerException {
+		// Larger than the stream's initial buffer, which grows to fit it.
+		String message = new String(new char[5000]).replace('\0', 'x');
+		connection.send("claddr", message);
+		Mockito.verify(messenger).send("claddr", Frame.encode(Frame.SINGLE, new SerializeCodec<String>(), message));
+	}
+	
+	@Test
+	public void verifyLargeMessageSentInChunks() throws MessengerException {
+		connection.setChunkSize(32);
+		String message = new String(new char[100]).replace('\0', 'x');
+		connection.send("claddr", message);
+		
+		ArgumentCaptor<byte[]> sent = ArgumentCaptor.forClass(byte[].class);
+		Mockito.verify(messenger, Mockito.atLeast(4)).send(Mockito.eq("claddr"), sent.capture());
+		List<byte[]> payloads = sent.getAllValues();
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (int i = 0; i < payloads.size(); ++i) {
+			ByteBuffer payload = ByteBuffer.wrap(payloads.get(i));
+			assertEquals(Frame.CHUNK, payload.get());
+			Frame.Chunk chunk = new Frame.Chunk(payload);
+			assertEquals(i, chunk.seq);
+			assertEquals(i == payloads.size() - 1, chunk.last);
+			assertTrue(chunk.data.remaining() <= 32);
+			joined.write(chunk.data.array(), chunk.data.arrayOffset() + chunk.data.position(), chunk.data.remaining());
+		}
+		assertArrayEquals(new SerializeCodec<String>().encode(message), joined.toByteArray());
+	}
+	
+	@Test
+	public void verifySendBatchUsesMessengerOnce() throws MessengerException {
+		List<String> messages = Arrays.asList("one", "two", "three");
+		connection.sendBatch("claddr", messages);
+		Mockito.verify(messenger).send("claddr",
+				Frame.encode(Frame.BATCH, new BatchCodec<String>(new SerializeCodec<String>()), messages));
+	}
+	
+	@Test
+	public void verifyNothingSentForEmptyBatch() throws MessengerException {
+		connection.sendBatch("claddr", new ArrayList<String>());
+		Mockito.verify(messenger, Mockito.never()).send(Mockito.anyString(), Mockito.any(byte[].class));
+	}
+	
+	@Test
+	public void testReceiveBatchOneAtATime() throws MessengerException {
+		MessageWithSenderCodec<List<String>> batchCodec = new MessageWithSenderCodec<List<String>>(
+				new BatchCodec<String>(new SerializeCodec<String>()));
+		byte[] batch = Frame.encode(Frame.BATCH, batchCodec,
+				new MessageWithSender<List<String>>(Arrays.asList("one", "two"), "claddr"));
+		byte[] single = Frame.encode(Frame.SINGLE, codec, new MessageWithSender<String>("three", "other"));
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(batch), Optional.of(single), Optional.empty());
+		
+		MessageWithSender<String> first = connection.receive().get();
+		MessageWithSender<String> second = connection.receive().get();
+		assertEquals("one", first.content);
+		assertEquals("two", second.content);
+		assertSame(first.sender, second.sender);
+		assertEquals("claddr", second.sender);
+		assertEquals("three", connection.receive().get().content);
+		assertFalse(connection.receive().isPresent());
+	}
+	
 	@Test
 	public void testReceive() throws MessengerException {
 		String message = "HI!";
 		String clientAddress = "claddr";
-		byte[] encodedMessage = codec.encode(new MessageWithSender<String>(message, clientAddress));
+		byte[] encodedMessage = Frame.encode(Frame.SINGLE, codec, new MessageWithSender<String>(message, clientAddress));
 
 		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(encodedMessage));
 		
@@ -108,7 +288,7 @@ public class ServerConnectionTest {
 	public void testReceiveBlocking() throws MessengerException {
 		String message = "HI!";
 		String clientAddress = "claddr";
-		byte[] encodedMessage = codec.encode(new MessageWithSender<String>(message, clientAddress));
+		byte[] encodedMessage = Frame.encode(Frame.SINGLE, codec, new MessageWithSender<String>(message, clientAddress));
 
 		Mockito.when(messenger.listen()).thenReturn(encodedMessage);
 		
@@ -133,6 +313,392 @@ public class ServerConnectionTest {
 		t.start();
 		Thread.sleep(100);
 		t.stop();
-	} 
-
+	}
+	
+	private byte[] single(String message, String sender) {
+		return Frame.encode(Frame.SINGLE, codec, new MessageWithSender<String>(message, sender));
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void receiveBatchReturnsArrivedMessagesInOrder() throws MessengerException {
+		MessageWithSenderCodec<List<String>> batchCodec = new MessageWithSenderCodec<List<String>>(
+				new BatchCodec<String>(new SerializeCodec<String>()));
+		byte[] batch = Frame.encode(Frame.BATCH, batchCodec,
+				new MessageWithSender<List<String>>(Arrays.asList("one", "two"), "claddr"));
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(batch), Optional.of(single("three", "other")),
+				Optional.empty());
+		
+		List<MessageWithSender<String>> received = connection.receiveBatch(10, 0, TimeUnit.MILLISECONDS);
+		assertEquals(3, received.size());
+		assertEquals("one", received.get(0).content);
+		assertEquals("two", received.get(1).content);
+		assertEquals("three", received.get(2).content);
+		assertEquals("other", received.get(2).sender);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void receiveBatchReturnsAtMostMax() throws MessengerException {
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.of(single("one", "a")), Optional.of(single("two", "a")),
+				Optional.of(single("three", "a")), Optional.empty());
+		
+		List<MessageWithSender<String>> received = connection.receiveBatch(2, 0, TimeUnit.MILLISECONDS);
+		assertEquals(2, received.size());
+		assertEquals("two", received.get(1).content);
+		received = connection.receiveBatch(2, 0, TimeUnit.MILLISECONDS);
+		assertEquals(1, received.size());
+		assertEquals("three", received.get(0).content);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void receiveBatchWaitsForTheFirstMessage() throws MessengerException {
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.empty(), Optional.empty(), Optional.empty(),
+				Optional.of(single("one", "a")), Optional.empty());
+		
+		List<MessageWithSender<String>> received = connection.receiveBatch(10, 1, TimeUnit.SECONDS);
+		assertEquals(1, received.size());
+		assertEquals("one", received.get(0).content);
+	}
+	
+	@Test
+	public void receiveBatchIsEmptyAfterTimeout() throws MessengerException {
+		Mockito.when(messenger.tryListen()).thenReturn(Optional.empty());
+		
+		long start = System.nanoTime();
+		assertTrue(connection.receiveBatch(10, 50, TimeUnit.MILLISECONDS).isEmpty());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void receiveBatchRejectsNonPositiveMax() {
+		connection.receiveBatch(0, 1, TimeUnit.SECONDS);
+	}
+	
+	@Test
+	public void oversizedBatchIsSentOneByOne() throws MessengerException {
+		connection.setChunkSize(20);
+		List<String> messages = Arrays.asList("one", "two");
+		connection.sendBatch("claddr", messages);
+		
+		ArgumentCaptor<byte[]> payloads = ArgumentCaptor.forClass(byte[].class);
+		Mockito.verify(messenger, Mockito.atLeast(2)).send(Mockito.eq("claddr"), payloads.capture());
+		for (byte[] payload : payloads.getAllValues()) {
+			assertNotEquals(Frame.BATCH, payload[0]);
+		}
+	}
+	
+	@Test
+	public void sendAsyncSendsTheMessage() throws Exception {
+		connection.sendAsync("claddr", "HI!").get();
+		Mockito.verify(messenger).send("claddr", Frame.encode(Frame.SINGLE, new SerializeCodec<String>(), "HI!"));
+	}
+	
+	@Test
+	public void sendAsyncCoalescesMessagesThatPileUp() throws Exception {
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Mockito.doAnswer(invocation -> {
+			sending.countDown();
+			release.await();
+			return null;
+		}).doNothing().when(messenger).send(Mockito.anyString(), Mockito.any(byte[].class));
+		
+		CompletableFuture<Void> first = connection.sendAsync("claddr", "one");
+		sending.await();
+		// Queued while the first message is being sent.
+		List<CompletableFuture<Void>> piled = Arrays.asList(
+				connection.sendAsync("claddr", "two"),
+				connection.sendAsync("other", "hey"),
+				connection.sendAsync("claddr", "three"));
+		release.countDown();
+		first.get();
+		for (CompletableFuture<Void> sent : piled) {
+			sent.get();
+		}
+		
+		InOrder inOrder = Mockito.inOrder(messenger);
+		inOrder.verify(messenger).send("claddr", Frame.encode(Frame.SINGLE, new SerializeCodec<String>(), "one"));
+		inOrder.verify(messenger).send("claddr", Frame.encode(Frame.BATCH,
+				new BatchCodec<String>(new SerializeCodec<String>()), Arrays.asList("two", "three")));
+		inOrder.verify(messenger).send("other", Frame.encode(Frame.SINGLE, new SerializeCodec<String>(), "hey"));
+	}
+	
+	@Test
+	public void sendAsyncFailsWhenSendingFails() throws Exception {
+		Mockito.doThrow(new MessengerException("down")).when(messenger).send(Mockito.anyString(), Mockito.any(byte[].class));
+		try {
+			connection.sendAsync("claddr", "HI!").get();
+			fail("An exception should have been thrown");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RuntimeException);
+		}
+	}
+	
+	@Test
+	public void sendAsyncFailsAfterKill() throws Exception {
+		Messenger other = Mockito.mock(Messenger.class);
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessenger(other);
+		CompletableFuture<Void> before = con.sendAsync("claddr", "one");
+		con.kill();
+		// Sent before the connection was killed.
+		assertTrue(before.isDone());
+		Mockito.verify(other).send("claddr", Frame.encode(Frame.SINGLE, new SerializeCodec<String>(), "one"));
+		assertTrue(con.sendAsync("claddr", "two").isCompletedExceptionally());
+	}
+	
+	/**
+	 * Records what a connection pushes, requesting the given amount of messages on subscription.
+	 */
+	private static class Recorder<T> implements Subscriber<T> {
+		final long initialDemand;
+		final BlockingQueue<T> items = new LinkedBlockingQueue<T>();
+		final CountDownLatch completed = new CountDownLatch(1);
+		volatile Throwable error;
+		volatile Subscription subscription;
+		
+		Recorder(long initialDemand) {
+			this.initialDemand = initialDemand;
+		}
+		
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			if (initialDemand > 0) {
+				subscription.request(initialDemand);
+			}
+		}
+		
+		@Override
+		public void onNext(T item) {
+			items.add(item);
+		}
+		
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			completed.countDown();
+		}
+		
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+	}
+	
+	/**
+	 * Make the messenger return the given payloads from listen (or tryListen), and then block (or find nothing) until
+	 * it is killed.
+	 */
+	private static void listenUntilKilled(Messenger messenger, byte[]... payloads) throws MessengerException {
+		CountDownLatch killed = new CountDownLatch(1);
+		Mockito.doAnswer(invocation -> {
+			killed.countDown();
+			return null;
+		}).when(messenger).kill();
+		Queue<byte[]> queued = new ConcurrentLinkedQueue<byte[]>(Arrays.asList(payloads));
+		Mockito.when(messenger.listen()).thenAnswer(invocation -> {
+			byte[] $ = queued.poll();
+			if ($ == null) {
+				killed.await();
+				throw new IllegalMonitorStateException();
+			}
+			return $;
+		});
+		Mockito.when(messenger.tryListen()).thenAnswer(invocation -> {
+			byte[] $ = queued.poll();
+			if ($ == null && killed.getCount() == 0) {
+				throw new IllegalMonitorStateException();
+			}
+			return Optional.ofNullable($);
+		});
+	}
+	
+	@Test
+	public void subscriberGetsOnlyTheRequestedMessages() throws Exception {
+		listenUntilKilled(messenger, single("one", "a"), single("two", "b"));
+		Recorder<MessageWithSender<String>> recorder = new Recorder<MessageWithSender<String>>(1);
+		connection.subscribe(recorder);
+		assertEquals("one", recorder.items.take().content);
+		Thread.sleep(50);
+		assertTrue(recorder.items.isEmpty());
+		
+		recorder.subscription.request(1);
+		MessageWithSender<String> second = recorder.items.take();
+		assertEquals("two", second.content);
+		assertEquals("b", second.sender);
+	}
+	
+	@Test
+	public void batchIsPushedOneMessageAtATime() throws Exception {
+		MessageWithSenderCodec<List<String>> batchCodec = new MessageWithSenderCodec<List<String>>(
+				new BatchCodec<String>(new SerializeCodec<String>()));
+		listenUntilKilled(messenger, Frame.encode(Frame.BATCH, batchCodec,
+				new MessageWithSender<List<String>>(Arrays.asList("one", "two", "three"), "claddr")));
+		Recorder<MessageWithSender<String>> recorder = new Recorder<MessageWithSender<String>>(Long.MAX_VALUE);
+		connection.subscribe(recorder);
+		assertEquals("one", recorder.items.take().content);
+		assertEquals("two", recorder.items.take().content);
+		assertEquals("three", recorder.items.take().content);
+	}
+	
+	@Test
+	public void subscriberIsCompletedOnKill() throws Exception {
+		Messenger other = Mockito.mock(Messenger.class);
+		listenUntilKilled(other);
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessenger(other);
+		Recorder<MessageWithSender<String>> recorder = new Recorder<MessageWithSender<String>>(1);
+		con.subscribe(recorder);
+		con.kill();
+		recorder.completed.await();
+		assertNull(recorder.error);
+	}
+	
+	@Test
+	public void cancelledMessagesCanStillBeReceived() throws Exception {
+		listenUntilKilled(messenger, single("one", "a"));
+		Recorder<MessageWithSender<String>> recorder = new Recorder<MessageWithSender<String>>(0);
+		connection.subscribe(recorder);
+		recorder.subscription.cancel();
+		assertEquals("one", connection.receiveBlocking().content);
+		assertTrue(recorder.items.isEmpty());
+	}
+	
+	@Test
+	public void readerStopsReceivingOnceCancelled() throws Exception {
+		AtomicInteger polls = new AtomicInteger();
+		Mockito.when(messenger.tryListen()).thenAnswer(invocation -> {
+			polls.incrementAndGet();
+			return Optional.empty();
+		});
+		Recorder<MessageWithSender<String>> recorder = new Recorder<MessageWithSender<String>>(1);
+		connection.subscribe(recorder);
+		Thread.sleep(10);
+		recorder.subscription.cancel();
+		int polled = polls.get();
+		Thread.sleep(20);
+		assertEquals(polled, polls.get());
+	}
+	
+	@Test
+	public void subscriberCanBeReplacedOnceCancelled() throws Exception {
+		listenUntilKilled(messenger, single("one", "a"));
+		Recorder<MessageWithSender<String>> first = new Recorder<MessageWithSender<String>>(0);
+		connection.subscribe(first);
+		first.subscription.cancel();
+		Recorder<MessageWithSender<String>> second = new Recorder<MessageWithSender<String>>(1);
+		connection.subscribe(second);
+		assertEquals("one", second.items.take().content);
+		assertTrue(first.items.isEmpty());
+	}
+	
+	@Test (expected=IllegalStateException.class)
+	public void onlyOneSubscriberAtATime() throws MessengerException {
+		listenUntilKilled(messenger);
+		connection.subscribe(new Recorder<MessageWithSender<String>>(1));
+		connection.subscribe(new Recorder<MessageWithSender<String>>(1));
+	}
+	
+	@Test
+	public void nonPositiveRequestIsAnError() throws Exception {
+		listenUntilKilled(messenger);
+		Recorder<MessageWithSender<String>> recorder = new Recorder<MessageWithSender<String>>(0);
+		connection.subscribe(recorder);
+		recorder.subscription.request(0);
+		recorder.completed.await();
+		assertTrue(recorder.error instanceof IllegalArgumentException);
+	}
+	
+	/**
+	 * Encodes strings as UTF-8, counting the encodings.
+	 */
+	private static class CountingCodec implements Codec<String> {
+		final AtomicInteger encodings = new AtomicInteger();
+		
+		@Override
+		public byte[] encode(String obj) {
+			encodings.incrementAndGet();
+			return obj.getBytes(StandardCharsets.UTF_8);
+		}
+		
+		@Override
+		public String decode(byte[] b) {
+			return new String(b, StandardCharsets.UTF_8);
+		}
+	}
+	
+	@Test
+	public void broadcastEncodesOnce() throws MessengerException {
+		CountingCodec counting = new CountingCodec();
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessenger(messenger, counting);
+		con.broadcast(Arrays.asList("a", "b", "c"), "announcement");
+		assertEquals(1, counting.encodings.get());
+		
+		ArgumentCaptor<byte[]> sent = ArgumentCaptor.forClass(byte[].class);
+		Mockito.verify(messenger, Mockito.times(3)).send(Mockito.anyString(), sent.capture());
+		assertSame(sent.getAllValues().get(0), sent.getAllValues().get(1));
+		assertSame(sent.getAllValues().get(0), sent.getAllValues().get(2));
+		assertEquals("announcement", counting.decode(Arrays.copyOfRange(sent.getValue(), 1, sent.getValue().length)));
+	}
+	
+	@Test
+	public void broadcastEncodesOncePerPeerCodec() throws MessengerException {
+		List<CountingCodec> created = new ArrayList<CountingCodec>();
+		ServerConnection<String> con = ServerConnection.<String>createWithMockMessengerAndPeerCodecs(messenger, () -> {
+			CountingCodec $ = new CountingCodec();
+			created.add($);
+			return $;
+		});
+		con.broadcast(Arrays.asList("a", "b"), "announcement");
+		assertEquals(2, created.size());
+		assertEquals(1, created.get(0).encodings.get());
+		assertEquals(1, created.get(1).encodings.get());
+	}
+	
+	@Test
+	public void largeBroadcastIsChunkedOnce() throws MessengerException {
+		connection.setChunkSize(32);
+		String message = new String(new char[100]).replace('\0', 'x');
+		connection.broadcast(Arrays.asList("a", "b"), message);
+		
+		ArgumentCaptor<byte[]> toA = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<byte[]> toB = ArgumentCaptor.forClass(byte[].class);
+		Mockito.verify(messenger, Mockito.atLeast(4)).send(Mockito.eq("a"), toA.capture());
+		Mockito.verify(messenger, Mockito.atLeast(4)).send(Mockito.eq("b"), toB.capture());
+		assertEquals(toA.getAllValues().size(), toB.getAllValues().size());
+		for (int i = 0; i < toA.getAllValues().size(); ++i) {
+			assertEquals(Frame.CHUNK, toA.getAllValues().get(i)[0]);
+			assertSame(toA.getAllValues().get(i), toB.getAllValues().get(i));
+		}
+	}
+	
+	@Test
+	public void broadcastSendsToEveryClientWithAnExecutor() throws MessengerException {
+		List<String> clients = new ArrayList<String>();
+		for (int i = 0; i < 1000; ++i) {
+			clients.add("client" + i);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			connection.broadcast(clients, "announcement", pool);
+		} finally {
+			pool.shutdown();
+		}
+		for (String client : clients) {
+			Mockito.verify(messenger).send(Mockito.eq(client), Mockito.any(byte[].class));
+		}
+	}
+	
+	@Test
+	public void broadcastTriesEveryClientBeforeFailing() throws MessengerException {
+		Mockito.doThrow(new MessengerException("down")).when(messenger).send(Mockito.eq("b"), Mockito.any(byte[].class));
+		try {
+			connection.broadcast(Arrays.asList("a", "b", "c"), "announcement");
+			fail("An exception should have been thrown");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof MessengerException);
+		}
+		Mockito.verify(messenger).send(Mockito.eq("c"), Mockito.any(byte[].class));
+	}
 }
@@ -1,6 +1,7 @@
 package il.ac.technion.cs.sd.lib;
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.Optional;
 
 import org.junit.After;
@@ -78,6 +79,34 @@ public class LibIntegrationTest {
 		}
 	}
 	
+	@Test
+	public void BatchesReceivedOneAtATimeInOrder() {
+		client1.sendBatch(Arrays.asList("one", "two"));
+		client1.send("three");
+		server.sendBatch(client2.getAddress(), Arrays.asList("four", "five", "six"));
+		
+		assertEquals("one", server.receiveBlocking().content);
+		assertEquals("two", server.receive().get().content);
+		assertEquals("three", server.receiveBlocking().content);
+		assertEquals("four", client2.receiveBlocking());
+		assertEquals("five", client2.receiveBlocking());
+		assertEquals("six", client2.receive().get());
+	}
+	
+	@Test
+	public void LargeMessagesSentInChunks() {
+		server.setChunkSize(64);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 1000; ++i) {
+			large.append(i).append(' ');
+		}
+		server.send(client1.getAddress(), large.toString());
+		server.send(client1.getAddress(), "small");
+		
+		assertEquals(large.toString(), client1.receiveBlocking());
+		assertEquals("small", client1.receiveBlocking());
+	}
+	
 	@Test
 	public void ServerReceivesEmptyOptionalWhenNoPendingMessage() {
 		client1.send("one");
@@ -132,5 +161,39 @@ public class LibIntegrationTest {
 		assertEquals(str_client.getAddress(), ms.sender);
 		assertEquals("What's up?", ms.content.str);
 	}
+	
+	@Test
+	public void TestStatefulConnections() {
+		ServerConnection<String> stateful_server = ServerConnection.<String>createStateful("stateful_server");
+		ClientConnection<String> a = ClientConnection.<String>createStateful("stateful_server", "stateful_a");
+		ClientConnection<String> b = ClientConnection.<String>createStateful("stateful_server", "stateful_b");
+		try {
+			for (int i = 0; i < 3; ++i) {
+				a.send("a" + i);
+				b.send("b" + i);
+			}
+			for (int i = 0; i < 3; ++i) {
+				MessageWithSender<String> fromA = stateful_server.receiveBlocking();
+				assertEquals(a.getAddress(), fromA.sender);
+				assertEquals("a" + i, fromA.content);
+				MessageWithSender<String> fromB = stateful_server.receiveBlocking();
+				assertEquals(b.getAddress(), fromB.sender);
+				assertEquals("b" + i, fromB.content);
+			}
+			
+			for (int i = 0; i < 3; ++i) {
+				stateful_server.send(a.getAddress(), "to a" + i);
+				stateful_server.send(b.getAddress(), "to b" + i);
+			}
+			for (int i = 0; i < 3; ++i) {
+				assertEquals("to a" + i, a.receiveBlocking());
+				assertEquals("to b" + i, b.receiveBlocking());
+			}
+		} finally {
+			stateful_server.kill();
+			a.kill();
+			b.kill();
+		}
+	}
 
 }